@@ -1,6 +1,7 @@
 package com.martinandersson.javaee.arquillian.clientserver;
 
 import com.martinandersson.javaee.arquillian.helloworld.HelloWorldEJB;
+import com.martinandersson.javaee.utils.HttpCompression;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -50,7 +51,7 @@ public class ClientServerTest
     @Deployment
     private static WebArchive buildDeployment() {
         WebArchive war = ShrinkWrap.create(WebArchive.class, ClientServerTest.class.getSimpleName() + ".war");
-        war.addClasses(HelloWorldEJB.class, ServerAPI.class);
+        war.addClasses(HelloWorldEJB.class, ServerAPI.class, HttpCompression.class);
         
         LOGGER.info(() -> war.toString(true).replace("\n", "\n\t"));
         
@@ -1,7 +1,11 @@
 package com.martinandersson.javaee.arquillian.clientserver;
 
 import com.martinandersson.javaee.arquillian.helloworld.HelloWorldEJB;
+import com.martinandersson.javaee.utils.HttpCompression;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.LongAdder;
 import javax.ejb.EJB;
 import javax.servlet.ServletException;
@@ -67,15 +71,15 @@ public class ServerAPI extends HttpServlet
         final String world = req.getParameter("hello");
         
         if (world == null) {
-            reply("Missing the \"hello\" parameter :'(", HttpServletResponse.SC_BAD_REQUEST, resp);
+            reply("Missing the \"hello\" parameter :'(", HttpServletResponse.SC_BAD_REQUEST, req, resp);
         }
         else {
             String WORLD = helloWorldEJB.toUpperCase(world);
-            reply(WORLD, HttpServletResponse.SC_OK, resp);
+            reply(WORLD, HttpServletResponse.SC_OK, req, resp);
         }
     }
     
-    private void reply(String message, int status, HttpServletResponse resp) throws IOException {
+    private void reply(String message, int status, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         /*
          * If SC_BAD_REQUEST, one would perhaps like to use sendError() instead
          * of setStatus(). But that would allow the server to also output a
@@ -86,9 +90,18 @@ public class ServerAPI extends HttpServlet
         
         resp.setContentType("text/plain"); // or "text/html;charset=UTF-8" and skip next statement
         resp.setCharacterEncoding("UTF-8");
-        resp.setContentLength(message.length()); // if the Servlet do buffering, which most do, they can infer the output length without this call
         
-        resp.getWriter().write(message);
+        /*
+         * The stream set Content-Length if the message is small, otherwise
+         * the message is compressed (if the client accept it) and sent in
+         * chunks as it is written.
+         */
+        
+        try (Writer out = new OutputStreamWriter(
+                HttpCompression.openResponse(req, resp), StandardCharsets.UTF_8))
+        {
+            out.write(message);
+        }
     }
 }
 
@@ -4,12 +4,17 @@ import com.martinandersson.javaee.resources.SchemaGenerationStrategy;
 import com.martinandersson.javaee.utils.DeploymentBuilder;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import javax.ejb.EJB;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -328,4 +333,141 @@ public class PersistenceTest
             assertNull(persons.findById(donald.getId()));
         }
     }
+    
+    /**
+     * Logs the time of the first and the mean time of following calls to the
+     * finders of {@code PersonRepository}.<p>
+     * 
+     * The queries are translated once, when the application start (see
+     * {@linkplain PersonQueries}), so the first call should not be much slower
+     * than the following calls. What remain of the first call is mostly the
+     * preparation of the JDBC statement.<p>
+     * 
+     * Like {@linkplain #keysetPaginationBenchmark()}, the test is skipped
+     * unless system property {@code
+     * com.martinandersson.javaee.arquillian.persistence.PersistenceTest.benchmarkSize}
+     * is set.
+     */
+    @Test
+    public void coldAndWarmQueries() {
+        assumeTrue(benchmarkSize() > 0);
+        
+        final Address duckburg = new Address()
+                .setStreet("Homeless")
+                .setCity("Duckburg");
+        
+        benchmark("exists", () -> persons.exists("Donald Duck"));
+        benchmark("findByName", () -> persons.findByName("Donald Duck"));
+        benchmark("findByAddress", () -> persons.findByAddress(duckburg));
+    }
+    
+    /**
+     * A person persisted by a committed transaction is put in the second-level
+     * cache, so looking him up by id is a cache hit.
+     */
+    @Test
+    public void findByIdHitsTheCache() {
+        final Person scrooge = new Person("Scrooge McDuck");
+        persons.persist(scrooge);
+        
+        try {
+            final PersonCacheStatistics cache = PersonCacheStatistics.INSTANCE;
+            final long hits = cache.hits();
+            
+            assertEquals(scrooge.getName(), persons.findById(scrooge.getId()).getName());
+            assertEquals(hits + 1, cache.hits());
+            
+            LOGGER.info(cache::toString);
+        }
+        finally {
+            persons.delete(scrooge);
+        }
+    }
+    
+    /**
+     * Compares the unbounded {@code findByName} with streaming the same
+     * persons page by page, over a generated dataset.<p>
+     * 
+     * The dataset has {@code N} persons spread over 100 names and 10 cities,
+     * where {@code N} is set by system property {@code
+     * com.martinandersson.javaee.arquillian.persistence.PersistenceTest.benchmarkSize}.
+     * The test is skipped if the property is not set. The test runs in the
+     * server, so that is where the property must be set. The dataset is only
+     * generated the first time; the table keep it between runs.
+     */
+    @Test
+    public void keysetPaginationBenchmark() {
+        final int size = benchmarkSize();
+        
+        assumeTrue(size > 0);
+        
+        final String marker = "Benchmark dataset of " + size;
+        
+        if (!persons.exists(marker)) {
+            LOGGER.info(() -> "Generating " + size + " persons.");
+            
+            final long then = System.nanoTime();
+            
+            persons.persistAll(IntStream.range(0, size).mapToObj(i ->
+                    new Person("Benchmark " + i % 100).setAddress(new Address()
+                            .setStreet("Street " + i % 1_000)
+                            .setCity("City " + i % 10))));
+            
+            persons.persist(new Person(marker));
+            
+            LOGGER.info(() -> "Generated in (ms): " + (System.nanoTime() - then) / 1_000_000);
+        }
+        
+        final String name = "Benchmark 7";
+        
+        long then = System.nanoTime();
+        final int unbounded = persons.findByName(name).size();
+        final long unboundedNanos = System.nanoTime() - then;
+        
+        then = System.nanoTime();
+        final long firstPageNanos;
+        
+        try (Stream<Person> stream = persons.streamByName(name, 100)) {
+            // First element cost the first page
+            List<Person> first = stream.limit(1).collect(Collectors.toList());
+            firstPageNanos = System.nanoTime() - then;
+            assertFalse(first.isEmpty());
+        }
+        
+        then = System.nanoTime();
+        final long streamed = persons.streamByName(name, 100).count();
+        final long streamedNanos = System.nanoTime() - then;
+        
+        LOGGER.info(() -> String.format("%s (%d persons): unbounded %d ms, first page %d ms, all pages %d ms.",
+                name, unbounded, unboundedNanos / 1_000_000, firstPageNanos / 1_000_000, streamedNanos / 1_000_000));
+        
+        assertEquals(unbounded, streamed);
+    }
+    
+    /**
+     * Returns the size of the benchmark dataset, {@code 0} if benchmarks
+     * should be skipped.
+     */
+    private static int benchmarkSize() {
+        return Integer.getInteger(PersistenceTest.class.getName() + ".benchmarkSize", 0);
+    }
+    
+    private static void benchmark(String name, Runnable call) {
+        final int warmCalls = 1_000;
+        
+        long then = System.nanoTime();
+        call.run();
+        final long cold = System.nanoTime() - then;
+        
+        then = System.nanoTime();
+        
+        for (int i = 0; i < warmCalls; ++i) {
+            call.run();
+        }
+        
+        final long warm = (System.nanoTime() - then) / warmCalls;
+        
+        LOGGER.info(() -> String.format("%s: cold %d us, warm %d us (mean of %d calls).",
+                name, cold / 1_000, warm / 1_000, warmCalls));
+    }
 }
\ No newline at end of file
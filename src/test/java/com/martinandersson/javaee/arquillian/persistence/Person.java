@@ -1,11 +1,15 @@
 package com.martinandersson.javaee.arquillian.persistence;
 
 import java.util.Objects;
+import javax.persistence.Cacheable;
 import javax.persistence.Embedded;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
 import javax.persistence.Version;
 
 /**
@@ -19,16 +23,53 @@ import javax.persistence.Version;
  * 4.0.0 break).<p>
  * 
  * Note that this person will use a table in a specific schema called
- * "ARQUILLIAN_PERSISTENCE".
+ * "ARQUILLIAN_PERSISTENCE".<p>
+ * 
+ * The finders of {@linkplain PersonRepository} search by name and by the
+ * street and city of the embedded address. Without an index, each search scan
+ * the whole table. The id is the last column of both indexes so that the
+ * keyset-paginated finders, which order by id and continue after the last id
+ * of the previous page, can read a page straight out of the index. Indexes
+ * are only created together with the table. An existing table created by an
+ * earlier version of this class must be dropped, or have the indexes created
+ * by hand.<p>
+ * 
+ * Ids are allocated from a table in blocks of {@value #ID_ALLOCATION_SIZE}.
+ * The provider read and update the table once per block, instead of once per
+ * persisted person, which matter when persons are imported in bulk (see
+ * {@linkplain PersonRepository#persistAll(java.util.stream.Stream)}). Ids
+ * are not consecutive; a block not used up when the application stop is
+ * lost. Earlier versions of this class used the provider's default generator,
+ * which count from 1. The id table start at {@value #ID_INITIAL_VALUE},
+ * above any id the old generator could have produced, so that rows kept in
+ * an existing table (schema generation strategy {@code UPDATE}) do not
+ * collide with new ones.<p>
+ * 
+ * Persons are explicitly {@code @Cacheable}, they are put in the
+ * second-level cache even if {@code shared-cache-mode} is changed to {@code
+ * ENABLE_SELECTIVE}. The size of the cache and how persons are evicted is
+ * configured in {@code persistence-update.xml}. The version ({@code
+ * modCount}) is what keep the cache honest: a person updated using a stale
+ * copy fail with an {@code OptimisticLockException} and the repository then
+ * evict the cached person (see {@linkplain PersonRepository#merge(Person)}).
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 @Entity
-@Table(schema = "ARQUILLIAN_PERSISTENCE")
+@Cacheable
+@Table(schema = "ARQUILLIAN_PERSISTENCE", indexes = {
+    @Index(name = "PERSON_NAME_IDX", columnList = "name, id"),
+    @Index(name = "PERSON_ADDRESS_IDX", columnList = "city, street, id") })
 public class Person // note 1
 {
+    static final int ID_ALLOCATION_SIZE = 100;
+    
+    static final int ID_INITIAL_VALUE = 1_000_000_000;
+    
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "PERSON_IDS")
+    @TableGenerator(name = "PERSON_IDS", schema = "ARQUILLIAN_PERSISTENCE", table = "PERSON_IDS",
+            pkColumnValue = "PERSON", initialValue = ID_INITIAL_VALUE, allocationSize = ID_ALLOCATION_SIZE)
     private long id;
     
     @Version
@@ -0,0 +1,164 @@
+package com.martinandersson.javaee.arquillian.persistence;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Counts how {@linkplain PersonRepository} use the second-level cache of the
+ * persistence provider.<p>
+ * 
+ * JPA has no API for cache statistics. What the {@code Cache} interface can
+ * do, is to tell whether or not an entity is in the cache. So a lookup by id
+ * is counted as a hit if the person was in the cache before the lookup, and
+ * as a miss otherwise. Evictions counted are those made by the repository,
+ * when the version of a person may no longer match the cached person. The
+ * provider's own size-bounded eviction and the query-result cache can not be
+ * observed using JPA, see the provider statistics that can be enabled in
+ * {@code persistence-update.xml} for those.<p>
+ * 
+ * The counters are a plain object and not an EJB, so that evictions can be
+ * counted from a transaction synchronization callback. There is one instance
+ * per deployment, {@linkplain #INSTANCE}.<p>
+ * 
+ * The counters are exposed as plain text by {@linkplain Endpoint}, mapped to
+ * {@code /PersonCacheStatistics}. A {@code DELETE} request reset the counters
+ * and clear the cache.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class PersonCacheStatistics
+{
+    /** The counters of this deployment. */
+    static final PersonCacheStatistics INSTANCE = new PersonCacheStatistics();
+    
+    // The counters are thread-safe, no lock is needed
+    private final LongAdder hits = new LongAdder(),
+                            misses = new LongAdder(),
+                            evictions = new LongAdder();
+    
+    private PersonCacheStatistics() {
+        // Use INSTANCE
+    }
+    
+    /**
+     * Returns {@code true} if the person with the provided id is in the
+     * provided cache, and count a hit or a miss.
+     * 
+     * @param cache second-level cache
+     * @param id id of person
+     * 
+     * @return {@code true} if the person is in the cache
+     */
+    public boolean lookup(Cache cache, long id) {
+        final boolean cached = cache.contains(Person.class, id);
+        (cached ? hits : misses).increment();
+        return cached;
+    }
+    
+    /**
+     * Evict the person with the provided id from the provided cache, and count
+     * the eviction if the person was in the cache.<p>
+     * 
+     * Only calls the cache, may be used from a transaction synchronization
+     * callback.
+     * 
+     * @param cache second-level cache
+     * @param id id of person
+     */
+    public void evict(Cache cache, long id) {
+        if (cache.contains(Person.class, id)) {
+            cache.evict(Person.class, id);
+            evictions.increment();
+        }
+    }
+    
+    /**
+     * Returns the number of lookups of a cached person.
+     * 
+     * @return the number of lookups of a cached person
+     */
+    public long hits() {
+        return hits.sum();
+    }
+    
+    /**
+     * Returns the number of lookups of a person not cached.
+     * 
+     * @return the number of lookups of a person not cached
+     */
+    public long misses() {
+        return misses.sum();
+    }
+    
+    /**
+     * Returns the number of persons evicted by the repository.
+     * 
+     * @return the number of persons evicted by the repository
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+    
+    /**
+     * Reset the counters.
+     */
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(PersonCacheStatistics.class.getSimpleName())
+                .append("[hits=").append(hits())
+                .append(", misses=").append(misses())
+                .append(", evictions=").append(evictions())
+                .append(']').toString();
+    }
+    
+    
+    
+    /**
+     * Writes the counters as {@code name=value} lines.
+     */
+    @WebServlet("/PersonCacheStatistics")
+    public static class Endpoint extends HttpServlet
+    {
+        @PersistenceUnit
+        EntityManagerFactory emf;
+        
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            final PersonCacheStatistics statistics = INSTANCE;
+            
+            final long hits = statistics.hits(),
+                       misses = statistics.misses();
+            
+            resp.setContentType("text/plain");
+            
+            final PrintWriter out = resp.getWriter();
+            
+            out.println("hits=" + hits);
+            out.println("misses=" + misses);
+            out.println("evictions=" + statistics.evictions());
+            out.println("hitRatio=" + (hits + misses == 0 ? 0. : (double) hits / (hits + misses)));
+        }
+        
+        @Override
+        protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            emf.getCache().evict(Person.class);
+            INSTANCE.reset();
+            resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.martinandersson.javaee.arquillian.persistence;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * In-memory Bloom filter of the names of all persisted persons.<p>
+ * 
+ * If the filter say that a name is not known, then there is no person with
+ * that name and {@linkplain PersonRepository#exists(String)} can answer
+ * without asking the database. If the filter say that the name might be
+ * known, then the database must be asked. A false positive only cost the
+ * query that would have been made anyway.<p>
+ * 
+ * The filter is a counting Bloom filter, each slot is a counter and not a
+ * bit, so that names can be removed. {@linkplain PersonRepository} add a name
+ * as soon as a person is persisted and remove it only after the transaction
+ * that deleted the person has committed. A rolled back persist leave a name
+ * behind, which only cause false positives. The filter never cause a false
+ * negative, as long as all persons are persisted and deleted through the
+ * repository.<p>
+ * 
+ * The filter is a plain object and not an EJB. Names are removed from a
+ * transaction synchronization callback, and such a callback may not call
+ * EJB:s. There is one filter per deployment, {@linkplain #INSTANCE}, filled
+ * with the names of all persons in the database by {@linkplain
+ * PersonNameFilterLoader} when the application start.<p>
+ * 
+ * Enabled using system property {@code
+ * com.martinandersson.javaee.arquillian.persistence.PersonNameFilter.enabled}
+ * on the server. If not enabled, then {@linkplain #mightContain(String)}
+ * always return {@code true}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class PersonNameFilter
+{
+    /**
+     * {@code true} if system property {@code
+     * com.martinandersson.javaee.arquillian.persistence.PersonNameFilter.enabled}
+     * is set.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean(PersonNameFilter.class.getName() + ".enabled");
+    
+    /**
+     * Number of counters, a power of two. With {@value #HASHES} hash functions,
+     * 100 000 distinct names give a false positive probability of about 1 %.
+     * The counters take 4 MB.
+     */
+    static final int SIZE = 1 << 20;
+    
+    /** Number of hash functions. */
+    static final int HASHES = 4;
+    
+    /** The filter of this deployment. */
+    static final PersonNameFilter INSTANCE = new PersonNameFilter();
+    
+    // The counters are atomic, no lock is needed
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(ENABLED ? SIZE : 0);
+    
+    private PersonNameFilter() {
+        // Use INSTANCE
+    }
+    
+    /**
+     * Returns {@code false} if there is no person with the provided name,
+     * otherwise {@code true}.
+     * 
+     * @param name name of person
+     * 
+     * @return {@code false} if there is no person with the provided name,
+     *         otherwise {@code true}
+     */
+    public boolean mightContain(String name) {
+        if (!ENABLED) {
+            return true;
+        }
+        
+        final int h1 = hash1(name), h2 = hash2(h1);
+        
+        for (int i = 0; i < HASHES; ++i) {
+            if (counters.get(index(h1, h2, i)) == 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Add the name of a persisted person.
+     * 
+     * @param name name of person
+     */
+    public void add(String name) {
+        if (ENABLED) {
+            final int h1 = hash1(name), h2 = hash2(h1);
+            
+            for (int i = 0; i < HASHES; ++i) {
+                counters.incrementAndGet(index(h1, h2, i));
+            }
+        }
+    }
+    
+    /**
+     * Remove the name of a deleted person.<p>
+     * 
+     * Must only be called once for each added name, and only after the delete
+     * has committed.
+     * 
+     * @param name name of person
+     */
+    public void remove(String name) {
+        if (ENABLED) {
+            final int h1 = hash1(name), h2 = hash2(h1);
+            
+            for (int i = 0; i < HASHES; ++i) {
+                // Never below 0, a counter must not wrap around
+                counters.getAndUpdate(index(h1, h2, i), c -> c > 0 ? c - 1 : 0);
+            }
+        }
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    /*
+     * The k indexes are derived from two hashes only (Kirsch and Mitzenmacher,
+     * "Less Hashing, Same Performance"), index i = h1 + i * h2.
+     */
+    
+    private static int hash1(String name) {
+        // String.hashCode() spread, so that the low bits used by index() vary
+        int h = name.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    private static int hash2(int h1) {
+        int h = (h1 ^ (h1 >>> 15)) * 0x85EBCA6B;
+        h ^= h >>> 13;
+        
+        // Odd, so that all HASHES indexes differ
+        return h | 1;
+    }
+    
+    private static int index(int h1, int h2, int i) {
+        return (h1 + i * h2) & (SIZE - 1);
+    }
+}
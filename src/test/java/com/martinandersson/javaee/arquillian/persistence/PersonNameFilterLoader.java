@@ -0,0 +1,65 @@
+package com.martinandersson.javaee.arquillian.persistence;
+
+import java.util.List;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.ejb.DependsOn;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Fill {@linkplain PersonNameFilter} with the names of all persons in the
+ * database when the application start, if the filter is enabled.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Startup
+@Singleton
+@DependsOn("PersonQueries")
+public class PersonNameFilterLoader
+{
+    private static final Logger LOGGER = Logger.getLogger(PersonNameFilterLoader.class.getName());
+    
+    /** Number of names read per query. */
+    private static final int LOAD_SIZE = 10_000;
+    
+    @PersistenceContext
+    EntityManager em;
+    
+    @PostConstruct
+    private void load() {
+        if (!PersonNameFilter.ENABLED) {
+            return;
+        }
+        
+        final PersonNameFilter filter = PersonNameFilter.INSTANCE;
+        final long start = System.nanoTime();
+        
+        long after = 0, count = 0;
+        List<Object[]> page;
+        
+        // Keyset paginated, see PersonQueries
+        do {
+            page = em.createNamedQuery(PersonQueries.NAMES_AFTER, Object[].class)
+                    .setParameter("after", after)
+                    .setMaxResults(LOAD_SIZE)
+                    .getResultList();
+            
+            for (Object[] row : page) {
+                after = (Long) row[0];
+                filter.add((String) row[1]);
+            }
+            
+            count += page.size();
+            em.clear();
+        }
+        while (page.size() == LOAD_SIZE);
+        
+        final long names = count,
+                   ms = (System.nanoTime() - start) / 1_000_000;
+        
+        LOGGER.info(() -> "Loaded " + names + " names in " + ms + " ms.");
+    }
+}
@@ -0,0 +1,209 @@
+package com.martinandersson.javaee.arquillian.persistence;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+
+/**
+ * Builds the criteria queries of {@linkplain PersonRepository} once and
+ * register them as named queries of the persistence unit.<p>
+ * 
+ * Before, the repository built a new criteria tree for every call and the
+ * persistence provider translated the tree to SQL every time. A named query
+ * is translated once and then only need to bind his parameters. JPA 2.1 added
+ * {@code EntityManagerFactory.addNamedQuery()} which make it possible to
+ * still use the Criteria API for named queries. The registration is done when
+ * the application start, by this singleton, so that the registration happen
+ * once per persistence unit and before the repository is called.<p>
+ * 
+ * Values that differ between calls are parameters, never literals. A literal
+ * would be part of the query and would require a new translation.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@Startup
+@Singleton
+public class PersonQueries
+{
+    /**
+     * Ids of persons with a given name. Parameter: {@code "name"}.<p>
+     * 
+     * Used with a max result of 1 to test if a person exist. The database
+     * stop at the first row found, whereas a {@code COUNT} visit all rows
+     * that match.
+     */
+    public static final String ID_BY_NAME = "Person.idByName";
+    
+    /**
+     * Persons with a given name. Parameter: {@code "name"}.<p>
+     * 
+     * The result is cached in the query-result cache of the provider, at most
+     * {@value #QUERY_CACHE_SIZE} results with EclipseLink. The cached result
+     * is invalidated when a person is persisted, updated or deleted.
+     */
+    public static final String FIND_BY_NAME = "Person.findByName";
+    
+    /**
+     * Persons with a given address. Parameters: {@code "street"} and {@code
+     * "city"}.
+     */
+    public static final String FIND_BY_ADDRESS = "Person.findByAddress";
+    
+    /**
+     * Id and name of persons with an id greater than a given id, ordered by
+     * id. Parameter: {@code "after"}.
+     */
+    public static final String NAMES_AFTER = "Person.namesAfter";
+    
+    /**
+     * Persons with a given name and an id greater than a given id, ordered by
+     * id. Parameters: {@code "name"} and {@code "after"}.
+     */
+    public static final String FIND_BY_NAME_AFTER = "Person.findByNameAfter";
+    
+    /**
+     * Persons with a given address and an id greater than a given id, ordered
+     * by id. Parameters: {@code "street"}, {@code "city"} and {@code "after"}.
+     */
+    public static final String FIND_BY_ADDRESS_AFTER = "Person.findByAddressAfter";
+    
+    /** Max number of cached results of {@value #FIND_BY_NAME}. */
+    static final int QUERY_CACHE_SIZE = 100;
+    
+    @PersistenceUnit
+    EntityManagerFactory emf;
+    
+    @PostConstruct
+    private void register() {
+        // Criteria queries are built using the builder of an entity manager factory
+        final CriteriaBuilder b = emf.getCriteriaBuilder();
+        
+        emf.addNamedQuery(ID_BY_NAME, idByName(b));
+        emf.addNamedQuery(FIND_BY_NAME, findByName(b));
+        emf.addNamedQuery(FIND_BY_ADDRESS, findByAddress(b));
+        emf.addNamedQuery(FIND_BY_NAME_AFTER, findByNameAfter(b));
+        emf.addNamedQuery(FIND_BY_ADDRESS_AFTER, findByAddressAfter(b));
+        emf.addNamedQuery(NAMES_AFTER, namesAfter(b));
+    }
+    
+    private Query idByName(CriteriaBuilder b) {
+        CriteriaQuery<Long> query = b.createQuery(Long.class);
+        Root<Person> person = query.from(Person.class);
+        
+        // Both columns are in the name index, the table is never read
+        query.select(person.get("id"))
+             .where(b.equal(person.get("name"), b.parameter(String.class, "name")));
+        
+        return toQuery(query);
+    }
+    
+    private Query findByName(CriteriaBuilder b) {
+        CriteriaQuery<Person> query = b.createQuery(Person.class);
+        Root<Person> person = query.from(Person.class);
+        
+        query.select(person)
+             .where(b.equal(person.get("name"), b.parameter(String.class, "name")));
+        
+        // Hints are part of the named query. A provider ignore hints of other providers.
+        Map<String, Object> hints = new HashMap<>();
+        hints.put("eclipselink.query-results-cache", "true");
+        hints.put("eclipselink.query-results-cache.size", Integer.toString(QUERY_CACHE_SIZE));
+        hints.put("org.hibernate.cacheable", "true");
+        
+        return toQuery(query, hints);
+    }
+    
+    private Query findByAddress(CriteriaBuilder b) {
+        CriteriaQuery<Person> query = b.createQuery(Person.class);
+        Root<Person> person = query.from(Person.class);
+        Path<Address> address = person.get("address");
+        
+        ParameterExpression<String> street = b.parameter(String.class, "street"),
+                                    city = b.parameter(String.class, "city");
+        
+        query.select(person)
+             .where(b.equal(address.get("street"), street),
+                    b.equal(address.get("city"), city));
+        
+        return toQuery(query);
+    }
+    
+    /*
+     * Keyset pagination: instead of an offset, which make the database read
+     * and skip all rows of the previous pages, each page continue after the
+     * last id of the previous page. Together with the indexes of Person, a
+     * page cost the same no matter how far into the result it is.
+     */
+    
+    private Query findByNameAfter(CriteriaBuilder b) {
+        CriteriaQuery<Person> query = b.createQuery(Person.class);
+        Root<Person> person = query.from(Person.class);
+        
+        query.select(person)
+             .where(b.equal(person.get("name"), b.parameter(String.class, "name")),
+                    b.greaterThan(person.get("id"), b.parameter(Long.class, "after")))
+             .orderBy(b.asc(person.get("id")));
+        
+        return toQuery(query);
+    }
+    
+    private Query findByAddressAfter(CriteriaBuilder b) {
+        CriteriaQuery<Person> query = b.createQuery(Person.class);
+        Root<Person> person = query.from(Person.class);
+        Path<Address> address = person.get("address");
+        
+        query.select(person)
+             .where(b.equal(address.get("street"), b.parameter(String.class, "street")),
+                    b.equal(address.get("city"), b.parameter(String.class, "city")),
+                    b.greaterThan(person.get("id"), b.parameter(Long.class, "after")))
+             .orderBy(b.asc(person.get("id")));
+        
+        return toQuery(query);
+    }
+    
+    private Query namesAfter(CriteriaBuilder b) {
+        CriteriaQuery<Object[]> query = b.createQuery(Object[].class);
+        Root<Person> person = query.from(Person.class);
+        
+        query.multiselect(person.get("id"), person.get("name"))
+             .where(b.greaterThan(person.get("id"), b.parameter(Long.class, "after")))
+             .orderBy(b.asc(person.get("id")));
+        
+        return toQuery(query);
+    }
+    
+    private Query toQuery(CriteriaQuery<?> criteria) {
+        return toQuery(criteria, Collections.emptyMap());
+    }
+    
+    /**
+     * {@code addNamedQuery()} take a {@code Query}, which only an entity
+     * manager can create. The entity manager is closed right away, only the
+     * definition of the query is used. Hints are set before the entity
+     * manager is closed.
+     */
+    private Query toQuery(CriteriaQuery<?> criteria, Map<String, Object> hints) {
+        EntityManager em = emf.createEntityManager();
+        
+        try {
+            Query query = em.createQuery(criteria);
+            hints.forEach(query::setHint);
+            return query;
+        }
+        finally {
+            em.close();
+        }
+    }
+}
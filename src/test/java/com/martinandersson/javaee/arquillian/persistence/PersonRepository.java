@@ -1,18 +1,47 @@
 package com.martinandersson.javaee.arquillian.persistence;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.IntConsumer;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.annotation.Resource;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.persistence.Cache;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Path;
-import javax.persistence.criteria.Predicate;
-import javax.persistence.criteria.Root;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 /**
- * World's most simplest repository with some Criteria API examples.
+ * World's most simplest repository with some Criteria API examples.<p>
+ * 
+ * The criteria queries are built once, see {@linkplain PersonQueries}, and
+ * each call only bind the parameters of the query.<p>
+ * 
+ * {@code findByName} and {@code findByAddress} return all matching persons at
+ * once. For a large result, use the keyset-paginated variants that return one
+ * page at a time, or stream all persons page by page.<p>
+ * 
+ * {@code exists()} first ask the {@linkplain PersonNameFilter}, which can
+ * tell that a name is unknown without a query. The filter is kept up to date
+ * by the methods of this repository that persist and delete persons.<p>
+ * 
+ * Persons are cached in the second-level cache of the provider and the
+ * result of {@code findByName(String)} in the query-result cache, see
+ * {@linkplain Person} and {@linkplain PersonQueries}. Lookups by id are
+ * counted by {@linkplain PersonCacheStatistics}. A merge or delete that roll
+ * back, for example because the version of the person was stale, evict the
+ * person from the cache.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -23,55 +52,254 @@ public class PersonRepository
     @PersistenceContext // <-- we only need to set the unitName attribute if we have more than one unit defined in persistence.xml
     EntityManager em;
     
+    @Resource
+    SessionContext context;
+    
+    @Resource
+    TransactionSynchronizationRegistry txRegistry;
+    
+    /** Number of persons persisted per transaction by {@code persistAll()}. */
+    static final int TRANSACTION_SIZE = 1_000;
+    
+    /**
+     * Number of persons persisted between flushes by {@code persistAll()}.
+     * Same as the JDBC batch size configured in {@code persistence-update.xml}.
+     */
+    static final int FLUSH_SIZE = 100;
+    
+    /** A plain object, may be used from transaction synchronization callbacks. */
+    private static final PersonNameFilter NAMES = PersonNameFilter.INSTANCE;
+    
+    /** A plain object, may be used from transaction synchronization callbacks. */
+    private static final PersonCacheStatistics CACHE_STATISTICS = PersonCacheStatistics.INSTANCE;
+    
     
     
     @TransactionAttribute(TransactionAttributeType.SUPPORTS) // <-- SELECT doesn't have to be executed in a transaction
     public boolean exists(String name) {
-        CriteriaQuery<Long> queryForLong = em.getCriteriaBuilder().createQuery(Long.class);
-        Root<Person> personTable = queryForLong.from(Person.class);
-        
-        Predicate nameEquality = createPredicateForNameEquality(personTable, name);
-        queryForLong.where(nameEquality);
-        
-        queryForLong.select(em.getCriteriaBuilder().count(personTable));
+        if (!NAMES.mightContain(name)) {
+            return false;
+        }
         
-        return em.createQuery(queryForLong).getSingleResult() > 0;
+        // At most one id is read, the database can stop at the first match
+        return !em.createNamedQuery(PersonQueries.ID_BY_NAME, Long.class)
+                .setParameter("name", name)
+                .setMaxResults(1)
+                .getResultList()
+                .isEmpty();
     }
     
     @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     public Person findById(long id) {
+        CACHE_STATISTICS.lookup(em.getEntityManagerFactory().getCache(), id);
         return em.find(Person.class, id);
     }
     
     @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     public List<Person> findByName(String name) {
-        PersonQuery person = createQueryForPersons();
-        Predicate nameEquality = createPredicateForNameEquality(person.root, name);
-        person.query.where(nameEquality);
-        
-        return em.createQuery(person.query).getResultList();
+        return em.createNamedQuery(PersonQueries.FIND_BY_NAME, Person.class)
+                .setParameter("name", name)
+                .getResultList();
     }
     
     @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     public List<Person> findByAddress(Address address) {
-        PersonQuery person = createQueryForPersons();
-        Predicate addressEquality = createPredicateForAddressEquality(person, address);
-        person.query.where(addressEquality);
-        
-        return em.createQuery(person.query).getResultList();
+        return em.createNamedQuery(PersonQueries.FIND_BY_ADDRESS, Person.class)
+                .setParameter("street", address.getStreet())
+                .setParameter("city", address.getCity())
+                .getResultList();
+    }
+    
+    /**
+     * Returns at most {@code max} persons with the provided name and an id
+     * greater than {@code afterId}, ordered by id.<p>
+     * 
+     * The first page is fetched using {@code afterId} 0 and the next page
+     * using the id of the last person of the previous page.
+     * 
+     * @param name name of person
+     * @param afterId id of the last person of the previous page
+     * @param max page size
+     * 
+     * @return a page of persons
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public List<Person> findByName(String name, long afterId, int max) {
+        return em.createNamedQuery(PersonQueries.FIND_BY_NAME_AFTER, Person.class)
+                .setParameter("name", name)
+                .setParameter("after", afterId)
+                .setMaxResults(max)
+                .getResultList();
+    }
+    
+    /**
+     * Returns at most {@code max} persons with the provided address and an id
+     * greater than {@code afterId}, ordered by id.
+     * 
+     * @param address address of person
+     * @param afterId id of the last person of the previous page
+     * @param max page size
+     * 
+     * @return a page of persons
+     * 
+     * @see #findByName(String, long, int)
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public List<Person> findByAddress(Address address, long afterId, int max) {
+        return em.createNamedQuery(PersonQueries.FIND_BY_ADDRESS_AFTER, Person.class)
+                .setParameter("street", address.getStreet())
+                .setParameter("city", address.getCity())
+                .setParameter("after", afterId)
+                .setMaxResults(max)
+                .getResultList();
+    }
+    
+    /**
+     * Returns a lazy stream of all persons with the provided name, ordered by
+     * id.<p>
+     * 
+     * Each page is fetched when needed by a separate call to {@linkplain
+     * #findByName(String, long, int)}, so at most one page is held in memory
+     * by the stream.
+     * 
+     * @param name name of person
+     * @param pageSize number of persons fetched per call
+     * 
+     * @return a stream of persons
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Stream<Person> streamByName(String name, int pageSize) {
+        final PersonRepository self = context.getBusinessObject(PersonRepository.class);
+        return stream(after -> self.findByName(name, after, pageSize));
+    }
+    
+    /**
+     * Returns a lazy stream of all persons with the provided address, ordered
+     * by id.
+     * 
+     * @param address address of person
+     * @param pageSize number of persons fetched per call
+     * 
+     * @return a stream of persons
+     * 
+     * @see #streamByName(String, int)
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Stream<Person> streamByAddress(Address address, int pageSize) {
+        final PersonRepository self = context.getBusinessObject(PersonRepository.class);
+        return stream(after -> self.findByAddress(address, after, pageSize));
     }
     
     public void persist(Person person) {
         em.persist(person); // <-- all operations cascade for embeddables (Person#address)
+        NAMES.add(person.getName());
+    }
+    
+    /**
+     * Persist all persons of the provided stream.<p>
+     * 
+     * The persons are persisted in transactions of {@value #TRANSACTION_SIZE}
+     * persons each, so that a large import does not hold one huge transaction
+     * and its locks. Within a transaction, the persistence context is flushed
+     * and cleared every {@value #FLUSH_SIZE} persons. The flush send the
+     * inserts as one JDBC batch and clearing keep the persistence context from
+     * growing with each person.<p>
+     * 
+     * The import is not atomic. If a transaction fail, the persons of earlier
+     * transactions remain persisted. All persisted persons get an id, but are
+     * detached when this method returns.
+     * 
+     * @param persons persons to persist
+     * 
+     * @return number of persons persisted
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public long persistAll(Stream<Person> persons) {
+        final PersonRepository self = context.getBusinessObject(PersonRepository.class);
+        final List<Person> chunk = new ArrayList<>(TRANSACTION_SIZE);
+        
+        long count = 0;
+        
+        for (Iterator<Person> it = persons.iterator(); it.hasNext();) {
+            chunk.add(it.next());
+            
+            if (chunk.size() == TRANSACTION_SIZE) {
+                self.persistInNewTransaction(chunk);
+                count += chunk.size();
+                chunk.clear();
+            }
+        }
+        
+        if (!chunk.isEmpty()) {
+            self.persistInNewTransaction(chunk);
+            count += chunk.size();
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Persist the provided persons in a new transaction, flushing and clearing
+     * the persistence context every {@value #FLUSH_SIZE} persons.<p>
+     * 
+     * Used by {@linkplain #persistAll(Stream)}, must be called through the
+     * container for the transaction to be started.
+     * 
+     * @param persons persons to persist
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void persistInNewTransaction(List<Person> persons) {
+        int unflushed = 0;
+        
+        for (Person p : persons) {
+            em.persist(p);
+            NAMES.add(p.getName());
+            
+            if (++unflushed == FLUSH_SIZE) {
+                em.flush();
+                em.clear();
+                unflushed = 0;
+            }
+        }
     }
     
     public void merge(Person person) {
+        final long id = person.getId();
+        
+        if (id == 0L) {
+            NAMES.add(person.getName());
+        }
+        else {
+            // The cached version may be older than what is in the database
+            final Cache cache = em.getEntityManagerFactory().getCache();
+            
+            afterCompletion(status -> {
+                if (status != Status.STATUS_COMMITTED) {
+                    CACHE_STATISTICS.evict(cache, id);
+                }
+            });
+        }
+        
         em.merge(person); // <-- merge actually support persist too
     }
     
     public void delete(Person person) {
         Person managedRef = em.contains(person) ? person : em.merge(person); // note 1
         em.remove(managedRef);
+        
+        final String name = managedRef.getName();
+        final long id = managedRef.getId();
+        final Cache cache = em.getEntityManagerFactory().getCache();
+        
+        // A rolled back delete must not remove the name from the filter
+        afterCompletion(status -> {
+            if (status == Status.STATUS_COMMITTED) {
+                NAMES.remove(name);
+            }
+            else {
+                CACHE_STATISTICS.evict(cache, id);
+            }
+        });
     }
     
     
@@ -82,45 +310,76 @@ public class PersonRepository
      *  --------------
      */
     
-    private PersonQuery createQueryForPersons() {
-        CriteriaQuery<Person> query = em.getCriteriaBuilder().createQuery(Person.class);
-        Root<Person> root = query.from(Person.class);
-        
-        query.select(root); // <-- select() is optional in EclipseLink (who will assume the Person root)
-        
-        return new PersonQuery(query, root);
-    }
-    
-    private Predicate createPredicateForNameEquality(Root<Person> personTable, String name) {
-        Path<String> column = personTable.get("name");
-        return em.getCriteriaBuilder().equal(column, name);
-    }
-    
-    private Predicate createPredicateForAddressEquality(PersonQuery query, Address address) {
-        Path<String> column = query.root.get("address");
-        return em.getCriteriaBuilder().equal(column, address);
+    /**
+     * Call the provided callback with the status of the current transaction
+     * when the transaction has completed.<p>
+     * 
+     * The callback runs in an unspecified context and must not call EJB:s or
+     * other components, nor use the entity manager. Everything it need is
+     * looked up before it is registered.
+     */
+    private void afterCompletion(IntConsumer callback) {
+        txRegistry.registerInterposedSynchronization(new Synchronization() {
+            @Override public void beforeCompletion() {
+                // Nothing to do
+            }
+            
+            @Override public void afterCompletion(int status) {
+                callback.accept(status);
+            }
+        });
     }
     
     /**
-     * Wrapper for a {@code CriteriaQuery<Person>} and the root table.<p>
-     * 
-     * Purpose of this 2-field class is to make abstraction for criteria query
-     * creation possible (see {@code createQueryForPersons()}). We want client
-     * code to be able to easily get at both the query and the associated
-     * root.<p>
+     * Returns a stream that fetch the next page when the current page has
+     * been consumed. The function is called with the id of the last person
+     * seen, and the stream end when the function returns an empty page.<p>
      * 
-     * 
-     * <i>All</i> roots can be extracted from a criteria query using {@code
-     * CriteriaQuery.getRoots()}. That returns a {@code Set} though and require
-     * a bit of boilerplate client code to get and use it right.
+     * The pages are fetched through the business object of this bean, not
+     * {@code this}. The stream is consumed after the call that created it has
+     * returned, and only a call through the container has an entity manager.
      */
-    private static class PersonQuery {
-        final CriteriaQuery<Person> query;
-        final Root<Person> root;
+    private static Stream<Person> stream(LongFunction<List<Person>> pages) {
+        final Iterator<Person> persons = new Iterator<Person>() {
+            Iterator<Person> page = null;
+            long last = 0;
+            boolean done;
+            
+            @Override
+            public boolean hasNext() {
+                if (page != null && page.hasNext()) {
+                    return true;
+                }
+                
+                if (done) {
+                    return false;
+                }
+                
+                final List<Person> next = pages.apply(last);
+                
+                if (next.isEmpty()) {
+                    done = true;
+                    return false;
+                }
+                
+                last = next.get(next.size() - 1).getId();
+                page = next.iterator();
+                
+                return true;
+            }
+            
+            @Override
+            public Person next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                
+                return page.next();
+            }
+        };
         
-        PersonQuery(CriteriaQuery<Person> query, Root<Person> root) {
-            this.query = query; this.root = root;
-        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(persons,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false);
     }
 }
 
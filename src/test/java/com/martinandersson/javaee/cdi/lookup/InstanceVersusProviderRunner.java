@@ -1,7 +1,7 @@
 package com.martinandersson.javaee.cdi.lookup;
 
+import com.martinandersson.javaee.utils.WireFormat;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -44,8 +44,7 @@ public class InstanceVersusProviderRunner extends HttpServlet
                 throw new IllegalArgumentException("callFirst");
         }
         
-        new ObjectOutputStream(resp.getOutputStream())
-                .writeObject(new long[]{ firstId, secondId });
+        WireFormat.write(new long[]{ firstId, secondId }, resp.getOutputStream());
     }
     
     enum CallFirst {
@@ -4,6 +4,8 @@ import com.martinandersson.javaee.cdi.lookup.InstanceVersusProviderRunner.CallFi
 import com.martinandersson.javaee.utils.DeploymentBuilder;
 import com.martinandersson.javaee.utils.HttpRequests;
 import com.martinandersson.javaee.utils.HttpRequests.RequestParameter;
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
 import java.net.URL;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.container.test.api.RunAsClient;
@@ -47,7 +49,9 @@ public class InstanceVersusProviderTest
         return new DeploymentBuilder(InstanceVersusProviderTest.class)
                 .add(AbstractId.class,
                      RequestScopedBean.class,
-                     InstanceVersusProviderRunner.class)
+                     InstanceVersusProviderRunner.class,
+                     WireFormat.class,
+                     WireCodec.class)
                 .build();
     }
     
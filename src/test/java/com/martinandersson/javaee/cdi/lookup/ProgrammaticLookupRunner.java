@@ -1,7 +1,9 @@
 package com.martinandersson.javaee.cdi.lookup;
 
+import com.martinandersson.javaee.utils.HttpCompression;
+import com.martinandersson.javaee.utils.WireFormat;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import javax.enterprise.inject.spi.CDI;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -26,12 +28,13 @@ public class ProgrammaticLookupRunner extends HttpServlet
     
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        try (ObjectOutputStream out = new ObjectOutputStream(resp.getOutputStream())) {
-            out.writeObject(new long[]{
+        try (OutputStream out = HttpCompression.openResponse(req, resp)) {
+            WireFormat.write(new long[]{
                 requestScoped.getId(),
                 applicationScoped.getId(),
                 dependentBean1.getId(),
-                dependentBean2.getId()});
+                dependentBean2.getId()},
+                out);
         }
     }
 }
\ No newline at end of file
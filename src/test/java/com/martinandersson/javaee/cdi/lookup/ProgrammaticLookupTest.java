@@ -1,7 +1,10 @@
 package com.martinandersson.javaee.cdi.lookup;
 
 import com.martinandersson.javaee.utils.DeploymentBuilder;
+import com.martinandersson.javaee.utils.HttpCompression;
 import com.martinandersson.javaee.utils.HttpRequests;
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
 import java.net.URL;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.container.test.api.RunAsClient;
@@ -39,7 +42,10 @@ public class ProgrammaticLookupTest
                      ApplicationScopedBean.class,
                      DependentBean.class,
                      RequestScopedBean.class,
-                     ProgrammaticLookupRunner.class)
+                     ProgrammaticLookupRunner.class,
+                     HttpCompression.class,
+                     WireFormat.class,
+                     WireCodec.class)
                 .addEmptyBeansXMLFile()
                 .build();
     }
@@ -3,8 +3,11 @@ package com.martinandersson.javaee.cdi.qualifiers;
 import com.martinandersson.javaee.cdi.qualifiers.lib.Healthy;
 import com.martinandersson.javaee.cdi.qualifiers.lib.Caloric;
 import com.martinandersson.javaee.cdi.qualifiers.lib.Unhealthy;
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import javax.inject.Inject;
 import javax.servlet.ServletException;
@@ -46,18 +49,42 @@ public class QualifierDriver extends HttpServlet
     
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        Report<Class<? extends Caloric>> report = new Report(
+        Report<Class<? extends Caloric>> report = new Report<>(
                 water.getClass(), broccoli.getClass(), meat.getClass());
         
-        ObjectOutputStream out = new ObjectOutputStream(resp.getOutputStream());
-        out.writeObject(report);
+        WireFormat.write(report, resp.getOutputStream());
     }
     
     
     
+    @WireCodec.Registered
     static class Report<T extends Class<? extends Caloric>> implements Serializable {
         final T defaultType, healthyType, unhealthyType;
         
+        static {
+            // A class literal is raw, the only report ever sent is a report of Caloric types
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            final Class<Report<Class<? extends Caloric>>> type = (Class) Report.class;
+            
+            WireFormat.register(type, new WireCodec<Report<Class<? extends Caloric>>>() {
+                @Override public void write(Report<Class<? extends Caloric>> value, DataOutput out) throws IOException {
+                    WireFormat.writeString(out, value.defaultType.getName());
+                    WireFormat.writeString(out, value.healthyType.getName());
+                    WireFormat.writeString(out, value.unhealthyType.getName());
+                }
+                @Override public Report<Class<? extends Caloric>> read(DataInput in) throws IOException, ClassNotFoundException {
+                    return new Report<>(
+                            type(in),
+                            type(in),
+                            type(in));
+                }
+                private Class<? extends Caloric> type(DataInput in) throws IOException, ClassNotFoundException {
+                    return Class.forName(WireFormat.readString(in), false, Report.class.getClassLoader())
+                            .asSubclass(Caloric.class);
+                }
+            });
+        }
+        
         Report(T defaultType, T healthyType, T unhealthyType) {
             this.defaultType = defaultType;
             this.healthyType = healthyType;
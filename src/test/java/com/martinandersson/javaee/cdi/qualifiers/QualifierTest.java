@@ -9,6 +9,8 @@ import com.martinandersson.javaee.cdi.qualifiers.lib.Unhealthy;
 import com.martinandersson.javaee.cdi.qualifiers.lib.Water;
 import com.martinandersson.javaee.utils.DeploymentBuilder;
 import com.martinandersson.javaee.utils.HttpRequests;
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
 import java.net.URL;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.container.test.api.RunAsClient;
@@ -35,6 +37,10 @@ public class QualifierTest
                   // Driver
                   QualifierDriver.class,
                 
+                  // Wire format of the report
+                  WireFormat.class,
+                  WireCodec.class,
+                
                   // Qualifiers
                   Healthy.class,
                   Unhealthy.class,
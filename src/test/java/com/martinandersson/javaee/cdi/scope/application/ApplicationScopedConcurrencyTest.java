@@ -1,6 +1,7 @@
 package com.martinandersson.javaee.cdi.scope.application;
 
 import com.martinandersson.javaee.utils.DeploymentBuilder;
+import com.martinandersson.javaee.utils.LatencyHistogram;
 import com.martinandersson.javaee.utils.PhasedExecutorService;
 import javax.annotation.Resource;
 import javax.enterprise.concurrent.ManagedThreadFactory;
@@ -31,7 +32,8 @@ public class ApplicationScopedConcurrencyTest {
         return new DeploymentBuilder(ApplicationScopedConcurrencyTest.class)
                 .addEmptyBeansXMLFile()
                 .add(ConcurrentInvocationCounter.class,
-                     PhasedExecutorService.class)
+                     PhasedExecutorService.class,
+                     LatencyHistogram.class)
                 .build();
     }
     
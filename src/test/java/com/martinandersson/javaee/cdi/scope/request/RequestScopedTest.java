@@ -4,6 +4,8 @@ import com.martinandersson.javaee.utils.DeploymentBuilder;
 import com.martinandersson.javaee.utils.HttpRequests;
 import com.martinandersson.javaee.utils.HttpRequests.RequestParameter;
 import com.martinandersson.javaee.utils.PhasedExecutorService;
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
 import java.net.URL;
 import java.util.List;
 import java.util.OptionalInt;
@@ -48,6 +50,7 @@ public class RequestScopedTest
     public static WebArchive buildDeployment() {
         return new DeploymentBuilder(RequestScopedTest.class)
                 .addTestPackage()
+                .add(WireFormat.class, WireCodec.class)
                 .build();
     }
     
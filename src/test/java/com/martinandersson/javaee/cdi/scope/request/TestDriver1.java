@@ -1,7 +1,10 @@
 package com.martinandersson.javaee.cdi.scope.request;
 
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.concurrent.TimeUnit;
 import javax.ejb.EJB;
@@ -45,16 +48,34 @@ public class TestDriver1 extends HttpServlet {
                 applicationScopedBean.getIdOfNestedRequestedScopedBean(),
                 statelessBean.getIdOfNestedRequestedScopedBean());
         
-        ObjectOutputStream out = new ObjectOutputStream(resp.getOutputStream());
-        out.writeObject(report);
+        WireFormat.write(report, resp.getOutputStream());
     }
     
+    @WireCodec.Registered
     public static final class Report implements Serializable {
     
         final int servletInjectedRequestScopedId,
                   selfNestedRequestScopedId,
                   singletonOwnedRequestScopedId,
                   statelessOwnedRequestScopedId;
+        
+        static {
+            WireFormat.register(Report.class, new WireCodec<Report>() {
+                @Override public void write(Report value, DataOutput out) throws IOException {
+                    WireFormat.writeVarInt(out, value.servletInjectedRequestScopedId);
+                    WireFormat.writeVarInt(out, value.selfNestedRequestScopedId);
+                    WireFormat.writeVarInt(out, value.singletonOwnedRequestScopedId);
+                    WireFormat.writeVarInt(out, value.statelessOwnedRequestScopedId);
+                }
+                @Override public Report read(DataInput in) throws IOException {
+                    return new Report(
+                            WireFormat.readVarInt(in),
+                            WireFormat.readVarInt(in),
+                            WireFormat.readVarInt(in),
+                            WireFormat.readVarInt(in));
+                }
+            });
+        }
 
         Report(int servletInjectedRequestScopedId,
                int selfNestedRequestScopedId,
@@ -1,5 +1,10 @@
 package com.martinandersson.javaee.ejb.sessionbeans.testdriver;
 
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -10,10 +15,26 @@ import java.io.Serializable;
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
+@WireCodec.Registered
 public class ExecutionSettings implements Serializable {
     private final Operation operation;
     private final EJBType type;
     
+    static {
+        // Client and server share the same enum classes, ordinals will do
+        WireFormat.register(ExecutionSettings.class, new WireCodec<ExecutionSettings>() {
+            @Override public void write(ExecutionSettings value, DataOutput out) throws IOException {
+                out.writeByte(value.operation.ordinal());
+                out.writeByte(value.type.ordinal());
+            }
+            @Override public ExecutionSettings read(DataInput in) throws IOException {
+                return new ExecutionSettings(
+                        Operation.values()[in.readUnsignedByte()],
+                        EJBType.values()[in.readUnsignedByte()]);
+            }
+        });
+    }
+    
     public ExecutionSettings(Operation operation, EJBType type) {
         this.operation = operation;
         this.type = type;
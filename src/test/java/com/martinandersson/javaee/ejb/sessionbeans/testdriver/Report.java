@@ -1,15 +1,41 @@
 package com.martinandersson.javaee.ejb.sessionbeans.testdriver;
 
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
+@WireCodec.Registered
 public class Report implements Serializable {
     public final int beanId1, beanId2;
     public final Exception exception; // JDK 8's Optional is not Serializable.
     
+    static {
+        WireFormat.register(Report.class, new WireCodec<Report>() {
+            @Override public void write(Report value, DataOutput out) throws IOException {
+                WireFormat.writeVarInt(out, value.beanId1);
+                WireFormat.writeVarInt(out, value.beanId2);
+                WireFormat.writeSerializable(out, value.exception);
+            }
+            @Override public Report read(DataInput in) throws IOException, ClassNotFoundException {
+                final int beanId1 = WireFormat.readVarInt(in),
+                          beanId2 = WireFormat.readVarInt(in);
+                
+                final Exception exception = WireFormat.readSerializable(in);
+                
+                return exception == null ?
+                        new Report(beanId1, beanId2) :
+                        new Report(exception);
+            }
+        });
+    }
+    
     public Report(int beanId1, int beanId2) {
         this.beanId1 = beanId1;
         this.beanId2 = beanId2;
@@ -4,10 +4,11 @@ import com.martinandersson.javaee.ejb.sessionbeans.AbstractSessionBean;
 import com.martinandersson.javaee.ejb.sessionbeans.SingletonBean;
 import com.martinandersson.javaee.ejb.sessionbeans.StatefulBean;
 import com.martinandersson.javaee.ejb.sessionbeans.StatelessBean;
+import com.martinandersson.javaee.utils.HttpCompression;
 import com.martinandersson.javaee.utils.PhasedExecutorService;
+import com.martinandersson.javaee.utils.WireFormat;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -30,7 +31,10 @@ import javax.servlet.http.HttpServletResponse;
  * {@code EJBType}.<p>
  * 
  * The settings (Operation and EJBType), is passed to the Servlet in the POST
- * body as an {@code ExecutionSettings} object.
+ * body as an {@code ExecutionSettings} object. Settings and the {@code Report}
+ * returned are both written using {@linkplain WireFormat}. The report is
+ * compressed if the client accept it and the report is large, which may happen
+ * if it carries an exception.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -56,12 +60,10 @@ public class TestDriver extends HttpServlet
     
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        ObjectInputStream in = new ObjectInputStream(req.getInputStream());
-        
         final ExecutionSettings settings;
         
         try {
-            settings = (ExecutionSettings) in.readObject();
+            settings = WireFormat.read(HttpCompression.openRequest(req));
             LOGGER.info(() -> "Will run session bean test using: " + settings);
         }
         catch (ClassNotFoundException e) {
@@ -100,8 +102,9 @@ public class TestDriver extends HttpServlet
                 throw new UnsupportedOperationException("Have no implementation for: " + settings.getOperation());
         }
         
-        ObjectOutputStream out = new ObjectOutputStream(resp.getOutputStream());
-        out.writeObject(report);
+        try (OutputStream out = HttpCompression.openResponse(req, resp)) {
+            WireFormat.write(report, out);
+        }
     }
     
     /**
@@ -199,8 +202,14 @@ public class TestDriver extends HttpServlet
         try (PhasedExecutorService executor = new PhasedExecutorService(2, threadFactory)) {
             AbstractSessionBean bean = beans.getBean1();
             
+            PhasedExecutorService.Recorder recorder = new PhasedExecutorService.Recorder();
+            executor.setRecorder(recorder);
+            
             List<Future<Integer>> ids = executor.invokeManyTimes(bean::sleepAndGetId, 2);
             
+            // Serialized access show up as task durations twice the sleep
+            LOGGER.fine(() -> String.valueOf(recorder.getPhase(0)));
+            
             return new Report(ids.get(0).get(), ids.get(1).get());
         }
         catch (InterruptedException | ExecutionException e) {
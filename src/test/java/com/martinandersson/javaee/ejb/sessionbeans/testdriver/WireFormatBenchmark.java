@@ -0,0 +1,99 @@
+package com.martinandersson.javaee.ejb.sessionbeans.testdriver;
+
+import com.martinandersson.javaee.utils.WireFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Compare size and speed of {@linkplain WireFormat} against Java
+ * serialization, for some of the objects sent by the test driver of this
+ * package.<p>
+ * 
+ * This is not a test. Run the main method from the IDE.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class WireFormatBenchmark
+{
+    /**
+     * Written to by each measured call, so that the JIT can not remove calls
+     * that has no other visible effect.
+     */
+    private static volatile int sink;
+    
+    private WireFormatBenchmark() {
+        // Empty
+    }
+    
+    /**
+     * Prints a table with the size of each sample and the time it takes to
+     * encode and decode it.
+     * 
+     * @param ignored ignored
+     * 
+     * @throws Exception if a codec fails
+     */
+    public static void main(String... ignored) throws Exception {
+        final Object[] samples = {
+            new Report(1, 2),
+            new Report(new IllegalStateException("Bean is gone.")),
+            new ExecutionSettings(Operation.CALL_ONE_CONCURRENTLY, EJBType.STATEFUL),
+            new long[]{ 1, 2, 3, 4 } };
+        
+        System.out.println(String.format("%-20s %10s %10s %12s %12s %12s %12s",
+                "", "bytes", "java bytes", "encode ns", "java enc ns", "decode ns", "java dec ns"));
+        
+        for (Object sample : samples) {
+            final byte[] wire = WireFormat.toBytes(sample),
+                         java = toJavaBytes(sample);
+            
+            final double encode = nanosPerOp(() -> WireFormat.toBytes(sample)),
+                         decode = nanosPerOp(() -> WireFormat.fromBytes(wire)),
+                         javaEncode = nanosPerOp(() -> toJavaBytes(sample)),
+                         javaDecode = nanosPerOp(() ->
+                             new ObjectInputStream(new ByteArrayInputStream(java)).readObject());
+            
+            System.out.println(String.format("%-20s %10d %10d %12.0f %12.0f %12.0f %12.0f",
+                    sample.getClass().getSimpleName(), wire.length, java.length,
+                    encode, javaEncode, decode, javaDecode));
+        }
+    }
+    
+    private static byte[] toJavaBytes(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Returns the fastest average time of a few rounds, each calling the
+     * provided operation many times.
+     */
+    private static double nanosPerOp(Callable<?> operation) throws Exception {
+        final int rounds = 10, iterations = 20_000;
+        
+        double best = Double.MAX_VALUE;
+        
+        for (int r = 0; r < rounds; ++r) {
+            final long then = System.nanoTime();
+            int hashes = 0;
+            
+            for (int i = 0; i < iterations; ++i) {
+                hashes += System.identityHashCode(operation.call());
+            }
+            
+            best = Math.min(best, (double) (System.nanoTime() - then) / iterations);
+            sink = hashes;
+        }
+        
+        return best;
+    }
+}
@@ -7,8 +7,12 @@ import com.martinandersson.javaee.ejb.sessionbeans.testdriver.Operation;
 import com.martinandersson.javaee.ejb.sessionbeans.testdriver.Report;
 import com.martinandersson.javaee.ejb.sessionbeans.testdriver.TestDriver;
 import com.martinandersson.javaee.utils.DeploymentBuilder;
+import com.martinandersson.javaee.utils.HttpCompression;
 import com.martinandersson.javaee.utils.HttpRequests;
+import com.martinandersson.javaee.utils.LatencyHistogram;
 import com.martinandersson.javaee.utils.PhasedExecutorService;
+import com.martinandersson.javaee.utils.WireCodec;
+import com.martinandersson.javaee.utils.WireFormat;
 import java.net.URL;
 import java.util.Objects;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -27,7 +31,8 @@ abstract class AbstractSessionTest
     private static Archive<?> buildDeployment() {
         return new DeploymentBuilder(AbstractSessionTest.class)
                 .add(true, AbstractSessionBean.class, TestDriver.class)
-                .add(PhasedExecutorService.class)
+                .add(PhasedExecutorService.class, LatencyHistogram.class,
+                     WireFormat.class, WireCodec.class, HttpCompression.class)
                 .build();
     }
     
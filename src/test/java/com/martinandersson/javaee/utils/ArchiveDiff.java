@@ -0,0 +1,279 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.Asset;
+
+/**
+ * The difference between an archive and a previously exported version of
+ * it.<p>
+ * 
+ * Entries are compared by content. Nested archives, for example libraries in
+ * {@code WEB-INF/lib}, are compared by the names and content of their
+ * entries; the time stamps that ShrinkWrap write each time a nested archive
+ * is exported do not make a difference.<p>
+ * 
+ * Paths are absolute archive paths, for example {@code
+ * "/WEB-INF/classes/com/martinandersson/javaee/utils/Lookup.class"}.
+ * 
+ * @see HotRedeployExtension
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class ArchiveDiff
+{
+    private static final String CLASSES = "/WEB-INF/classes/";
+    
+    private final boolean initial;
+    
+    private final SortedSet<String> added, changed, removed;
+    
+    private ArchiveDiff(boolean initial, SortedSet<String> added, SortedSet<String> changed, SortedSet<String> removed) {
+        this.initial = initial;
+        this.added = Collections.unmodifiableSortedSet(added);
+        this.changed = Collections.unmodifiableSortedSet(changed);
+        this.removed = Collections.unmodifiableSortedSet(removed);
+    }
+    
+    /**
+     * Compare the provided archive with a previously exported version of it.
+     * <p>
+     * 
+     * If there is no exported version, or the export is not a file, then all
+     * entries of the archive are added and the diff is {@linkplain
+     * #isInitial() initial}.
+     * 
+     * @param archive current version
+     * @param previous file exported earlier (may be {@code null})
+     * 
+     * @return the difference
+     * 
+     * @throws IOException if reading the previous version fails
+     */
+    public static ArchiveDiff of(Archive<?> archive, Path previous) throws IOException {
+        final Map<String, byte[]> current = digest(archive);
+        
+        if (previous == null || !Files.isRegularFile(previous)) {
+            return new ArchiveDiff(true, new TreeSet<>(current.keySet()), new TreeSet<>(), new TreeSet<>());
+        }
+        
+        final Map<String, byte[]> old = digest(previous);
+        
+        final SortedSet<String> added = new TreeSet<>(),
+                                changed = new TreeSet<>(),
+                                removed = new TreeSet<>(old.keySet());
+        
+        current.forEach((path, hash) -> {
+            final byte[] was = old.get(path);
+            
+            if (was == null) {
+                added.add(path);
+            }
+            else if (!Arrays.equals(was, hash)) {
+                changed.add(path);
+            }
+        });
+        
+        removed.removeAll(current.keySet());
+        
+        return new ArchiveDiff(false, added, changed, removed);
+    }
+    
+    
+    
+    /**
+     * Returns {@code true} if there was no previous version to compare with.
+     * 
+     * @return {@code true} if there was no previous version to compare with
+     */
+    public boolean isInitial() {
+        return initial;
+    }
+    
+    /**
+     * Returns {@code true} if the archive did not change.
+     * 
+     * @return {@code true} if the archive did not change
+     */
+    public boolean isEmpty() {
+        return !initial && added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+    
+    /**
+     * Returns {@code true} if all differences are class files and resources in
+     * {@code /WEB-INF/classes}. Descriptors such as {@code beans.xml} and
+     * libraries did not change.
+     * 
+     * @return {@code true} if only classes and resources changed
+     */
+    public boolean isClassesOnly() {
+        return !initial &&
+                added.stream().allMatch(p -> p.startsWith(CLASSES)) &&
+                changed.stream().allMatch(p -> p.startsWith(CLASSES)) &&
+                removed.stream().allMatch(p -> p.startsWith(CLASSES));
+    }
+    
+    /**
+     * Returns paths of entries not in the previous version.
+     * 
+     * @return paths of entries not in the previous version (unmodifiable)
+     */
+    public SortedSet<String> getAdded() {
+        return added;
+    }
+    
+    /**
+     * Returns paths of entries whose content changed.
+     * 
+     * @return paths of entries whose content changed (unmodifiable)
+     */
+    public SortedSet<String> getChanged() {
+        return changed;
+    }
+    
+    /**
+     * Returns paths of entries only in the previous version.
+     * 
+     * @return paths of entries only in the previous version (unmodifiable)
+     */
+    public SortedSet<String> getRemoved() {
+        return removed;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(ArchiveDiff.class.getSimpleName())
+                .append("[initial=").append(initial)
+                .append(", added=").append(added)
+                .append(", changed=").append(changed)
+                .append(", removed=").append(removed)
+                .append(']').toString();
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    private static Map<String, byte[]> digest(Archive<?> archive) throws IOException {
+        final Map<String, byte[]> hashes = new HashMap<>();
+        
+        for (Node node : archive.getContent().values()) {
+            final Asset asset = node.getAsset();
+            
+            if (asset == null) {
+                continue; // Directory
+            }
+            
+            final String path = node.getPath().get();
+            
+            try (InputStream in = asset.openStream()) {
+                hashes.put(path, digest(path, in));
+            }
+        }
+        
+        return hashes;
+    }
+    
+    private static Map<String, byte[]> digest(Path zip) throws IOException {
+        final Map<String, byte[]> hashes = new HashMap<>();
+        
+        try (ZipFile file = new ZipFile(zip.toFile())) {
+            final Enumeration<? extends ZipEntry> entries = file.entries();
+            
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                
+                final String path = "/" + entry.getName();
+                
+                try (InputStream in = file.getInputStream(entry)) {
+                    hashes.put(path, digest(path, in));
+                }
+            }
+        }
+        
+        return hashes;
+    }
+    
+    private static byte[] digest(String path, InputStream in) throws IOException {
+        final MessageDigest md = sha256();
+        
+        if (isArchive(path)) {
+            // Sorted by name, the order of entries in a zip file is arbitrary
+            final Map<String, byte[]> entries = new TreeMap<>();
+            
+            try (ZipInputStream zip = new ZipInputStream(in)) {
+                for (ZipEntry e; (e = zip.getNextEntry()) != null;) {
+                    if (!e.isDirectory()) {
+                        entries.put(e.getName(), digest(e.getName(), new ByteArrayInputStream(readAll(zip))));
+                    }
+                }
+            }
+            
+            entries.forEach((name, hash) -> {
+                md.update(name.getBytes(StandardCharsets.UTF_8));
+                md.update(hash);
+            });
+        }
+        else {
+            final byte[] buffer = new byte[8192];
+            
+            for (int n; (n = in.read(buffer)) != -1;) {
+                md.update(buffer, 0, n);
+            }
+        }
+        
+        return md.digest();
+    }
+    
+    private static boolean isArchive(String path) {
+        return path.endsWith(".jar") || path.endsWith(".war") || path.endsWith(".rar");
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        
+        for (int n; (n = in.read(buffer)) != -1;) {
+            out.write(buffer, 0, n);
+        }
+        
+        return out.toByteArray();
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is required by the Java platform.", e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the time it takes to build the archives of all {@code @Deployment}
+ * methods in the project, which is time spent before the first test can
+ * run.<p>
+ * 
+ * Each method is invoked in a few modes: with serial and parallel assembly
+ * by {@linkplain DeploymentBuilder} and with the archive cache of the builder
+ * cold and warm. The first round is a warm-up and not reported. The cold
+ * cache run starts with an empty in-memory cache and a new, empty cache
+ * directory, so archives cached by earlier runs do not count.<p>
+ * 
+ * Deployment methods that fail, for example because Maven can not resolve
+ * the Java DB driver when offline, are reported and then excluded.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class DeploymentBenchmark
+{
+    private DeploymentBenchmark() {
+        // Empty
+    }
+    
+    
+    
+    public static void main(String... ignored) throws Exception {
+        final List<Method> deployments = SharedDeployment.findDeployments();
+        
+        System.out.println("Found " + deployments.size() + " @Deployment methods.");
+        
+        // The builder log each archive, we print our own numbers
+        final Logger builderLog = Logger.getLogger(DeploymentBuilder.class.getName());
+        final Level level = builderLog.getLevel();
+        builderLog.setLevel(Level.WARNING);
+        
+        final boolean cacheEnabled = DeploymentBuilder.cacheEnabled,
+                      parallel = DeploymentBuilder.parallel;
+        
+        final Path cacheDir = DeploymentBuilder.cacheDir,
+                   coldDir = Files.createTempDirectory("archive-cache");
+        
+        try {
+            DeploymentBuilder.cacheEnabled = false;
+            run("warm-up", deployments, false, true);
+            run("serial", deployments, false, false);
+            run("parallel", deployments, true, false);
+            
+            DeploymentBuilder.cacheEnabled = true;
+            DeploymentBuilder.cacheDir = coldDir;
+            DeploymentBuilder.ARCHIVES.clear();
+            run("parallel, cold cache", deployments, true, false);
+            run("parallel, warm cache", deployments, true, false);
+        }
+        finally {
+            DeploymentBuilder.cacheEnabled = cacheEnabled;
+            DeploymentBuilder.parallel = parallel;
+            DeploymentBuilder.cacheDir = cacheDir;
+            
+            // Archives of the temporary directory must not be served from memory
+            DeploymentBuilder.ARCHIVES.clear();
+            
+            builderLog.setLevel(level);
+            delete(coldDir);
+        }
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    /**
+     * Invoke all deployment methods, remove those that fail and print the
+     * total time of the rest.
+     */
+    private static void run(String mode, List<Method> deployments, boolean parallel, boolean warmUp) {
+        DeploymentBuilder.parallel = parallel;
+        
+        long total = 0, slowest = 0;
+        Method slowestMethod = null;
+        
+        for (Method m : new ArrayList<>(deployments)) {
+            final long then = System.nanoTime();
+            
+            try {
+                m.invoke(null);
+            }
+            catch (InvocationTargetException | IllegalAccessException | RuntimeException | LinkageError e) {
+                Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+                
+                System.out.println("Excluded " + name(m) + ": " + cause);
+                deployments.remove(m);
+                continue;
+            }
+            
+            final long nanos = System.nanoTime() - then;
+            total += nanos;
+            
+            if (nanos > slowest) {
+                slowest = nanos;
+                slowestMethod = m;
+            }
+        }
+        
+        if (warmUp) {
+            return;
+        }
+        
+        System.out.println(String.format("%-22s %3d deployments in %6d ms (mean %5.1f ms, slowest %4d ms: %s)",
+                mode + ":", deployments.size(), total / 1_000_000,
+                deployments.isEmpty() ? 0 : total / 1e6 / deployments.size(),
+                slowest / 1_000_000, slowestMethod == null ? "-" : name(slowestMethod)));
+    }
+    
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+    
+    private static String name(Method m) {
+        return m.getDeclaringClass().getSimpleName() + "." + m.getName() + "()";
+    }
+}
@@ -2,18 +2,43 @@ package com.martinandersson.javaee.utils;
 
 import com.martinandersson.javaee.resources.ArquillianDS;
 import com.martinandersson.javaee.resources.SchemaGenerationStrategy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Array;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.jboss.shrinkwrap.api.importer.ZipImporter;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
@@ -24,7 +49,31 @@ import org.jboss.shrinkwrap.resolver.api.maven.Maven;
  * Currently, the only outcome of this builder is a {@code WebArchive}
  * (.war).<p>
  * 
- * The builder is not reusable. {@linkplain #build()} crash if called twice.
+ * The builder is not reusable. {@linkplain #build()} crash if called twice.<p>
+ * 
+ * Built archives may be cached, enabled using system property {@code
+ * com.martinandersson.javaee.utils.DeploymentBuilder.cache}. The cache is
+ * keyed by a hash of the archive content: the bytes of all class files added,
+ * the {@code beans.xml} flag and the persistence unit file. An identical
+ * deployment, for example another test class that deploy the same types, is
+ * copied from the cache instead of being assembled again. The cache is kept
+ * in memory and in directory {@code target/archive-cache} so that it survives
+ * JVM runs. Changing a class file change the hash. The Java DB driver is
+ * hashed by its Maven coordinate only, so if a cached archive is suspected to
+ * be stale, delete the cache directory. The cache directory may be changed
+ * using system property {@code
+ * com.martinandersson.javaee.utils.DeploymentBuilder.cacheDir}.<p>
+ * 
+ * An archive not found in the cache is assembled in parallel using the common
+ * fork-join pool, unless system property {@code
+ * com.martinandersson.javaee.utils.DeploymentBuilder.serial} is set. The
+ * content of built archives is listed on level {@code FINE}. See {@linkplain
+ * DeploymentBenchmark} for the time it takes to build all deployments.<p>
+ * 
+ * Archives built by this builder may be deployed together as one archive for
+ * the whole test suite, see {@linkplain SharedDeployment}, or be kept
+ * deployed between test runs and only redeployed when they change, see
+ * {@linkplain HotRedeployExtension}.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -32,6 +81,26 @@ public class DeploymentBuilder
 {
     private static final Logger LOGGER = Logger.getLogger(DeploymentBuilder.class.getName());
     
+    /** Not final, {@linkplain DeploymentBenchmark} toggle this. */
+    static volatile boolean cacheEnabled = Boolean.getBoolean(
+            DeploymentBuilder.class.getName() + ".cache");
+    
+    /** Not final, {@linkplain DeploymentBenchmark} toggle this. */
+    static volatile boolean parallel = !Boolean.getBoolean(
+            DeploymentBuilder.class.getName() + ".serial");
+    
+    /** Not final, {@linkplain DeploymentBenchmark} toggle this. */
+    static volatile Path cacheDir = Paths.get(System.getProperty(
+            DeploymentBuilder.class.getName() + ".cacheDir", "target/archive-cache"));
+    
+    /** Bump if the content of an archive change in a way not hashed. */
+    private static final String CACHE_FORMAT = "1";
+    
+    private static final String DERBY_COORDINATE = "org.apache.derby:derbyclient:10.10.2.0";
+    
+    /** Built archives, keyed by content hash. Cleared by {@linkplain DeploymentBenchmark}. */
+    static final ConcurrentMap<String, WebArchive> ARCHIVES = new ConcurrentHashMap<>();
+    
     /*
      * Next initialization uses Maven resolver to download the Java DB client.
      * WildFly doesn't have this driver so we need to package the driver
@@ -50,10 +119,13 @@ public class DeploymentBuilder
      * 
      * Read more: https://github.com/shrinkwrap/resolver
      */
-    private static final JavaArchive DERBY_DRIVER = Maven.resolver()
-            .resolve("org.apache.derby:derbyclient:10.10.2.0")
-            .withTransitivity()
-            .asSingle(JavaArchive.class);
+    private static final class DerbyDriver {
+        // Resolved when first used, which is never if all archives are cached
+        static final JavaArchive ARCHIVE = Maven.resolver()
+                .resolve(DERBY_COORDINATE)
+                .withTransitivity()
+                .asSingle(JavaArchive.class);
+    }
     
     
     
@@ -245,10 +317,76 @@ public class DeploymentBuilder
                 (fileNameSuffix != null ? fileNameSuffix : "") +
                 ".war";
         
+        final String key = cacheEnabled ? contentHash() : null;
+        
+        WebArchive war = key == null ? null : fromCache(key, fileName);
+        
+        final boolean cached = war != null;
+        
+        if (!cached) {
+            war = assemble(fileName);
+            
+            if (key != null) {
+                toCache(key, war);
+            }
+        }
+        
+        final WebArchive log = war;
+        
+        LOGGER.info(() -> log.getName() + " with " + log.getContent().size() + " entries " +
+                (cached ? "copied from cache" : "built") + " in (ms): " +
+                Duration.between(then, Instant.now()).toMillis());
+        
+        // Listing is large and only rendered if asked for
+        LOGGER.fine(() -> log.toString(true).replace("\n", "\n\t"));
+        
+        SharedDeployment.built(test, persistence, war);
+        
+        types.clear();
+        packages.clear();
+        built = true;
+        
+        return war;
+    }
+    
+    private WebArchive assemble(String fileName) {
         WebArchive war = ShrinkWrap.create(WebArchive.class, fileName);
         
-        types.forEach(war::addClass);
-        packages.forEach(war::addPackage);
+        /*
+         * ShrinkWrap's ServiceExtensionLoader cache the extensions it has
+         * loaded in HashMaps that are not synchronized. Two threads loading
+         * the same extension for the first time may corrupt the maps. Hence,
+         * the extensions used by the fork-join threads are loaded here, by the
+         * calling thread, before any work is handed over: JavaArchive for the
+         * fragments and ZipImporter for the Maven resolver.
+         */
+        ShrinkWrap.create(JavaArchive.class).as(ZipImporter.class);
+        
+        // Maven resolution is the slowest part, start it first
+        final ForkJoinTask<JavaArchive> derby = persistence == null ? null :
+                ForkJoinPool.commonPool().submit(() -> DerbyDriver.ARCHIVE);
+        
+        /*
+         * Scanning the class path for the classes of a package is what takes
+         * time. Each type and package is added to a fragment of its own, in
+         * parallel, then the fragments are merged into the archive. ShrinkWrap
+         * archives are not meant to be written by many threads.
+         */
+        
+        Stream<Consumer<JavaArchive>> parts = Stream.concat(
+                types.stream().map(type -> fragment -> fragment.addClass(type)),
+                packages.stream().map(pkg -> fragment -> fragment.addPackage(pkg)));
+        
+        if (parallel) {
+            parts = parts.parallel();
+        }
+        
+        parts.map(part -> {
+                    JavaArchive fragment = ShrinkWrap.create(JavaArchive.class);
+                    part.accept(fragment);
+                    return fragment; })
+             .collect(Collectors.toList())
+             .forEach(fragment -> war.merge(fragment, "/WEB-INF/classes"));
         
         if (beans) {
             war.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
@@ -269,18 +407,205 @@ public class DeploymentBuilder
              */
             
             war.addClass(ArquillianDS.class)
-               .addAsLibrary(DERBY_DRIVER)
+               .addAsLibrary(derby.join())
                .addAsResource(persistence.getFilename(), "META-INF/persistence.xml");
         }
         
-        LOGGER.info(() -> war.toString(true).replace("\n", "\n\t"));
-        LOGGER.info(() -> "Built in (ms): " + Duration.between(then, Instant.now()).toMillis());
+        return war;
+    }
+    
+    /**
+     * Returns a copy of a cached archive, or {@code null} if there is no
+     * archive with the provided key.
+     */
+    private static WebArchive fromCache(String key, String fileName) {
+        WebArchive cached = ARCHIVES.get(key);
         
-        types.clear();
-        packages.clear();
-        built = true;
+        if (cached == null) {
+            final Path file = cacheDir.resolve(key + ".war");
+            
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            
+            try {
+                cached = ShrinkWrap.create(ZipImporter.class, fileName)
+                        .importFrom(file.toFile())
+                        .as(WebArchive.class);
+            }
+            catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to import cached archive: " + file, e);
+                return null;
+            }
+            
+            ARCHIVES.putIfAbsent(key, cached);
+        }
         
-        return war;
+        // Archive name is part of the archive, and the name differ per test class
+        return ShrinkWrap.create(WebArchive.class, fileName).merge(cached);
+    }
+    
+    /**
+     * Store a copy of the provided archive in the cache. The archive itself is
+     * returned to Arquillian, which add libraries and protocol classes to it
+     * before deployment. Caching the same instance would leak these into the
+     * next deployment copied from the cache.
+     */
+    private static void toCache(String key, WebArchive war) {
+        ARCHIVES.putIfAbsent(key, ShrinkWrap.create(WebArchive.class, war.getName()).merge(war));
+        
+        final Path dir = cacheDir,
+                   file = dir.resolve(key + ".war");
+        
+        if (Files.exists(file)) {
+            return;
+        }
+        
+        try {
+            Files.createDirectories(dir);
+            
+            // Concurrent JVM:s may build the same archive
+            Path tmp = Files.createTempFile(dir, key, ".tmp");
+            war.as(ZipExporter.class).exportTo(tmp.toFile(), true);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to store archive in cache: " + file, e);
+        }
+    }
+    
+    /**
+     * Returns a hash of everything that goes into the archive.
+     */
+    private String contentHash() {
+        final MessageDigest md;
+        
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is required by the Java platform.", e);
+        }
+        
+        final ClassLoader loader = test.getClassLoader();
+        
+        try {
+            update(md, "format", CACHE_FORMAT);
+            
+            for (String type : sorted(types.stream().map(Class::getName))) {
+                update(md, "type", type);
+                
+                // ShrinkWrap add inner classes as well
+                final String path = type.replace('.', '/');
+                digestDirectory(md, loader, path.substring(0, Math.max(0, path.lastIndexOf('/'))),
+                        name -> name.equals(path + ".class") || name.startsWith(path + "$"));
+            }
+            
+            for (String pkg : sorted(packages.stream().map(Package::getName))) {
+                update(md, "package", pkg);
+                
+                digestDirectory(md, loader, pkg.replace('.', '/'),
+                        name -> name.endsWith(".class"));
+            }
+            
+            update(md, "beans", String.valueOf(beans));
+            
+            if (persistence != null) {
+                update(md, "persistence", persistence.getFilename());
+                update(md, "driver", DERBY_COORDINATE);
+                digestResource(md, loader.getResource(persistence.getFilename()));
+                digestResource(md, loader.getResource(ArquillianDS.class.getName().replace('.', '/') + ".class"));
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        final StringBuilder hex = new StringBuilder();
+        
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        
+        return hex.toString();
+    }
+    
+    private static List<String> sorted(Stream<String> names) {
+        return names.sorted().distinct().collect(Collectors.toList());
+    }
+    
+    private static void update(MessageDigest md, String label, String value) {
+        md.update((label + '=' + value + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Digest names and content of all files in the provided directory (not
+     * recursively), in all class path roots, whose path is accepted by the
+     * filter. A directory in a JAR file is digested by the JAR file's path,
+     * size and time of last modification.
+     */
+    private static void digestDirectory(MessageDigest md, ClassLoader loader, String dir,
+            Predicate<String> filter) throws IOException
+    {
+        final Enumeration<URL> roots = loader.getResources(dir);
+        
+        while (roots.hasMoreElements()) {
+            final URL root = roots.nextElement();
+            
+            if ("file".equals(root.getProtocol())) {
+                final Path path;
+                
+                try {
+                    path = Paths.get(root.toURI());
+                }
+                catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+                
+                final List<Path> files;
+                
+                try (Stream<Path> listing = Files.list(path)) {
+                    files = listing.filter(Files::isRegularFile)
+                            .filter(f -> filter.test(dir + '/' + f.getFileName()))
+                            .sorted()
+                            .collect(Collectors.toList());
+                }
+                
+                for (Path f : files) {
+                    update(md, "file", dir + '/' + f.getFileName());
+                    md.update(Files.readAllBytes(f));
+                }
+            }
+            else if ("jar".equals(root.getProtocol())) {
+                final URL jar = ((JarURLConnection) root.openConnection()).getJarFileURL();
+                
+                try {
+                    Path path = Paths.get(jar.toURI());
+                    update(md, "jar", path + ":" + Files.size(path) + ":" + Files.getLastModifiedTime(path));
+                }
+                catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+            }
+            else {
+                // Unknown source, can not tell if it change
+                update(md, "unknown", root + ":" + System.nanoTime());
+            }
+        }
+    }
+    
+    private static void digestResource(MessageDigest md, URL resource) throws IOException {
+        if (resource == null) {
+            return;
+        }
+        
+        try (InputStream in = resource.openStream()) {
+            final byte[] buffer = new byte[8192];
+            
+            for (int n; (n = in.read(buffer)) != -1;) {
+                md.update(buffer, 0, n);
+            }
+        }
     }
 }
 
@@ -0,0 +1,50 @@
+package com.martinandersson.javaee.utils;
+
+import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
+import org.jboss.arquillian.container.spi.client.container.DeploymentException;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.shrinkwrap.api.Archive;
+
+/**
+ * Pushes changed entries of an archive to a container that already has a
+ * previous version of the archive deployed.<p>
+ * 
+ * Neither of the remote adapters used by this project can update a deployed
+ * archive in place, so there is no implementation in the project. A container
+ * that can, for example a managed GlassFish that deploy exploded directories,
+ * may provide one in file {@code
+ * META-INF/services/com.martinandersson.javaee.utils.HotDeployer}. {@linkplain
+ * HotRedeployExtension} use the first implementation that support the
+ * container, and fall back to a full deployment if there is none.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public interface HotDeployer
+{
+    /**
+     * Returns {@code true} if this deployer can push changes to the provided
+     * container.
+     * 
+     * @param container the container
+     * 
+     * @return {@code true} if this deployer can push changes to the provided
+     *         container
+     */
+    boolean supports(DeployableContainer<?> container);
+    
+    /**
+     * Push the changes of the provided archive to the container.<p>
+     * 
+     * Only called if {@linkplain ArchiveDiff#isClassesOnly()} is {@code true}.
+     * 
+     * @param container the container
+     * @param archive the new version of the archive
+     * @param diff changes since the deployed version
+     * 
+     * @return metadata of the updated deployment
+     * 
+     * @throws DeploymentException if pushing the changes fails
+     */
+    ProtocolMetaData push(DeployableContainer<?> container, Archive<?> archive, ArchiveDiff diff)
+            throws DeploymentException;
+}
@@ -0,0 +1,350 @@
+package com.martinandersson.javaee.utils;
+
+import com.martinandersson.javaee.resources.SchemaGenerationStrategy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jboss.arquillian.config.descriptor.api.ArquillianDescriptor;
+import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
+import org.jboss.arquillian.container.spi.client.deployment.Deployment;
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentDescription;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.HTTPContext;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.Servlet;
+import org.jboss.arquillian.container.spi.context.annotation.DeploymentScoped;
+import org.jboss.arquillian.container.spi.event.DeployDeployment;
+import org.jboss.arquillian.container.spi.event.UnDeployDeployment;
+import org.jboss.arquillian.core.api.Instance;
+import org.jboss.arquillian.core.api.InstanceProducer;
+import org.jboss.arquillian.core.api.annotation.Inject;
+import org.jboss.arquillian.core.api.annotation.Observes;
+import org.jboss.arquillian.core.spi.EventContext;
+import org.jboss.arquillian.core.spi.LoadableExtension;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+
+/**
+ * Arquillian extension that keep test archives deployed between test runs
+ * and only redeploy what changed.<p>
+ * 
+ * Enabled using system property {@code
+ * com.martinandersson.javaee.utils.HotRedeployExtension.enabled}. Then test
+ * archives are not undeployed after the test class. Next time the archive is
+ * deployed, possibly in a later run, it is compared with the archive
+ * exported by Arquillian to the {@code deploymentExportPath} set in {@code
+ * arquillian.xml}, which is what the container has deployed:
+ * 
+ * <ul>
+ *   <li>If nothing changed, the deployment is reused.</li>
+ *   <li>If only classes and resources changed and a {@linkplain HotDeployer}
+ *       support the container, the changes are pushed to the container.</li>
+ *   <li>Otherwise, the old version is undeployed and the new version
+ *       deployed.</li>
+ * </ul>
+ * 
+ * The protocol metadata of a kept deployment is saved next to the exported
+ * archive, in a file with suffix {@code .metadata}. A test run with this
+ * extension disabled undeploy the kept archives before deploying them again.
+ * If the container lost the deployments, for example a new domain was
+ * created, then delete the export directory.<p>
+ * 
+ * A reused deployment is not restarted and keep its application state:
+ * singletons, caches, timers and the rows written to the database by earlier
+ * runs. Tests that need a fresh application must not rely on this extension.
+ * Archives with a persistence unit that drop and create the schema ({@linkplain
+ * SchemaGenerationStrategy#DROP_CREATE}) expect empty tables and are
+ * therefore never kept, they are deployed anew each run.<p>
+ * 
+ * Archives of {@linkplain SharedDeployment} are not handled by this
+ * extension.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class HotRedeployExtension implements LoadableExtension
+{
+    private static final Logger LOGGER = Logger.getLogger(HotRedeployExtension.class.getName());
+    
+    /**
+     * {@code true} if system property {@code
+     * com.martinandersson.javaee.utils.HotRedeployExtension.enabled} is set.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean(HotRedeployExtension.class.getName() + ".enabled");
+    
+    @Override
+    public void register(ExtensionBuilder builder) {
+        builder.observer(Observer.class);
+    }
+    
+    
+    
+    /**
+     * Intercept deployment events. Runs inside the deployment context, but
+     * outside {@linkplain SharedDeploymentExtension}.
+     */
+    public static class Observer
+    {
+        /** Where a web archive and a library put the persistence unit. */
+        private static final String[] PERSISTENCE_XML = {
+            "/WEB-INF/classes/META-INF/persistence.xml",
+            "/META-INF/persistence.xml" };
+        
+        @Inject
+        private Instance<ArquillianDescriptor> descriptor;
+        
+        @Inject @DeploymentScoped
+        private InstanceProducer<ProtocolMetaData> protocolMetaData;
+        
+        public void deploy(@Observes(precedence = -50) EventContext<DeployDeployment> context) throws Exception {
+            final Deployment deployment = context.getEvent().getDeployment();
+            final DeploymentDescription description = deployment.getDescription();
+            final Path export = exportFile(description);
+            
+            if (export == null || isShared(description)) {
+                context.proceed();
+                return;
+            }
+            
+            final Archive<?> archive = deployed(description);
+            final Path metadata = metadataFile(export);
+            final DeployableContainer<?> container = context.getEvent().getDeployableContainer();
+            final boolean kept = Files.isRegularFile(metadata),
+                          reusable = !dropsSchema(archive);
+            
+            if (ENABLED && !reusable) {
+                LOGGER.info(() -> archive.getName() + " drop and create the schema, will not be kept.");
+            }
+            
+            if (ENABLED && kept && reusable) {
+                final ArchiveDiff diff = ArchiveDiff.of(archive, export);
+                
+                if (diff.isEmpty()) {
+                    LOGGER.info(() -> archive.getName() + " unchanged, reusing deployment.");
+                    protocolMetaData.set(load(metadata));
+                    deployment.deployed();
+                    return;
+                }
+                
+                LOGGER.info(() -> archive.getName() + " changed, " + diff.getAdded().size() + " entries added, " +
+                        diff.getChanged().size() + " changed and " + diff.getRemoved().size() + " removed.");
+                
+                LOGGER.fine(diff::toString);
+                
+                final HotDeployer hot = diff.isClassesOnly() ? hotDeployer(container) : null;
+                
+                if (hot != null) {
+                    final ProtocolMetaData md = hot.push(container, archive, diff);
+                    
+                    // The export is what the container has deployed
+                    archive.as(ZipExporter.class).exportTo(export.toFile(), true);
+                    save(md, metadata);
+                    
+                    protocolMetaData.set(md);
+                    deployment.deployed();
+                    return;
+                }
+            }
+            
+            if (kept) {
+                undeployStale(container, archive, metadata);
+            }
+            
+            context.proceed();
+            
+            if (ENABLED && reusable && deployment.isDeployed()) {
+                save(protocolMetaData.get(), metadata);
+            }
+        }
+        
+        public void undeploy(@Observes(precedence = -50) EventContext<UnDeployDeployment> context) {
+            final Deployment deployment = context.getEvent().getDeployment();
+            final DeploymentDescription description = deployment.getDescription();
+            final Path export = exportFile(description);
+            
+            if (ENABLED && export != null && !isShared(description) && Files.isRegularFile(metadataFile(export))) {
+                // Kept deployed for the next run
+                deployment.undeployed();
+                return;
+            }
+            
+            context.proceed();
+        }
+        
+        /**
+         * Returns the file to which Arquillian export the provided deployment,
+         * or {@code null} if export is disabled or exploded.
+         */
+        private Path exportFile(DeploymentDescription description) {
+            if (!description.isArchiveDeployment()) {
+                return null;
+            }
+            
+            String dir = System.getProperty("arquillian.deploymentExportPath");
+            boolean exploded = Boolean.getBoolean("arquillian.deploymentExportExploded");
+            
+            final ArquillianDescriptor config = descriptor.get();
+            
+            if ((dir == null || dir.isEmpty()) && config != null) {
+                dir = config.engine().getDeploymentExportPath();
+                exploded |= Boolean.TRUE.equals(config.engine().getDeploymentExportExploded());
+            }
+            
+            if (dir == null || dir.isEmpty() || exploded) {
+                return null;
+            }
+            
+            // Same name as ArchiveDeploymentExporter use
+            return Paths.get(dir, description.getTarget().getName() + "_" +
+                    description.getName() + "_" + description.getArchive().getName());
+        }
+        
+        private static boolean isShared(DeploymentDescription description) {
+            return SharedDeployment.ENABLED && SharedDeployment.isModule(description.getArchive().getName());
+        }
+        
+        private static Archive<?> deployed(DeploymentDescription description) {
+            return description.testable() ? description.getTestableArchive() : description.getArchive();
+        }
+        
+        /**
+         * Returns {@code true} if the provided archive package the persistence
+         * unit of {@linkplain SchemaGenerationStrategy#DROP_CREATE}.
+         */
+        private static boolean dropsSchema(Archive<?> archive) throws IOException {
+            for (String path : PERSISTENCE_XML) {
+                final Node node = archive.get(path);
+                
+                if (node != null && node.getAsset() != null) {
+                    final byte[] packaged, dropCreate;
+                    
+                    try (InputStream in = node.getAsset().openStream()) {
+                        packaged = readAll(in);
+                    }
+                    
+                    try (InputStream in = HotRedeployExtension.class.getClassLoader()
+                            .getResourceAsStream(SchemaGenerationStrategy.DROP_CREATE.getFilename())) {
+                        dropCreate = in == null ? null : readAll(in);
+                    }
+                    
+                    return Arrays.equals(packaged, dropCreate);
+                }
+            }
+            
+            return false;
+        }
+        
+        private static byte[] readAll(InputStream in) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            
+            for (int n; (n = in.read(buffer)) != -1;) {
+                bytes.write(buffer, 0, n);
+            }
+            
+            return bytes.toByteArray();
+        }
+        
+        private static HotDeployer hotDeployer(DeployableContainer<?> container) {
+            for (HotDeployer d : ServiceLoader.load(HotDeployer.class)) {
+                if (d.supports(container)) {
+                    return d;
+                }
+            }
+            
+            return null;
+        }
+        
+        private static void undeployStale(DeployableContainer<?> container, Archive<?> archive, Path metadata) {
+            try {
+                // Containers undeploy by name
+                container.undeploy(archive);
+            }
+            catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to undeploy kept " + archive.getName() + ".", e);
+            }
+            
+            try {
+                Files.delete(metadata);
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete: " + metadata, e);
+            }
+        }
+        
+        private static Path metadataFile(Path export) {
+            return export.resolveSibling(export.getFileName() + ".metadata");
+        }
+        
+        private static void save(ProtocolMetaData md, Path file) {
+            final Properties props = new Properties();
+            int i = 0;
+            
+            for (HTTPContext http : md.getContexts(HTTPContext.class)) {
+                final String prefix = "context." + i++ + ".";
+                
+                if (http.getName() != null) {
+                    props.setProperty(prefix + "name", http.getName());
+                }
+                
+                props.setProperty(prefix + "host", http.getHost());
+                props.setProperty(prefix + "port", Integer.toString(http.getPort()));
+                
+                final List<Servlet> servlets = http.getServlets();
+                
+                for (int j = 0; j < servlets.size(); ++j) {
+                    props.setProperty(prefix + "servlet." + j + ".name", servlets.get(j).getName());
+                    props.setProperty(prefix + "servlet." + j + ".contextRoot", servlets.get(j).getContextRoot());
+                }
+            }
+            
+            try (OutputStream out = Files.newOutputStream(file)) {
+                props.store(out, "Protocol metadata of a kept deployment.");
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save protocol metadata: " + file, e);
+            }
+        }
+        
+        private static ProtocolMetaData load(Path file) throws IOException {
+            final Properties props = new Properties();
+            
+            try (InputStream in = Files.newInputStream(file)) {
+                props.load(in);
+            }
+            
+            final ProtocolMetaData md = new ProtocolMetaData();
+            
+            for (int i = 0; props.containsKey("context." + i + ".host"); ++i) {
+                final String prefix = "context." + i + ".";
+                
+                final String name = props.getProperty(prefix + "name"),
+                             host = props.getProperty(prefix + "host");
+                
+                final int port = Integer.parseInt(props.getProperty(prefix + "port"));
+                
+                final HTTPContext http = name == null ?
+                        new HTTPContext(host, port) : new HTTPContext(name, host, port);
+                
+                for (int j = 0; props.containsKey(prefix + "servlet." + j + ".name"); ++j) {
+                    http.add(new Servlet(
+                            props.getProperty(prefix + "servlet." + j + ".name"),
+                            props.getProperty(prefix + "servlet." + j + ".contextRoot")));
+                }
+                
+                md.addContext(http);
+            }
+            
+            return md;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Negotiated {@code gzip} and {@code deflate} content coding of HTTP message
+ * bodies, for test driver servlets and for {@linkplain HttpRequests}.<p>
+ * 
+ * A servlet that write his response to the stream returned from {@linkplain
+ * #openResponse(HttpServletRequest, HttpServletResponse)} get compression if
+ * the client accept it and the response is large enough. The stream buffer
+ * the response until a threshold has been reached. If the stream is closed
+ * before then, the response is sent uncompressed with a {@code
+ * Content-Length}. Otherwise, the response is compressed and streamed in
+ * chunks, so that a large response, for example a dump of all products in
+ * a table, flow to the client while being written. Flushing the stream send
+ * what has been written so far, also if the threshold has not been reached.
+ * <p>
+ * 
+ * The default threshold is {@value #DEFAULT_THRESHOLD} bytes and can be
+ * changed using the system property {@code
+ * com.martinandersson.javaee.utils.HttpCompression.threshold}. Smaller
+ * responses do not gain from compression; the gzip header and trailer alone
+ * is 18 bytes.<p>
+ * 
+ * {@code HttpRequests} and {@linkplain HttpConnectionPool} send {@code
+ * Accept-Encoding: gzip, deflate} with all requests and decode the response
+ * body accordingly.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class HttpCompression
+{
+    /**
+     * Default size in bytes below which a response is not compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+    
+    private static final int THRESHOLD = Integer.getInteger(
+            HttpCompression.class.getName() + ".threshold", DEFAULT_THRESHOLD);
+    
+    /** Value of the {@code Accept-Encoding} header sent by clients. */
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+    
+    private static final int BUFFER_SIZE = 8 * 1024;
+    
+    private HttpCompression() {
+        // Empty
+    }
+    
+    
+    
+    /**
+     * A content coding.
+     */
+    public enum Encoding {
+        GZIP ("gzip"),
+        DEFLATE ("deflate"),
+        IDENTITY ("identity");
+        
+        private final String token;
+        
+        private Encoding(String token) {
+            this.token = token;
+        }
+        
+        /**
+         * Returns the name of this coding as used in HTTP headers.
+         * 
+         * @return the name of this coding as used in HTTP headers
+         */
+        public String getToken() {
+            return token;
+        }
+        
+        /**
+         * Wrap the provided stream in a stream that encode what is written.<p>
+         * 
+         * Flushing the returned stream flush all bytes written so far, at a
+         * small cost of compression ratio.
+         * 
+         * @param out stream to wrap
+         * 
+         * @return an encoding stream, or {@code out} if this coding is {@code
+         *         IDENTITY}
+         * 
+         * @throws IOException if writing the header of the coding fails
+         */
+        public OutputStream encode(OutputStream out) throws IOException {
+            switch (this) {
+                case GZIP:     return new GZIPOutputStream(out, BUFFER_SIZE, true);
+                case DEFLATE:  return new DeflaterOutputStream(out, true);
+                default:       return out;
+            }
+        }
+        
+        /**
+         * Wrap the provided stream in a stream that decode what is read.
+         * 
+         * @param in stream to wrap
+         * 
+         * @return a decoding stream, or {@code in} if this coding is {@code
+         *         IDENTITY}
+         * 
+         * @throws IOException if reading the header of the coding fails
+         */
+        public InputStream decode(InputStream in) throws IOException {
+            switch (this) {
+                case GZIP:     return new GZIPInputStream(in, BUFFER_SIZE);
+                case DEFLATE:  return new InflaterInputStream(in);
+                default:       return in;
+            }
+        }
+        
+        /**
+         * Returns the coding named by the provided {@code Content-Encoding}
+         * header value.
+         * 
+         * @param contentEncoding header value (may be {@code null})
+         * 
+         * @return the coding, {@code IDENTITY} if {@code contentEncoding} is
+         *         {@code null} or empty
+         * 
+         * @throws IOException if the coding is not supported
+         */
+        public static Encoding of(String contentEncoding) throws IOException {
+            if (contentEncoding == null) {
+                return IDENTITY;
+            }
+            
+            switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+                case "":
+                case "identity":
+                    return IDENTITY;
+                case "gzip":
+                case "x-gzip":
+                    return GZIP;
+                case "deflate":
+                    return DEFLATE;
+                default:
+                    throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+            }
+        }
+    }
+    
+    
+    
+    /*
+     *  ------------
+     * | SERVER API |
+     *  ------------
+     */
+    
+    /**
+     * Returns the coding preferred by a client that sent the provided {@code
+     * Accept-Encoding} header value.<p>
+     * 
+     * {@code gzip} is preferred over {@code deflate} if both have the same
+     * quality value. Codings with quality value {@code 0} are not used.
+     * 
+     * @param acceptEncoding header value (may be {@code null})
+     * 
+     * @return the coding to use
+     */
+    public static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return Encoding.IDENTITY;
+        }
+        
+        double gzip = -1, deflate = -1, any = -1;
+        
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] params = coding.split(";");
+            
+            double q = 1;
+            
+            for (int i = 1; i < params.length; ++i) {
+                final String param = params[i].trim();
+                
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    }
+                    catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            
+            switch (params[0].trim().toLowerCase(Locale.ROOT)) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = q;
+                    break;
+                case "deflate":
+                    deflate = q;
+                    break;
+                case "*":
+                    any = q;
+                    break;
+            }
+        }
+        
+        if (gzip < 0) {
+            gzip = any;
+        }
+        
+        if (deflate < 0) {
+            deflate = any;
+        }
+        
+        if (gzip > 0 && gzip >= deflate) {
+            return Encoding.GZIP;
+        }
+        
+        return deflate > 0 ? Encoding.DEFLATE : Encoding.IDENTITY;
+    }
+    
+    /**
+     * Same as {@linkplain #openResponse(HttpServletRequest,
+     * HttpServletResponse, int)}, using the default threshold.
+     * 
+     * @param request request served
+     * @param response response to write
+     * 
+     * @return a stream to which the response body is written
+     */
+    public static OutputStream openResponse(HttpServletRequest request, HttpServletResponse response) {
+        return openResponse(request, response, THRESHOLD);
+    }
+    
+    /**
+     * Returns a stream to which the response body is written, compressed if
+     * the client accept it and the body is not smaller than the specified
+     * threshold.<p>
+     * 
+     * Status and headers such as {@code Content-Type} may be set up until
+     * the first flush or until the threshold has been reached. The client
+     * must close the stream.
+     * 
+     * @param request request served
+     * @param response response to write
+     * @param threshold number of bytes below which compression is skipped
+     * 
+     * @return a stream to which the response body is written
+     * 
+     * @throws IllegalArgumentException if {@code threshold} is negative
+     */
+    public static OutputStream openResponse(HttpServletRequest request, HttpServletResponse response, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Negative threshold: " + threshold);
+        }
+        
+        response.addHeader("Vary", "Accept-Encoding");
+        
+        return new ResponseStream(response,
+                negotiate(request.getHeader("Accept-Encoding")), threshold);
+    }
+    
+    /**
+     * Returns the body of the provided request, decoded according to the
+     * {@code Content-Encoding} header.
+     * 
+     * @param request request to read
+     * 
+     * @return the decoded request body
+     * 
+     * @throws IOException if the coding is not supported or reading fails
+     */
+    public static InputStream openRequest(HttpServletRequest request) throws IOException {
+        return Encoding.of(request.getHeader("Content-Encoding"))
+                .decode(request.getInputStream());
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    /**
+     * Buffer the body until the threshold is reached, then commit the response
+     * and write through an encoding stream.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final HttpServletResponse response;
+        
+        private final Encoding encoding;
+        
+        private final int threshold;
+        
+        /** Set to {@code null} when committed. */
+        private ByteArrayOutputStream buffer;
+        
+        /** Set when committed. */
+        private OutputStream target;
+        
+        private boolean closed;
+        
+        ResponseStream(HttpServletResponse response, Encoding encoding, int threshold) {
+            this.response = response;
+            this.encoding = encoding;
+            this.threshold = threshold;
+            this.buffer = new ByteArrayOutputStream(Math.min(threshold, BUFFER_SIZE));
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            
+            if (target == null) {
+                if (buffer.size() + len < threshold) {
+                    buffer.write(b, off, len);
+                    return;
+                }
+                
+                commit();
+            }
+            
+            target.write(b, off, len);
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            
+            if (target == null) {
+                commit();
+            }
+            
+            target.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            
+            closed = true;
+            
+            if (target == null) {
+                // Below threshold
+                response.setContentLength(buffer.size());
+                
+                try (OutputStream out = response.getOutputStream()) {
+                    buffer.writeTo(out);
+                }
+            }
+            else {
+                target.close();
+            }
+        }
+        
+        private void commit() throws IOException {
+            OutputStream out = response.getOutputStream();
+            
+            if (encoding != Encoding.IDENTITY) {
+                response.setHeader("Content-Encoding", encoding.getToken());
+                out = encoding.encode(out);
+            }
+            
+            buffer.writeTo(out);
+            buffer = null;
+            target = out;
+        }
+        
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed.");
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.martinandersson.javaee.utils;
+
+import com.martinandersson.javaee.utils.HttpCompression.Encoding;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of {@linkplain HttpCompression}: negotiation, the codings and the
+ * buffering response stream.<p>
+ * 
+ * The servlet request and response are dynamic proxies that record what the
+ * stream set, no server needed. The Java EE API jar lack the resource bundles
+ * of the servlet classes, empty ones are in {@code src/test/resources}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class HttpCompressionTest
+{
+    @Test
+    public void negotiate() {
+        assertEquals(Encoding.IDENTITY, HttpCompression.negotiate(null));
+        assertEquals(Encoding.IDENTITY, HttpCompression.negotiate(""));
+        assertEquals(Encoding.IDENTITY, HttpCompression.negotiate("br"));
+        
+        assertEquals(Encoding.GZIP, HttpCompression.negotiate("gzip, deflate"));
+        assertEquals(Encoding.GZIP, HttpCompression.negotiate("deflate, gzip"));
+        assertEquals(Encoding.GZIP, HttpCompression.negotiate("X-GZIP"));
+        assertEquals(Encoding.DEFLATE, HttpCompression.negotiate("deflate"));
+        
+        // Quality values
+        assertEquals(Encoding.DEFLATE, HttpCompression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(Encoding.DEFLATE, HttpCompression.negotiate("gzip;q=0, deflate;q=0.1"));
+        assertEquals(Encoding.IDENTITY, HttpCompression.negotiate("gzip;q=0"));
+        assertEquals(Encoding.IDENTITY, HttpCompression.negotiate("gzip;q=oops"));
+        
+        // Wildcard
+        assertEquals(Encoding.GZIP, HttpCompression.negotiate("*"));
+        assertEquals(Encoding.DEFLATE, HttpCompression.negotiate("gzip;q=0, *"));
+        assertEquals(Encoding.IDENTITY, HttpCompression.negotiate("*;q=0"));
+    }
+    
+    @Test
+    public void contentEncodingHeader() throws IOException {
+        assertEquals(Encoding.IDENTITY, Encoding.of(null));
+        assertEquals(Encoding.IDENTITY, Encoding.of(" "));
+        assertEquals(Encoding.IDENTITY, Encoding.of("identity"));
+        assertEquals(Encoding.GZIP, Encoding.of("GZip"));
+        assertEquals(Encoding.GZIP, Encoding.of("x-gzip"));
+        assertEquals(Encoding.DEFLATE, Encoding.of("deflate"));
+    }
+    
+    @Test(expected = IOException.class)
+    public void unsupportedContentEncoding() throws IOException {
+        Encoding.of("br");
+    }
+    
+    @Test
+    public void codingsRoundTrip() throws IOException {
+        final byte[] text = text(100_000);
+        
+        for (Encoding coding : Encoding.values()) {
+            final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            
+            try (OutputStream out = coding.encode(wire)) {
+                out.write(text);
+            }
+            
+            if (coding != Encoding.IDENTITY) {
+                assertTrue(coding + " did not compress.", wire.size() < text.length / 2);
+            }
+            
+            assertArrayEquals(coding.toString(), text, readAll(coding.decode(new ByteArrayInputStream(wire.toByteArray()))));
+        }
+    }
+    
+    @Test
+    public void flushSendWhatHasBeenWritten() throws IOException {
+        final byte[] first = "first part".getBytes(StandardCharsets.UTF_8);
+        
+        for (Encoding coding : new Encoding[]{ Encoding.GZIP, Encoding.DEFLATE }) {
+            final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            
+            OutputStream out = coding.encode(wire);
+            out.write(first);
+            out.flush();
+            
+            // Stream not closed, a reader must still get all of the first part
+            final InputStream in = coding.decode(new ByteArrayInputStream(wire.toByteArray()));
+            final byte[] read = new byte[first.length];
+            
+            int n = 0, r;
+            
+            while (n < read.length && (r = in.read(read, n, read.length - n)) != -1) {
+                n += r;
+            }
+            
+            assertArrayEquals(coding.toString(), first, read);
+        }
+    }
+    
+    @Test
+    public void smallResponseIsNotCompressed() throws IOException {
+        final FakeResponse response = new FakeResponse();
+        final byte[] body = text(100);
+        
+        try (OutputStream out = HttpCompression.openResponse(request("gzip, deflate"), response.proxy, 1024)) {
+            out.write(body);
+        }
+        
+        assertNull(response.headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.headers.get("Vary"));
+        assertEquals(body.length, response.contentLength);
+        assertArrayEquals(body, response.body.toByteArray());
+    }
+    
+    @Test
+    public void largeResponseIsCompressed() throws IOException {
+        final FakeResponse response = new FakeResponse();
+        final byte[] body = text(10_000);
+        
+        try (OutputStream out = HttpCompression.openResponse(request("gzip, deflate"), response.proxy, 1024)) {
+            // Written in small pieces, crossing the threshold halfway through one
+            for (int i = 0; i < body.length; i += 300) {
+                out.write(body, i, Math.min(300, body.length - i));
+            }
+        }
+        
+        assertEquals("gzip", response.headers.get("Content-Encoding"));
+        assertEquals("Streamed, length is not known.", -1, response.contentLength);
+        assertArrayEquals(body, readAll(Encoding.GZIP.decode(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+    
+    @Test
+    public void largeResponseToClientThatDoNotAcceptCompression() throws IOException {
+        final FakeResponse response = new FakeResponse();
+        final byte[] body = text(10_000);
+        
+        try (OutputStream out = HttpCompression.openResponse(request(null), response.proxy, 1024)) {
+            out.write(body);
+        }
+        
+        assertNull(response.headers.get("Content-Encoding"));
+        assertArrayEquals(body, response.body.toByteArray());
+    }
+    
+    @Test
+    public void flushCommitBelowThreshold() throws IOException {
+        final FakeResponse response = new FakeResponse();
+        final byte[] body = text(100);
+        
+        try (OutputStream out = HttpCompression.openResponse(request("deflate"), response.proxy, 1024)) {
+            out.write(body);
+            out.flush();
+            
+            assertEquals("deflate", response.headers.get("Content-Encoding"));
+        }
+        
+        assertArrayEquals(body, readAll(Encoding.DEFLATE.decode(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+    
+    @Test
+    public void requestBodyIsDecoded() throws IOException {
+        final byte[] body = text(5_000);
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        
+        try (OutputStream out = Encoding.DEFLATE.encode(wire)) {
+            out.write(body);
+        }
+        
+        final Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Encoding", "deflate");
+        
+        final ServletInputStream in = new ServletInputStream() {
+            final InputStream bytes = new ByteArrayInputStream(wire.toByteArray());
+            
+            @Override public int read() throws IOException {
+                return bytes.read(); }
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                return bytes.read(b, off, len); }
+            @Override public boolean isFinished() {
+                throw new UnsupportedOperationException(); }
+            @Override public boolean isReady() {
+                return true; }
+            @Override public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException(); }
+        };
+        
+        final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                HttpCompressionTest.class.getClassLoader(),
+                new Class<?>[]{ HttpServletRequest.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getHeader":       return headers.get((String) args[0]);
+                        case "getInputStream":  return in;
+                        default:                throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        
+        assertArrayEquals(body, readAll(HttpCompression.openRequest(request)));
+    }
+    
+    
+    
+    /**
+     * Returns text that compress well, but not too well.
+     */
+    private static byte[] text(int length) {
+        final String[] words = { "bean ", "entity ", "session ", "request ", "transaction ", "\n" };
+        final Random random = new Random(length);
+        final StringBuilder text = new StringBuilder(length + 16);
+        
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]);
+        }
+        
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream source = in) {
+            return HttpRequests.readBytes(source, -1);
+        }
+    }
+    
+    private static HttpServletRequest request(String acceptEncoding) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpCompressionTest.class.getClassLoader(),
+                new Class<?>[]{ HttpServletRequest.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getHeader")) {
+                        return "Accept-Encoding".equalsIgnoreCase((String) args[0]) ? acceptEncoding : null;
+                    }
+                    
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+    
+    /**
+     * Records headers, content length and body of a response.
+     */
+    private static final class FakeResponse
+    {
+        final Map<String, String> headers = new HashMap<>();
+        
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        
+        int contentLength = -1;
+        
+        final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpCompressionTest.class.getClassLoader(),
+                new Class<?>[]{ HttpServletResponse.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setHeader":
+                        case "addHeader":
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        case "setContentLength":
+                            contentLength = (Integer) args[0];
+                            return null;
+                        case "getOutputStream":
+                            return new ServletOutputStream() {
+                                @Override public void write(int b) {
+                                    body.write(b); }
+                                @Override public void write(byte[] b, int off, int len) {
+                                    body.write(b, off, len); }
+                                @Override public boolean isReady() {
+                                    return true; }
+                                @Override public void setWriteListener(WriteListener writeListener) {
+                                    throw new UnsupportedOperationException(); }
+                            };
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,1419 @@
+package com.martinandersson.javaee.utils;
+
+import com.martinandersson.javaee.utils.HttpRequests.RequestParameter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.net.CookieHandler;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of persistent {@code HTTP/1.1} connections against one
+ * application context root.<p>
+ * 
+ * Unlike the static methods in {@linkplain HttpRequests}, requests made
+ * through a pool do not include the header {@code Connection: close}. After a
+ * response has been read, the connection is put back in the pool and reused by
+ * the next request, so that the TCP handshake is paid only once for each
+ * connection. The pool is implemented using plain sockets and therefore counts
+ * exactly how many connections was opened and how many times a connection was
+ * reused.<p>
+ * 
+ * The number of connections is bounded. A request made when all connections
+ * are busy will block until one becomes available. Client code get a pool from
+ * {@linkplain HttpRequests#persistentConnections(URL)} which return the same
+ * pool for the same context root.<p>
+ * 
+ * Requests may also be made asynchronously, see {@linkplain
+ * #getObjectAsync(String, RequestParameter...)}. Asynchronous requests are
+ * queued and sent by at most one pipeline thread per connection. Each
+ * pipeline write a batch of queued requests back-to-back on his connection
+ * before he read the responses, in order (HTTP/1.1 pipelining). Thousands of
+ * requests in flight therefore need no more threads than there are
+ * connections.<p>
+ * 
+ * A request sent on a reused connection that the server closed before
+ * answering is sent again on a new connection, but only if the request method
+ * is idempotent. The server may have processed a POST request before the
+ * connection broke, so a POST fails with the original exception (RFC 7230
+ * §6.3.1).<p>
+ * 
+ * Cookies are handled by the default {@linkplain CookieHandler}, if one has
+ * been installed (see {@linkplain HttpRequests#keepSessionAlive()}).<p>
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class HttpConnectionPool implements AutoCloseable
+{
+    /** Default maximum number of connections in a pool. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    
+    /** Maximum number of requests written before the first response is read. */
+    private static final int PIPELINE_DEPTH = 16;
+    
+    /** For how long a pipeline thread wait for more requests before he quit. */
+    private static final long PIPELINE_IDLE_MILLIS = 1_000;
+    
+    private static final ThreadFactory PIPELINE_THREADS = runnable -> {
+        Thread t = new Thread(runnable, HttpConnectionPool.class.getSimpleName() + "-pipeline");
+        t.setDaemon(true);
+        return t;
+    };
+    
+    
+    
+    private final URL contextRoot;
+    
+    private final String host;
+    
+    private final int port, maxConnections;
+    
+    private final Semaphore permits;
+    
+    /** Used as a stack; most recently used connection is the least likely to have timed out. */
+    private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+    
+    private final LongAdder opened = new LongAdder(),
+                            reused = new LongAdder(),
+                            requests = new LongAdder();
+    
+    /** Asynchronous requests not yet sent. */
+    private final BlockingDeque<Pending<?>> pending = new LinkedBlockingDeque<>();
+    
+    /** Number of pipeline threads alive. */
+    private final AtomicInteger pipelines = new AtomicInteger();
+    
+    private volatile boolean closed;
+    
+    
+    
+    /**
+     * Initializes a newly created {@code HttpConnectionPool}.
+     * 
+     * @param contextRoot application context root, as provided by Arquillian
+     * @param maxConnections maximum number of connections
+     * 
+     * @throws IllegalArgumentException if {@code contextRoot} is not a HTTP URL,
+     *         or if {@code maxConnections} is less than 1
+     */
+    HttpConnectionPool(URL contextRoot, int maxConnections) {
+        if (!"http".equalsIgnoreCase(contextRoot.getProtocol())) {
+            throw new IllegalArgumentException("Provided URL is not a HTTP URI");
+        }
+        
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Need at least one connection, got: " + maxConnections);
+        }
+        
+        this.contextRoot = contextRoot;
+        this.host = contextRoot.getHost();
+        this.port = contextRoot.getPort() == -1 ? contextRoot.getDefaultPort() : contextRoot.getPort();
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | EXTERNAL API |
+     *  --------------
+     */
+    
+    /**
+     * Same as {@linkplain HttpRequests#getBytes(URL, String, RequestParameter...)},
+     * only a pooled connection is used.
+     * 
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param parameters each parameter will be added to the GET-request
+     * 
+     * @return the response body
+     */
+    public byte[] getBytes(String path, RequestParameter... parameters) {
+        try (Response response = exchange("GET", path, null, parameters)) {
+            return HttpRequests.readBytes(response.body, response.contentLength());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Same as {@linkplain
+     * HttpRequests#streamBytes(URL, String, HttpRequests.ChunkConsumer, RequestParameter...)},
+     * only a pooled connection is used.
+     *
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param consumer receives each chunk of the body, position to limit
+     * @param parameters each parameter will be added to the GET-request
+     *
+     * @return number of bytes in the body
+     */
+    public long streamBytes(String path, HttpRequests.ChunkConsumer consumer, RequestParameter... parameters) {
+        Objects.requireNonNull(consumer);
+
+        try (Response response = exchange("GET", path, null, parameters)) {
+            return HttpRequests.readChunks(response.body, consumer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Same as {@linkplain HttpRequests#openChannel(URL, String, RequestParameter...)},
+     * only a pooled connection is used.<p>
+     *
+     * The connection is put back in the pool when the channel is closed. The
+     * client must close the channel, or the connection is lost to the pool.
+     *
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param parameters each parameter will be added to the GET-request
+     *
+     * @return the response body
+     */
+    public ReadableByteChannel openChannel(String path, RequestParameter... parameters) {
+        final Response response;
+
+        try {
+            response = exchange("GET", path, null, parameters);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        final ReadableByteChannel body = Channels.newChannel(response.body);
+
+        return new ReadableByteChannel() {
+            @Override public int read(ByteBuffer dst) throws IOException {
+                return body.read(dst); }
+
+            @Override public boolean isOpen() {
+                return body.isOpen(); }
+
+            @Override public void close() throws IOException {
+                response.close();
+                body.close(); }
+        };
+    }
+
+    /**
+     * Same as {@linkplain HttpRequests#getObject(URL, String, RequestParameter...)},
+     * only a pooled connection is used.
+     * 
+     * @param <T> type of returned object
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param parameters each parameter will be added to the GET-request
+     * 
+     * @return object returned by the test driver
+     */
+    public <T> T getObject(String path, RequestParameter... parameters) {
+        try (Response response = exchange("GET", path, null, parameters)) {
+            return HttpRequests.readObject(response.body);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Same as {@linkplain HttpRequests#getText(URL)}, only a pooled connection
+     * is used.
+     * 
+     * @param path path to servlet (may be {@code null} or empty)
+     * 
+     * @return the response body
+     */
+    public String getText(String path) {
+        try (Response response = exchange("GET", path, null)) {
+            return HttpRequests.readText(response.body);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Same as {@linkplain HttpRequests#sendGetObject(URL, String, Serializable)},
+     * only a pooled connection is used.
+     * 
+     * @param <T> type of returned object
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param toSend serialized and put in body of the POST request
+     * 
+     * @return object returned by the test driver
+     */
+    public <T> T sendGetObject(String path, Serializable toSend) {
+        final byte[] body = HttpRequests.writeObject(Objects.requireNonNull(toSend));
+        
+        try (Response response = exchange("POST", path, body)) {
+            return HttpRequests.readObject(response.body);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Same as {@linkplain #getBytes(String, RequestParameter...)}, only the
+     * request is made asynchronously.<p>
+     * 
+     * The returned future is completed by a pipeline thread. Dependent actions
+     * that are not run asynchronously are executed by the pipeline thread and
+     * hold up the responses queued behind.
+     * 
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param parameters each parameter will be added to the GET-request
+     * 
+     * @return the response body, in the future
+     */
+    public CompletableFuture<byte[]> getBytesAsync(String path, RequestParameter... parameters) {
+        return submit("GET", path, null, parameters,
+                response -> HttpRequests.readBytes(response.body, response.contentLength()));
+    }
+    
+    /**
+     * Same as {@linkplain #getObject(String, RequestParameter...)}, only the
+     * request is made asynchronously.<p>
+     * 
+     * The returned future is completed by a pipeline thread. Dependent actions
+     * that are not run asynchronously are executed by the pipeline thread and
+     * hold up the responses queued behind.<p>
+     * 
+     * If the request fail, the future is completed exceptionally with an
+     * {@code UncheckedIOException}.
+     * 
+     * @param <T> type of returned object
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param parameters each parameter will be added to the GET-request
+     * 
+     * @return object returned by the test driver, in the future
+     */
+    public <T> CompletableFuture<T> getObjectAsync(String path, RequestParameter... parameters) {
+        return submit("GET", path, null, parameters, response -> HttpRequests.readObject(response.body));
+    }
+    
+    /**
+     * Same as {@linkplain #sendGetObject(String, Serializable)}, only the
+     * request is made asynchronously.<p>
+     * 
+     * A POST request is never pipelined; requests queued after him are not
+     * sent on the same connection until his response has been received.
+     * 
+     * @param <T> type of returned object
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param toSend serialized and put in body of the POST request
+     * 
+     * @return object returned by the test driver, in the future
+     */
+    public <T> CompletableFuture<T> sendGetObjectAsync(String path, Serializable toSend) {
+        final byte[] body = HttpRequests.writeObject(Objects.requireNonNull(toSend));
+        return submit("POST", path, body, new RequestParameter[0], response -> HttpRequests.readObject(response.body));
+    }
+    
+    /**
+     * Returns the context root of this pool.
+     * 
+     * @return the context root of this pool
+     */
+    public URL getContextRoot() {
+        return contextRoot;
+    }
+    
+    /**
+     * Returns the maximum number of connections.
+     * 
+     * @return the maximum number of connections
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    
+    /**
+     * Returns the number of connections opened.
+     * 
+     * @return the number of connections opened
+     */
+    public long getConnectionsOpened() {
+        return opened.sum();
+    }
+    
+    /**
+     * Returns the number of requests made on a connection that had already
+     * been used for another request.
+     * 
+     * @return the number of times a connection was reused
+     */
+    public long getConnectionsReused() {
+        return reused.sum();
+    }
+    
+    /**
+     * Returns the number of asynchronous requests not yet sent.
+     * 
+     * @return the number of asynchronous requests not yet sent
+     */
+    public int getQueuedRequests() {
+        return pending.size();
+    }
+    
+    /**
+     * Returns the number of requests made.
+     * 
+     * @return the number of requests made
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+    
+    /**
+     * Close all idle connections. Connections in use will be closed when their
+     * response has been read.<p>
+     * 
+     * A closed pool reject new requests with an {@code IllegalStateException}.
+     * Asynchronous requests already queued are still sent.
+     * {@linkplain HttpRequests#persistentConnections(URL)} will create a new
+     * pool if the pool for a context root has been closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        
+        Connection c;
+        
+        while ((c = idle.pollFirst()) != null) {
+            c.close();
+        }
+    }
+    
+    /**
+     * Returns {@code true} if this pool has been closed, otherwise {@code false}.
+     * 
+     * @return {@code true} if this pool has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    
+    
+    /*
+     *  ------------------
+     * | OBJECT OVERRIDES |
+     *  ------------------
+     */
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(HttpConnectionPool.class.getSimpleName())
+                .append("[")
+                  .append("contextRoot=").append(contextRoot)
+                  .append(", maxConnections=").append(maxConnections)
+                  .append(", requests=").append(getRequestCount())
+                  .append(", connectionsOpened=").append(getConnectionsOpened())
+                  .append(", connectionsReused=").append(getConnectionsReused())
+                .append("]")
+                .toString();
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    /**
+     * Send a request and read the head of the response.<p>
+     * 
+     * The returned response hold a connection and must be closed.
+     * 
+     * @param method request method
+     * @param path path to servlet (may be {@code null} or empty)
+     * @param body request body, or {@code null}
+     * @param parameters optional request parameters
+     * 
+     * @return the response
+     * 
+     * @throws IOException if server returned an error code, or on all other
+     *         kinds of I/O errors
+     */
+    Response exchange(String method, String path, byte[] body, RequestParameter... parameters)
+            throws IOException
+    {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed.");
+        }
+        
+        final URL url = url(path, parameters);
+        
+        try {
+            permits.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection.");
+        }
+        
+        requests.increment();
+        
+        Response response = null;
+        
+        try {
+            Connection c = idle.pollFirst();
+            
+            if (c != null) {
+                try {
+                    response = c.exchange(method, url, body);
+                }
+                catch (IOException e) {
+                    /*
+                     * Server may have timed out the idle connection before we
+                     * reused it. Retry once on a new connection, unless the
+                     * server may have acted on the request already.
+                     */
+                    c.close();
+                    
+                    if (c.responding || !isIdempotent(method)) {
+                        throw e;
+                    }
+                }
+            }
+            
+            if (response == null) {
+                response = connect().exchange(method, url, body);
+            }
+        }
+        catch (IOException | RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+        
+        if (response.reusedConnection) {
+            reused.increment();
+        }
+        
+        if (response.status >= 400) {
+            response.close();
+            
+            throw new IOException(
+                    "Server returned HTTP response code: " + response.status + " for URL: " + url);
+        }
+        
+        return response;
+    }
+    
+    private URL url(String path, RequestParameter... parameters) throws IOException {
+        return new URL(contextRoot, (path == null ? "" : path) +
+                (parameters.length == 0 ? "" : RequestParameter.buildQuery(parameters)));
+    }
+    
+    /**
+     * Queue an asynchronous request.
+     */
+    private <T> CompletableFuture<T> submit(
+            String method, String path, byte[] body, RequestParameter[] parameters, Decoder<T> decoder)
+    {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed.");
+        }
+        
+        final Pending<T> p;
+        
+        try {
+            p = new Pending<>(method, url(path, parameters), body, decoder);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        requests.increment();
+        pending.offerLast(p);
+        startPipeline();
+        
+        return p.future;
+    }
+    
+    /**
+     * Start a new pipeline thread, if there are fewer pipelines than queued
+     * requests and connections allowed.
+     */
+    private void startPipeline() {
+        for (;;) {
+            final int n = pipelines.get();
+            
+            if (n >= maxConnections || n >= pending.size()) {
+                return;
+            }
+            
+            if (pipelines.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+        
+        try {
+            PIPELINE_THREADS.newThread(this::pipeline).start();
+        }
+        catch (RuntimeException | Error e) {
+            pipelines.decrementAndGet();
+            throw e;
+        }
+    }
+    
+    /**
+     * Run by a pipeline thread: send queued requests in batches on one
+     * connection until the queue has been empty for a while.
+     */
+    private void pipeline() {
+        Connection c = null;
+        
+        try {
+            for (;;) {
+                final Pending<?> first = pending.pollFirst(PIPELINE_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                
+                if (first == null) {
+                    break;
+                }
+                
+                final List<Pending<?>> batch = new ArrayList<>();
+                batch.add(first);
+                
+                // Requests after a non-idempotent request must wait for his response
+                while (batch.size() < PIPELINE_DEPTH && isIdempotent(batch.get(batch.size() - 1).method)) {
+                    Pending<?> next = pending.pollFirst();
+                    
+                    if (next == null) {
+                        break;
+                    }
+                    
+                    batch.add(next);
+                }
+                
+                if (c == null) {
+                    permits.acquire();
+                    
+                    try {
+                        c = idle.pollFirst();
+                        
+                        if (c == null) {
+                            c = connect();
+                        }
+                    }
+                    catch (IOException | RuntimeException | Error e) {
+                        permits.release();
+                        batch.forEach(p -> p.fail(e));
+                        continue;
+                    }
+                }
+                
+                if (!send(c, batch)) {
+                    // Connection is closed
+                    c = null;
+                    permits.release();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Daemon thread interrupted by someone, just quit
+        }
+        finally {
+            if (c != null) {
+                release(c, true);
+            }
+            
+            pipelines.decrementAndGet();
+            
+            // Requests may have been queued after we stopped polling
+            if (!pending.isEmpty()) {
+                startPipeline();
+            }
+        }
+    }
+    
+    /**
+     * Write all requests of the batch, then read their responses.<p>
+     * 
+     * Requests that did not get a response are put back first in the queue,
+     * or failed if they have been tried before, see {@linkplain
+     * #retry(List, IOException)}.
+     * 
+     * @return {@code true} if connection may be used again, otherwise
+     *         {@code false} (and the connection is closed)
+     */
+    private boolean send(Connection c, List<Pending<?>> batch) {
+        int done = 0;
+        
+        c.responding = false;
+        
+        try {
+            for (Pending<?> p : batch) {
+                p.reusedConnection = c.writeRequest(p.method, p.url, p.body, false);
+            }
+            
+            c.out.flush();
+            
+            for (Pending<?> p : batch) {
+                c.responding = false;
+                
+                final Response response = c.readResponseHead(p.url, false);
+                
+                // Counted before the future complete, so that his client see it
+                if (p.reusedConnection) {
+                    reused.increment();
+                }
+                
+                try {
+                    p.complete(response);
+                }
+                finally {
+                    response.close();
+                }
+                
+                ++done;
+                
+                if (!response.keepAlive) {
+                    c.close();
+                    retry(batch.subList(done, batch.size()), null);
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        catch (IOException e) {
+            c.close();
+            
+            if (c.responding) {
+                // Response was broken, don't retry
+                batch.get(done++).fail(e);
+            }
+            
+            retry(batch.subList(done, batch.size()), e);
+            return false;
+        }
+    }
+    
+    /**
+     * Put unanswered requests back first in the queue.<p>
+     * 
+     * If {@code cause} is {@code null}, then the server said he would close
+     * the connection and did not process the requests. They are put back
+     * without counting an attempt; the batch that was cut short got at least
+     * one response, so the queue still make progress. Otherwise, the server
+     * may have failed on them and a request is only tried twice. A request
+     * that is not idempotent may have been processed and is never tried again.
+     */
+    private void retry(List<Pending<?>> unanswered, IOException cause) {
+        for (int i = unanswered.size() - 1; i >= 0; --i) {
+            final Pending<?> p = unanswered.get(i);
+            
+            if (cause != null && (!isIdempotent(p.method) || p.attempts++ > 0)) {
+                p.fail(cause);
+            }
+            else {
+                pending.offerFirst(p);
+            }
+        }
+    }
+    
+    private Connection connect() throws IOException {
+        Socket socket = new Socket();
+        
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            opened.increment();
+            return new Connection(socket);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Called when a response of a synchronous request has been closed, or
+     * when a pipeline is done with his connection.
+     */
+    private void release(Connection c, boolean reusable) {
+        try {
+            if (reusable && !closed) {
+                idle.offerFirst(c);
+                
+                // Pool may have been closed concurrently
+                if (closed && idle.remove(c)) {
+                    c.close();
+                }
+            }
+            else {
+                c.close();
+            }
+        }
+        finally {
+            permits.release();
+        }
+    }
+    
+    
+    
+    /**
+     * A persistent connection.
+     */
+    private final class Connection {
+        final Socket socket;
+        
+        final InputStream in;
+        
+        final OutputStream out;
+        
+        /** {@code true} if the server has started writing the response. */
+        boolean responding;
+        
+        /** Number of requests written. */
+        int uses;
+        
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+        
+        Response exchange(String method, URL url, byte[] body) throws IOException {
+            responding = false;
+            
+            final boolean reusedConnection = writeRequest(method, url, body, true);
+            
+            Response response = readResponseHead(url, true);
+            response.reusedConnection = reusedConnection;
+            return response;
+        }
+        
+        /**
+         * Write a request.
+         * 
+         * @return {@code true} if this connection has been used before
+         */
+        boolean writeRequest(String method, URL url, byte[] body, boolean flush) throws IOException {
+            final StringBuilder head = new StringBuilder()
+                    .append(method).append(' ').append(url.getFile()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append(':').append(port).append("\r\n")
+                    .append("Accept: */*\r\n")
+                    .append("Accept-Encoding: ").append(HttpCompression.ACCEPT_ENCODING).append("\r\n");
+            
+            for (Map.Entry<String, List<String>> cookie : cookies(url).entrySet()) {
+                for (String value : cookie.getValue()) {
+                    head.append(cookie.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            
+            if (body != null) {
+                head.append("Content-Type: application/octet-stream\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            
+            out.write(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+            
+            if (body != null) {
+                out.write(body);
+            }
+            
+            if (flush) {
+                out.flush();
+            }
+            
+            return uses++ > 0;
+        }
+        
+        /**
+         * Read status line and headers of next response.
+         * 
+         * @param url URL of the request
+         * @param pooled {@code true} if closing the response shall put the
+         *        connection back in the pool
+         */
+        Response readResponseHead(URL url, boolean pooled) throws IOException {
+            String statusLine;
+            Map<String, List<String>> headers;
+            int status;
+            
+            do {
+                statusLine = readLine();
+                
+                if (statusLine == null) {
+                    throw new EOFException("Server closed the connection.");
+                }
+                
+                responding = true;
+                
+                String[] parts = statusLine.split(" ", 3);
+                
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                    throw new IOException("Malformed status line: " + statusLine);
+                }
+                
+                try {
+                    status = Integer.parseInt(parts[1]);
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Malformed status line: " + statusLine, e);
+                }
+                
+                headers = readHeaders();
+            }
+            while (status / 100 == 1); // <-- skip "100 Continue" and friends
+            
+            storeCookies(url, headers);
+            
+            final boolean http11 = statusLine.startsWith("HTTP/1.1");
+            final String connection = header(headers, "Connection");
+            
+            boolean reusable = http11 ?
+                    !"close".equalsIgnoreCase(connection) :
+                    "keep-alive".equalsIgnoreCase(connection);
+            
+            final String transferEncoding = header(headers, "Transfer-Encoding"),
+                         contentLength = header(headers, "Content-Length");
+            
+            final InputStream raw;
+            
+            if (status == 204 || status == 304) {
+                raw = new BoundedInputStream(in, 0);
+            }
+            else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+                raw = new ChunkedInputStream(in);
+            }
+            else if (contentLength != null) {
+                try {
+                    raw = new BoundedInputStream(in, Long.parseLong(contentLength.trim()));
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length: " + contentLength, e);
+                }
+            }
+            else {
+                // Body is delimited by the server closing the connection
+                raw = in;
+                reusable = false;
+            }
+            
+            final HttpCompression.Encoding coding = HttpCompression.Encoding.of(header(headers, "Content-Encoding"));
+            
+            final InputStream body = status == 204 || status == 304 ?
+                    raw : coding.decode(raw);
+            
+            return new Response(this, status, headers, raw, body, reusable, pooled);
+        }
+        
+        private Map<String, List<String>> readHeaders() throws IOException {
+            final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            
+            String line;
+            
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                
+                if (colon > 0) {
+                    headers.computeIfAbsent(line.substring(0, colon).trim(), k -> new ArrayList<>())
+                           .add(line.substring(colon + 1).trim());
+                }
+            }
+            
+            return headers;
+        }
+        
+        /**
+         * Returns next line without the line terminator, or {@code null} if
+         * end of stream has been reached.
+         */
+        private String readLine() throws IOException {
+            return HttpConnectionPool.readLine(in);
+        }
+        
+        void close() {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // Nothing we can do
+            }
+        }
+    }
+    
+    /**
+     * Head and body of a response.<p>
+     * 
+     * Closing the response of a synchronous request put the connection back
+     * in the pool, if the body has been fully read and the server allow it.
+     */
+    final class Response implements Closeable {
+        final int status;
+        
+        final Map<String, List<String>> headers;
+        
+        /** Decoded body. */
+        final InputStream body;
+        
+        /** Body as framed on the wire, before decoding. */
+        private final InputStream raw;
+        
+        private final Connection connection;
+        
+        private final boolean reusable, pooled;
+        
+        /** {@code true} if the request was sent on a connection used before. */
+        boolean reusedConnection;
+        
+        /** After close: {@code true} if connection may be used again. */
+        boolean keepAlive;
+        
+        private boolean closed;
+        
+        Response(Connection connection, int status, Map<String, List<String>> headers,
+                InputStream raw, InputStream body, boolean reusable, boolean pooled)
+        {
+            this.connection = connection;
+            this.status = status;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.raw = raw;
+            this.body = body;
+            this.reusable = reusable;
+            this.pooled = pooled;
+        }
+        
+        /**
+         * Returns value of the Content-Length header, or {@code -1} if there
+         * is no such header or the body is encoded.
+         */
+        long contentLength() {
+            if (body != raw) {
+                return -1;
+            }
+            
+            final String value = header(headers, "Content-Length");
+            
+            try {
+                return value == null ? -1 : Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            
+            closed = true;
+            
+            boolean drained = false;
+            
+            if (reusable) {
+                try {
+                    // Skip what client code did not read
+                    raw.skip(Long.MAX_VALUE);
+                    drained = raw.read() == -1;
+                }
+                catch (IOException e) {
+                    drained = false;
+                }
+            }
+            
+            keepAlive = drained;
+            
+            if (body != raw) {
+                try {
+                    // Release the native memory of the inflater
+                    body.close();
+                }
+                catch (IOException e) {
+                    // Never mind
+                }
+            }
+            
+            if (pooled) {
+                release(connection, drained);
+            }
+        }
+    }
+    
+    /**
+     * Reads the body of a response into a result.
+     */
+    @FunctionalInterface
+    private interface Decoder<T> {
+        T decode(Response response) throws IOException;
+    }
+    
+    /**
+     * An asynchronous request.
+     */
+    private static final class Pending<T> {
+        final String method;
+        
+        final URL url;
+        
+        final byte[] body;
+        
+        final Decoder<T> decoder;
+        
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        
+        /** Number of times request was sent without getting a response. */
+        int attempts;
+        
+        boolean reusedConnection;
+        
+        Pending(String method, URL url, byte[] body, Decoder<T> decoder) {
+            this.method = method;
+            this.url = url;
+            this.body = body;
+            this.decoder = decoder;
+        }
+        
+        /**
+         * Complete the future with the decoded body.
+         * 
+         * @throws IOException if reading the body fails, the future is then
+         *         completed exceptionally too
+         */
+        void complete(Response response) throws IOException {
+            if (response.status >= 400) {
+                fail(new IOException(
+                        "Server returned HTTP response code: " + response.status + " for URL: " + url));
+                return;
+            }
+            
+            try {
+                future.complete(decoder.decode(response));
+            }
+            catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+            catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+            }
+        }
+        
+        void fail(Throwable cause) {
+            future.completeExceptionally(cause instanceof IOException ?
+                    new UncheckedIOException((IOException) cause) : cause);
+        }
+    }
+    
+    /**
+     * Reads a fixed number of bytes.
+     */
+    private static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        
+        private long remaining;
+        
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            
+            final int b = in.read();
+            
+            if (b == -1) {
+                throw new EOFException("Server closed the connection before end of body.");
+            }
+            
+            --remaining;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            
+            final int n = in.read(b, off, (int) Math.min(len, remaining));
+            
+            if (n == -1) {
+                throw new EOFException("Server closed the connection before end of body.");
+            }
+            
+            remaining -= n;
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            
+            while (skipped < n && remaining > 0) {
+                long s = in.skip(Math.min(n - skipped, remaining));
+                
+                if (s <= 0) {
+                    if (read() == -1) {
+                        break;
+                    }
+                    
+                    s = 1;
+                }
+                else {
+                    remaining -= s;
+                }
+                
+                skipped += s;
+            }
+            
+            return skipped;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+        
+        @Override
+        public void close() {
+            // Connection is closed or reused by the response
+        }
+    }
+    
+    /**
+     * Reads a body using {@code Transfer-Encoding: chunked}.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        
+        /** Bytes left in current chunk, {@code -1} if at end of body. */
+        private long remaining;
+        
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            
+            final int b = in.read();
+            
+            if (b == -1) {
+                throw new EOFException("Server closed the connection before end of chunk.");
+            }
+            
+            --remaining;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            
+            if (!nextChunk()) {
+                return -1;
+            }
+            
+            final int n = in.read(b, off, (int) Math.min(len, remaining));
+            
+            if (n == -1) {
+                throw new EOFException("Server closed the connection before end of chunk.");
+            }
+            
+            remaining -= n;
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            
+            while (skipped < n && nextChunk()) {
+                long s = in.skip(Math.min(n - skipped, remaining));
+                
+                if (s <= 0) {
+                    if (read() == -1) {
+                        break;
+                    }
+                    
+                    s = 1;
+                }
+                else {
+                    remaining -= s;
+                }
+                
+                skipped += s;
+            }
+            
+            return skipped;
+        }
+        
+        @Override
+        public void close() {
+            // Connection is closed or reused by the response
+        }
+        
+        /**
+         * Make sure there are bytes left to read in the current chunk.
+         * 
+         * @return {@code false} if end of body has been reached
+         */
+        private boolean nextChunk() throws IOException {
+            if (remaining > 0) {
+                return true;
+            }
+            
+            if (remaining == -1) {
+                return false;
+            }
+            
+            String size = readLine(in);
+            
+            // CRLF that ends previous chunk
+            if (size != null && size.isEmpty()) {
+                size = readLine(in);
+            }
+            
+            if (size == null) {
+                throw new EOFException("Server closed the connection before last chunk.");
+            }
+            
+            final int extension = size.indexOf(';');
+            
+            try {
+                remaining = Long.parseLong((extension == -1 ? size : size.substring(0, extension)).trim(), 16);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + size, e);
+            }
+            
+            if (remaining == 0) {
+                // Skip trailers
+                String trailer;
+                while ((trailer = readLine(in)) != null && !trailer.isEmpty());
+                
+                remaining = -1;
+                return false;
+            }
+            
+            return true;
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the provided request method is idempotent (RFC
+     * 7231 §4.2.2), that is, if the request may be sent again after a broken
+     * connection.
+     */
+    private static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+            case "TRACE":
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        
+        int b;
+        
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ?
+                        bytes.length - 1 : bytes.length;
+                
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            
+            line.write(b);
+        }
+        
+        return line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+    
+    private static String header(Map<String, List<String>> headers, String name) {
+        final List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(values.size() - 1);
+    }
+    
+    private static Map<String, List<String>> cookies(URL url) throws IOException {
+        final CookieHandler handler = CookieHandler.getDefault();
+        
+        if (handler == null) {
+            return Collections.emptyMap();
+        }
+        
+        try {
+            return handler.get(url.toURI(), Collections.emptyMap());
+        }
+        catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    private static void storeCookies(URL url, Map<String, List<String>> headers) throws IOException {
+        final CookieHandler handler = CookieHandler.getDefault();
+        
+        if (handler == null) {
+            return;
+        }
+        
+        try {
+            handler.put(url.toURI(), headers);
+        }
+        catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+}
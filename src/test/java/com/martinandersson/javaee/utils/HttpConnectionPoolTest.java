@@ -0,0 +1,559 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of {@linkplain HttpConnectionPool} against a scripted server on a
+ * local socket.<p>
+ * 
+ * The server answer each request with the bytes returned by a function of
+ * the request target. The bytes are written as is, so a test decide exactly
+ * how the response is framed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class HttpConnectionPoolTest
+{
+    private Server server;
+    
+    private HttpConnectionPool pool;
+    
+    @After
+    public void closeServer() throws IOException {
+        if (pool != null) {
+            pool.close();
+        }
+        
+        if (server != null) {
+            server.close();
+        }
+    }
+    
+    
+    
+    @Test
+    public void chunkedBodyIsDecoded() throws IOException {
+        start(target -> response(
+                "Transfer-Encoding: chunked",
+                "5\r\nHello\r\n" +
+                "1;name=value\r\n,\r\n" +    // <-- chunk extension
+                "0000000006\r\n world\r\n" +
+                "A\r\n, chunked!\r\n" +      // <-- upper case hex
+                "0\r\n" +
+                "X-Trailer: ignored\r\n" +  // <-- trailer
+                "\r\n"), 1);
+        
+        assertEquals("Hello, world, chunked!", pool.getText("chunked"));
+        
+        // Trailer was consumed, next response is read from the right place
+        assertEquals("Hello, world, chunked!", pool.getText("chunked"));
+        
+        assertEquals(1, pool.getConnectionsOpened());
+        assertEquals(1, pool.getConnectionsReused());
+        assertEquals(1, server.accepted.get());
+    }
+    
+    @Test
+    public void emptyChunkedBody() throws IOException {
+        start(target -> response("Transfer-Encoding: chunked", "0\r\n\r\n"), 1);
+        
+        assertEquals(0, pool.getBytes("empty").length);
+        assertEquals(0, pool.getBytes("empty").length);
+        assertEquals(1, pool.getConnectionsOpened());
+    }
+    
+    @Test
+    public void unreadBodyIsSkippedBeforeReuse() throws IOException {
+        start(target -> target.endsWith("big") ?
+                response("Transfer-Encoding: chunked", chunked(repeat('x', 50_000), 997)) :
+                response("Content-Length: 2", "ok"), 1);
+        
+        try (HttpConnectionPool.Response response = pool.exchange("GET", "big", null)) {
+            // Read one byte only, close must skip the rest
+            assertEquals('x', response.body.read());
+        }
+        
+        assertEquals("ok", pool.getText("small"));
+        assertEquals(1, pool.getConnectionsOpened());
+    }
+    
+    @Test
+    public void staleIdleConnectionIsRetried() throws IOException {
+        start(target -> response("Content-Length: 2", "ok"), 1);
+        
+        // Server close the connection after each response, without saying so
+        server.closeAfterResponse = true;
+        
+        assertEquals("ok", pool.getText("first"));
+        assertEquals("ok", pool.getText("second"));
+        
+        assertEquals(2, pool.getConnectionsOpened());
+        assertEquals(2, server.requests.size());
+    }
+    
+    @Test
+    public void postOnStaleIdleConnectionIsNotRetried() throws IOException {
+        start(target -> response("Content-Length: 2", "ok"), 1);
+        server.closeAfterResponse = true;
+        
+        assertEquals("ok", pool.getText("first"));
+        
+        try {
+            pool.sendGetObject("post", "not idempotent");
+            fail("POST was sent again.");
+        }
+        catch (UncheckedIOException e) {
+            // Expected
+        }
+        
+        assertEquals(1, pool.getConnectionsOpened());
+        assertEquals(1, server.requests.size());
+    }
+    
+    @Test
+    public void connectionCloseIsHonored() throws IOException {
+        start(target -> response("Content-Length: 2\r\nConnection: close", "ok"), 1);
+        
+        assertEquals("ok", pool.getText("first"));
+        assertEquals("ok", pool.getText("second"));
+        
+        assertEquals(2, pool.getConnectionsOpened());
+        assertEquals(0, pool.getConnectionsReused());
+    }
+    
+    @Test
+    public void errorStatusFails() throws IOException {
+        start(target -> target.endsWith("missing") ?
+                status("404 Not Found", "Content-Length: 4", "nope") :
+                response("Content-Length: 2", "ok"), 1);
+        
+        try {
+            pool.getText("missing");
+            fail("Got a body for status 404.");
+        }
+        catch (UncheckedIOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+        
+        // The error body was drained and the connection kept
+        assertEquals("ok", pool.getText("found"));
+        assertEquals(1, pool.getConnectionsOpened());
+    }
+    
+    @Test
+    public void getBytesWithContentLength() throws IOException {
+        final byte[] body = random(300_000);
+        
+        start(target -> response("Content-Length: " + body.length, body), 1);
+        
+        assertArrayEquals(body, pool.getBytes("fixed"));
+        assertArrayEquals(body, HttpRequests.getBytes(pool.getContextRoot(), "fixed"));
+    }
+    
+    @Test
+    public void getBytesOfChunkedBody() throws IOException {
+        final byte[] body = random(300_000);
+        
+        // Chunks not aligned with the buffers of the reader
+        start(target -> response("Transfer-Encoding: chunked", chunked(body, 12_345)), 1);
+        
+        assertArrayEquals(body, pool.getBytes("chunked"));
+        assertArrayEquals(body, HttpRequests.getBytes(pool.getContextRoot(), "chunked"));
+    }
+    
+    @Test
+    public void streamBytes() throws IOException {
+        final byte[] body = random(200_000);
+        
+        start(target -> response("Transfer-Encoding: chunked", chunked(body, 70_000)), 1);
+        
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        
+        final long length = pool.streamBytes("stream", chunk ->
+                received.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining()));
+        
+        assertEquals(body.length, length);
+        assertArrayEquals(body, received.toByteArray());
+    }
+    
+    @Test
+    public void openChannel() throws IOException {
+        final byte[] body = random(100_000);
+        
+        start(target -> response("Content-Length: " + body.length, body), 1);
+        
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        
+        try (ReadableByteChannel channel = pool.openChannel("channel")) {
+            final ByteBuffer buffer = ByteBuffer.allocate(4096);
+            
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                received.write(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+        }
+        
+        assertArrayEquals(body, received.toByteArray());
+        
+        // Closing the channel put the connection back in the pool
+        assertArrayEquals(body, pool.getBytes("channel"));
+        assertEquals(1, pool.getConnectionsOpened());
+    }
+    
+    @Test
+    public void truncatedBodyFails() throws IOException {
+        start(target -> response("Content-Length: 100", "only a few bytes"), 1);
+        server.closeAfterResponse = true;
+        
+        try {
+            pool.getBytes("truncated");
+            fail("Read a truncated body.");
+        }
+        catch (UncheckedIOException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+    
+    @Test
+    public void asyncRequestsArePipelined() throws Exception {
+        start(target -> response("Content-Length: " + target.length(), target), 1);
+        
+        final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        
+        for (int i = 0; i < 40; ++i) {
+            futures.add(pool.getBytesAsync("r" + i));
+        }
+        
+        for (int i = 0; i < 40; ++i) {
+            assertEquals("/app/r" + i, new String(futures.get(i).get(10, TimeUnit.SECONDS), StandardCharsets.ISO_8859_1));
+        }
+        
+        assertEquals(1, pool.getConnectionsOpened());
+        assertEquals(39, pool.getConnectionsReused());
+        
+        // One connection, so the server got them in the order they were made
+        for (int i = 0; i < 40; ++i) {
+            assertEquals("/app/r" + i, server.requests.get(i));
+        }
+    }
+    
+    @Test
+    public void asyncRequestsSurviveConnectionClose() throws Exception {
+        // Server answer one request per connection, like a server at his keep-alive limit
+        start(target -> response("Content-Length: 2\r\nConnection: close", "ok"), 1);
+        server.closeAfterResponse = true;
+        
+        final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        
+        for (int i = 0; i < 10; ++i) {
+            futures.add(pool.getBytesAsync("r" + i));
+        }
+        
+        for (CompletableFuture<byte[]> f : futures) {
+            assertEquals("ok", new String(f.get(10, TimeUnit.SECONDS), StandardCharsets.ISO_8859_1));
+        }
+        
+        assertEquals(10, pool.getConnectionsOpened());
+    }
+    
+    @Test
+    public void asyncPostOnStaleIdleConnectionIsNotRetried() throws Exception {
+        start(target -> response("Content-Length: 2", "ok"), 1);
+        server.closeAfterResponse = true;
+        
+        assertEquals("ok", pool.getText("first"));
+        
+        try {
+            pool.sendGetObjectAsync("post", "not idempotent").get(10, TimeUnit.SECONDS);
+            fail("POST was sent again.");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+        
+        assertEquals(1, pool.getConnectionsOpened());
+        assertEquals(1, server.requests.size());
+    }
+    
+    @Test
+    public void asyncErrorStatusFailsOnlyThatRequest() throws Exception {
+        start(target -> target.endsWith("missing") ?
+                status("404 Not Found", "Content-Length: 4", "nope") :
+                response("Content-Length: 2", "ok"), 1);
+        
+        final CompletableFuture<byte[]> before = pool.getBytesAsync("found"),
+                                        missing = pool.getBytesAsync("missing"),
+                                        after = pool.getBytesAsync("found");
+        
+        try {
+            missing.get(10, TimeUnit.SECONDS);
+            fail("Got a body for status 404.");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+        
+        assertEquals("ok", new String(before.get(10, TimeUnit.SECONDS), StandardCharsets.ISO_8859_1));
+        assertEquals("ok", new String(after.get(10, TimeUnit.SECONDS), StandardCharsets.ISO_8859_1));
+        assertEquals(1, pool.getConnectionsOpened());
+    }
+    
+    @Test
+    public void compressedBodyIsDecoded() throws Exception {
+        final byte[] body = repeat('z', 100_000);
+        
+        final byte[] gzip = encode(HttpCompression.Encoding.GZIP, body),
+                     deflate = encode(HttpCompression.Encoding.DEFLATE, body);
+        
+        start(target -> target.endsWith("gzip") ?
+                response("Content-Encoding: gzip\r\nTransfer-Encoding: chunked", chunked(gzip, 100)) :
+                response("Content-Encoding: deflate\r\nContent-Length: " + deflate.length, deflate), 1);
+        
+        assertArrayEquals(body, pool.getBytes("gzip"));
+        assertArrayEquals(body, pool.getBytes("deflate"));
+        assertArrayEquals(body, pool.getBytesAsync("gzip").get(10, TimeUnit.SECONDS));
+        
+        // Compressed bodies were fully read, connection reused
+        assertEquals(1, pool.getConnectionsOpened());
+        
+        assertEquals(3, server.acceptEncodings.size());
+        
+        for (String accept : server.acceptEncodings) {
+            assertEquals("gzip, deflate", accept);
+        }
+    }
+    
+    
+    
+    /*
+     *  -----------------
+     * | SCRIPTED SERVER |
+     *  -----------------
+     */
+    
+    private void start(Function<String, byte[]> responder, int maxConnections) throws IOException {
+        server = new Server(responder);
+        pool = new HttpConnectionPool(new URL("http", "127.0.0.1", server.port(), "/app/"), maxConnections);
+    }
+    
+    /**
+     * Returns a {@code 200 OK} response with the provided header lines and
+     * body.
+     */
+    static byte[] response(String headers, String body) {
+        return status("200 OK", headers, body);
+    }
+    
+    static byte[] response(String headers, byte[] body) {
+        return concat(("HTTP/1.1 200 OK\r\n" + headers + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1), body);
+    }
+    
+    static byte[] status(String status, String headers, String body) {
+        return ("HTTP/1.1 " + status + "\r\n" + headers + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    /**
+     * Returns the provided bytes as a chunked body, all chunks of the provided
+     * size except the last.
+     */
+    static byte[] chunked(byte[] body, int chunkSize) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 1024);
+        
+        for (int off = 0; off < body.length; off += chunkSize) {
+            final int len = Math.min(chunkSize, body.length - off);
+            writeAscii(out, Integer.toHexString(len) + "\r\n");
+            out.write(body, off, len);
+            writeAscii(out, "\r\n");
+        }
+        
+        writeAscii(out, "0\r\n\r\n");
+        return out.toByteArray();
+    }
+    
+    static byte[] encode(HttpCompression.Encoding coding, byte[] body) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        try (OutputStream out = coding.encode(bytes)) {
+            out.write(body);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        return bytes.toByteArray();
+    }
+    
+    static byte[] random(int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+    
+    static byte[] repeat(char c, int times) {
+        final byte[] bytes = new byte[times];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+    
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+    
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    private static void writeAscii(ByteArrayOutputStream out, String s) {
+        final byte[] bytes = ascii(s);
+        out.write(bytes, 0, bytes.length);
+    }
+    
+    /**
+     * Accepts connections on a local port and answer requests in the order
+     * they arrive, one thread per connection.
+     */
+    static final class Server implements AutoCloseable
+    {
+        final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        
+        final Function<String, byte[]> responder;
+        
+        final AtomicInteger accepted = new AtomicInteger();
+        
+        /** Request targets received, in order. */
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        
+        /** Accept-Encoding header of each request. */
+        final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+        
+        final List<Socket> connections = new CopyOnWriteArrayList<>();
+        
+        /** Not final, test may toggle this. */
+        volatile boolean closeAfterResponse;
+        
+        Server(Function<String, byte[]> responder) throws IOException {
+            this.responder = responder;
+            
+            Thread acceptor = new Thread(this::accept, "HttpConnectionPoolTest-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        
+        int port() {
+            return socket.getLocalPort();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            
+            for (Socket c : connections) {
+                c.close();
+            }
+        }
+        
+        private void accept() {
+            try {
+                for (;;) {
+                    final Socket c = socket.accept();
+                    accepted.incrementAndGet();
+                    connections.add(c);
+                    
+                    Thread t = new Thread(() -> serve(c), "HttpConnectionPoolTest-connection");
+                    t.setDaemon(true);
+                    t.start();
+                }
+            }
+            catch (IOException e) {
+                // Closed
+            }
+        }
+        
+        private void serve(Socket c) {
+            try (Socket connection = c) {
+                final InputStream in = new BufferedInputStream(connection.getInputStream());
+                final OutputStream out = connection.getOutputStream();
+                
+                String requestLine;
+                
+                while ((requestLine = readLine(in)) != null) {
+                    int contentLength = 0;
+                    String header;
+                    
+                    while ((header = readLine(in)) != null && !header.isEmpty()) {
+                        if (header.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(header.substring(15).trim());
+                        }
+                        else if (header.toLowerCase(Locale.ROOT).startsWith("accept-encoding:")) {
+                            acceptEncodings.add(header.substring(16).trim());
+                        }
+                    }
+                    
+                    for (int i = 0; i < contentLength; ++i) {
+                        in.read();
+                    }
+                    
+                    final String target = requestLine.split(" ")[1];
+                    requests.add(target);
+                    
+                    out.write(responder.apply(target));
+                    out.flush();
+                    
+                    if (closeAfterResponse) {
+                        return;
+                    }
+                }
+            }
+            catch (IOException e) {
+                // Client went away
+            }
+        }
+        
+        private static String readLine(InputStream in) throws IOException {
+            final StringBuilder line = new StringBuilder();
+            
+            int b;
+            
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            
+            return b == -1 && line.length() == 0 ? null : line.toString();
+        }
+    }
+}
@@ -6,8 +6,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UncheckedIOException;
@@ -18,8 +16,18 @@ import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -27,21 +35,45 @@ import java.util.stream.Stream;
 /**
  * Procedures for making {@code HTTP/1.1} request to the test server.<p>
  * 
- * All requests made with this class are non-persistent, meaning that the header
- * {@code Connection: close} is included in the request sent to the server.
- * After receiving this header, HTTP compliant web servers must close the
- * connection after the response.<p>
+ * All requests made with the static methods of this class are non-persistent,
+ * meaning that the header {@code Connection: close} is included in the request
+ * sent to the server. After receiving this header, HTTP compliant web servers
+ * must close the connection after the response.<p>
  * 
- * Note that the underlying Java entity used to make HTTP requests by this
- * class is {@code HttpURLConnection} which most likely uses pooled connections.
- * Therefore, invoking these methods in a concurrent test has limited effects.
- * Consider using a Socket instead (which we will add in this class in the
- * future, or change the implementation of this method).<p>
+ * Note that the underlying Java entity used to make HTTP requests by these
+ * methods is {@code HttpURLConnection} which most likely uses pooled
+ * connections. Therefore, invoking these methods in a concurrent test has
+ * limited effects.<p>
+ * 
+ * Tests that make a great many requests should consider using persistent
+ * connections instead, see {@linkplain #persistentConnections(URL)}. These are
+ * implemented using plain sockets and keep count of how many times a
+ * connection was reused.<p>
+ * 
+ * Objects sent and received are encoded using {@linkplain WireFormat}, which
+ * fallback to Java serialization for types that has no codec.<p>
+ * 
+ * All requests accept a {@code gzip} or {@code deflate} compressed response,
+ * see {@linkplain HttpCompression}. Decoding is done transparently.<p>
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public final class HttpRequests
 {
+    /** Pools of persistent connections, keyed by context root. */
+    private static final ConcurrentMap<String, HttpConnectionPool> POOLS = new ConcurrentHashMap<>();
+    
+    /** Size of buffers used to read response bodies. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    /** Maximum number of idle buffers kept for reuse. */
+    private static final int MAX_POOLED_BUFFERS = 16;
+    
+    private static final Queue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+    
+    /** Approximate size of {@code BUFFERS}, {@code size()} of the queue is O(n). */
+    private static final AtomicInteger POOLED_BUFFERS = new AtomicInteger();
+    
     private HttpRequests() {
         // Empty
     }
@@ -89,6 +121,43 @@ public final class HttpRequests
         return false;
     }
     
+    /**
+     * Shortcut for
+     * {@linkplain #persistentConnections(URL, int) persistentConnections(contextRoot, HttpConnectionPool.DEFAULT_MAX_CONNECTIONS)}.
+     * 
+     * @param contextRoot
+     *            deployed application URL ("application context root"),
+     *            provided by Arquillian
+     * 
+     * @return the pool of persistent connections for the context root
+     */
+    public static HttpConnectionPool persistentConnections(URL contextRoot) {
+        return persistentConnections(contextRoot, HttpConnectionPool.DEFAULT_MAX_CONNECTIONS);
+    }
+    
+    /**
+     * Returns a pool of persistent connections against the provided context
+     * root.<p>
+     * 
+     * All calls with the same context root return the same pool, until the
+     * pool is closed. The maximum number of connections is set when the pool
+     * is created; it is not changed by later calls.
+     * 
+     * @param contextRoot
+     *            deployed application URL ("application context root"),
+     *            provided by Arquillian
+     * @param maxConnections
+     *            maximum number of connections, if a new pool is created
+     * 
+     * @return the pool of persistent connections for the context root
+     * 
+     * @throws IllegalArgumentException if provided URL is not a HTTP URI
+     */
+    public static HttpConnectionPool persistentConnections(URL contextRoot, int maxConnections) {
+        return POOLS.compute(contextRoot.toExternalForm(), (key, pool) ->
+                pool == null || pool.isClosed() ? new HttpConnectionPool(contextRoot, maxConnections) : pool);
+    }
+    
     /**
      * Shortcut for
      * {@linkplain #getBytes(URL, String, RequestParameter...) getBytes(contextRoot, null)}.
@@ -143,16 +212,76 @@ public final class HttpRequests
     public static byte[] getBytes(URL contextRoot, String path, RequestParameter... parameters) {
         final URLConnection conn = openNonPersistentConnection(contextRoot, path, parameters);
         
-        try (InputStream in = conn.getInputStream()) {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            
-            int b;
-            
-            while ((b = in.read()) != -1) { // <-- read unsigned byte
-                buffer.write(b);            // <-- write unsigned byte
-            }
-            
-            return buffer.toByteArray();
+        try (InputStream in = body(conn)) {
+            return readBytes(in, contentLength(conn));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Will make a GET-request to the provided Servlet test driver and hand the
+     * response body to the provided consumer, one chunk at a time as the bytes
+     * arrive.<p>
+     * 
+     * The body is never materialized in whole; memory use is bounded by the
+     * size of one chunk no matter how large the response is. The chunks are
+     * read into pooled buffers that are reused by later requests, so the
+     * consumer must not keep a reference to a buffer after he has returned.<p>
+     * 
+     * See {@linkplain #getBytes(URL, String, RequestParameter...)} for a
+     * description of the path.
+     * 
+     * @param contextRoot
+     *            deployed application URL ("application context root"),
+     *            provided by Arquillian
+     * @param path
+     *            path to servlet (may be {@code null} or empty)
+     * @param consumer
+     *            receives each chunk of the body, position to limit
+     * @param parameters
+     *            each parameter will be added to the GET-request
+     * 
+     * @return number of bytes in the body
+     */
+    public static long streamBytes(URL contextRoot, String path, ChunkConsumer consumer, RequestParameter... parameters) {
+        Objects.requireNonNull(consumer);
+        
+        final URLConnection conn = openNonPersistentConnection(contextRoot, path, parameters);
+        
+        try (InputStream in = body(conn)) {
+            return readChunks(in, consumer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Will make a GET-request to the provided Servlet test driver and return
+     * the response body as a channel.<p>
+     * 
+     * The client must close the channel, which also close the connection.<p>
+     * 
+     * See {@linkplain #getBytes(URL, String, RequestParameter...)} for a
+     * description of the path.
+     * 
+     * @param contextRoot
+     *            deployed application URL ("application context root"),
+     *            provided by Arquillian
+     * @param path
+     *            path to servlet (may be {@code null} or empty)
+     * @param parameters
+     *            each parameter will be added to the GET-request
+     * 
+     * @return the response body
+     */
+    public static ReadableByteChannel openChannel(URL contextRoot, String path, RequestParameter... parameters) {
+        final URLConnection conn = openNonPersistentConnection(contextRoot, path, parameters);
+        
+        try {
+            return Channels.newChannel(body(conn));
         }
         catch (IOException e) {
             throw new UncheckedIOException(e);
@@ -224,20 +353,14 @@ public final class HttpRequests
     public static <T> T getObject(URL contextRoot, String path, RequestParameter... parameters) { 
         final URLConnection conn = openNonPersistentConnection(contextRoot, path, parameters);
         
-        try (ObjectInputStream in = new ObjectInputStream(conn.getInputStream());) {
-            return (T) in.readObject();
-        }
-        catch (EOFException e) {
-            return null;
+        try (InputStream in = body(conn)) {
+            return readObject(in);
         }
         catch (IOException e) {
             // Might be that you haven't packaged all dependent class files with the @Deployment?
             // Servlet or endpoint your trying to call isn't properly implemented?
             throw new UncheckedIOException(e);
         }
-        catch (ClassNotFoundException e) {
-            throw new AssertionError("Got object of unknown type.", e);
-        }
     }
     
     /**
@@ -260,16 +383,61 @@ public final class HttpRequests
     public static String getText(URL contextRoot) {
         final URLConnection conn = openNonPersistentConnection(contextRoot, null);
         
-        try (InputStream raw = conn.getInputStream();
-             InputStreamReader chars = new InputStreamReader(raw, StandardCharsets.UTF_8);
-             BufferedReader reader = new BufferedReader(chars)) {
-             return reader.lines().collect(Collectors.joining(System.lineSeparator()));
+        try (InputStream raw = body(conn)) {
+            return readText(raw);
         }
         catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
     
+    /**
+     * Same as {@linkplain #getObject(URL, String, RequestParameter...)}, only
+     * the request is made asynchronously, using a pooled persistent connection
+     * (see {@linkplain #persistentConnections(URL)}).<p>
+     * 
+     * Many requests made at once are pipelined on the pooled connections; no
+     * thread is blocked for each request in flight.
+     * 
+     * @param <T>
+     *            type of returned object
+     * @param contextRoot
+     *            deployed application URL ("application context root"),
+     *            provided by Arquillian
+     * @param path
+     *            path to servlet (may be {@code null} or empty)
+     * @param parameters
+     *            each parameter will be added to the GET-request
+     * 
+     * @return object returned by the test driver, in the future
+     * 
+     * @see HttpConnectionPool#getObjectAsync(String, RequestParameter...)
+     */
+    public static <T> CompletableFuture<T> getObjectAsync(URL contextRoot, String path, RequestParameter... parameters) {
+        return persistentConnections(contextRoot).getObjectAsync(path, parameters);
+    }
+    
+    /**
+     * Same as {@linkplain #getBytes(URL, String, RequestParameter...)}, only
+     * the request is made asynchronously, using a pooled persistent connection
+     * (see {@linkplain #persistentConnections(URL)}).
+     * 
+     * @param contextRoot
+     *            deployed application URL ("application context root"),
+     *            provided by Arquillian
+     * @param path
+     *            path to servlet (may be {@code null} or empty)
+     * @param parameters
+     *            each parameter will be added to the GET-request
+     * 
+     * @return the response body, in the future
+     * 
+     * @see HttpConnectionPool#getBytesAsync(String, RequestParameter...)
+     */
+    public static CompletableFuture<byte[]> getBytesAsync(URL contextRoot, String path, RequestParameter... parameters) {
+        return persistentConnections(contextRoot).getBytesAsync(path, parameters);
+    }
+    
     /**
      * Will make a POST-request to the provided Servlet test driver and return an
      * expected Java object as response.<p>
@@ -308,35 +476,82 @@ public final class HttpRequests
         conn.setDoOutput(true);
         conn.setRequestProperty("Content-Type", "application/octet-stream");
         
-        try (OutputStream raw = conn.getOutputStream();
-             ObjectOutputStream writer = new ObjectOutputStream(raw);) {
-             
-             writer.writeObject(toSend);
-             
-             raw.write('\r'); raw.write('\n');
-             raw.write('\r'); raw.write('\n');
+        final byte[] body = writeObject(toSend);
+        conn.setFixedLengthStreamingMode(body.length);
+        
+        try (OutputStream raw = conn.getOutputStream()) {
+             raw.write(body);
         }
         catch (IOException e) {
             throw new UncheckedIOException(e);
         }
         
-        try (InputStream raw = conn.getInputStream();
-             ObjectInputStream reader = new ObjectInputStream(raw);) {
-             return (T) reader.readObject();
+        try (InputStream raw = body(conn)) {
+            T t = readObject(raw);
+            
+            if (t == null) {
+                throw new EOFException();
+            }
+            
+            return t;
         }
         catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        catch (ClassNotFoundException e) {
-            throw new AssertionError("Got object of unknown type.", e);
-        }
+    }
+    
+    
+    
+    /**
+     * Same as {@linkplain #sendGetObject(URL, String, Serializable)}, only
+     * the request is made asynchronously, using a pooled persistent connection
+     * (see {@linkplain #persistentConnections(URL)}).
+     * 
+     * @param <T>
+     *            type of returned object
+     * @param contextRoot
+     *            deployed application URL ("application context root"),
+     *            provided by Arquillian
+     * @param path
+     *            path to servlet (may be {@code null} or empty)
+     * @param toSend
+     *            serialized and put in body of the POST request
+     * 
+     * @return object returned by the test driver, in the future
+     * 
+     * @see HttpConnectionPool#sendGetObjectAsync(String, Serializable)
+     */
+    public static <T> CompletableFuture<T> sendGetObjectAsync(URL contextRoot, String path, Serializable toSend) {
+        return persistentConnections(contextRoot).sendGetObjectAsync(path, toSend);
+    }
+    
+    
+    
+    /**
+     * Receives a response body, one chunk at a time.
+     * 
+     * @see #streamBytes(URL, String, ChunkConsumer, RequestParameter...)
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer
+    {
+        /**
+         * Consume the bytes from position to limit of the provided buffer.<p>
+         * 
+         * The buffer is reused after this method returns.
+         * 
+         * @param chunk next chunk of the body
+         * 
+         * @throws IOException if consumer fails, which abort the read
+         */
+        void accept(ByteBuffer chunk) throws IOException;
     }
     
     
     
     public static class RequestParameter
     {
-        private static String buildQuery(RequestParameter... requestParameters) {
+        static String buildQuery(RequestParameter... requestParameters) {
             return Stream.of(requestParameters)
                     .map(RequestParameter::asKeyValue)
                     .collect(Collectors.joining("&", "?", ""));
@@ -385,6 +600,202 @@ public final class HttpRequests
      *  --------------
      */
     
+    /**
+     * Read all bytes of the provided stream.
+     * 
+     * @param in stream to read
+     * @param contentLength expected number of bytes, {@code -1} if unknown
+     * 
+     * @return all bytes read
+     * 
+     * @throws IOException if reading fails
+     */
+    static byte[] readBytes(InputStream in, long contentLength) throws IOException {
+        if (contentLength >= 0 && contentLength < Integer.MAX_VALUE - 8) {
+            // Read straight into the result, no copying
+            final byte[] bytes = new byte[(int) contentLength];
+            
+            int n = 0, r;
+            
+            while (n < bytes.length && (r = in.read(bytes, n, bytes.length - n)) != -1) {
+                n += r;
+            }
+            
+            return n == bytes.length ? bytes : Arrays.copyOf(bytes, n);
+        }
+        
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        
+        readChunks(in, chunk ->
+                buffer.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining()));
+        
+        return buffer.toByteArray();
+    }
+    
+    /**
+     * Read all bytes of the provided stream, one pooled buffer at a time.
+     * 
+     * @param in stream to read
+     * @param consumer receives each chunk read
+     * 
+     * @return number of bytes read
+     * 
+     * @throws IOException if reading or consumer fails
+     */
+    static long readChunks(InputStream in, ChunkConsumer consumer) throws IOException {
+        final ByteBuffer buffer = borrowBuffer();
+        
+        try {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            
+            long total = 0;
+            int n;
+            
+            while ((n = in.read(array, offset, buffer.capacity())) != -1) {
+                if (n == 0) {
+                    continue;
+                }
+                
+                buffer.clear().limit(n);
+                consumer.accept(buffer);
+                total += n;
+            }
+            
+            return total;
+        }
+        finally {
+            returnBuffer(buffer);
+        }
+    }
+    
+    private static ByteBuffer borrowBuffer() {
+        final ByteBuffer buffer = BUFFERS.poll();
+        
+        if (buffer == null) {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        
+        POOLED_BUFFERS.decrementAndGet();
+        return buffer;
+    }
+    
+    private static void returnBuffer(ByteBuffer buffer) {
+        if (POOLED_BUFFERS.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            BUFFERS.offer(buffer);
+        }
+        else {
+            POOLED_BUFFERS.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Read one object from the provided stream, written using {@linkplain
+     * WireFormat} or Java serialization. The stream is closed.
+     * 
+     * @param <T> type of object
+     * @param in stream to read
+     * 
+     * @return the object, or {@code null} if stream is empty
+     * 
+     * @throws IOException if reading fails
+     */
+    static <T> T readObject(InputStream in) throws IOException {
+        try (InputStream reader = in) {
+            return WireFormat.read(reader);
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        catch (ClassNotFoundException e) {
+            throw new AssertionError("Got object of unknown type.", e);
+        }
+    }
+    
+    /**
+     * Read UTF-8 text from the provided stream, lines separated with {@code
+     * System.lineSeparator()}.
+     * 
+     * @param in stream to read
+     * 
+     * @return the text
+     * 
+     * @throws IOException if reading fails
+     */
+    static String readText(InputStream in) throws IOException {
+        InputStreamReader chars = new InputStreamReader(in, StandardCharsets.UTF_8);
+        BufferedReader reader = new BufferedReader(chars);
+        
+        try {
+            return reader.lines().collect(Collectors.joining(System.lineSeparator()));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Encode the provided object into bytes using {@linkplain WireFormat},
+     * followed by an empty line.
+     * 
+     * @param toSend object to encode
+     * 
+     * @return the bytes
+     */
+    static byte[] writeObject(Serializable toSend) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        try {
+            WireFormat.write(toSend, bytes);
+        }
+        catch (IOException e) {
+            throw new AssertionError("Writing to memory does not fail.", e);
+        }
+        
+        bytes.write('\r'); bytes.write('\n');
+        bytes.write('\r'); bytes.write('\n');
+        
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Returns the response body of the provided connection, decoded according
+     * to the {@code Content-Encoding} header.
+     * 
+     * @param conn connection of request
+     * 
+     * @return the decoded response body
+     * 
+     * @throws IOException if the coding is not supported or reading fails
+     */
+    private static InputStream body(URLConnection conn) throws IOException {
+        final InputStream raw = conn.getInputStream();
+        
+        try {
+            return HttpCompression.Encoding.of(conn.getContentEncoding()).decode(raw);
+        }
+        catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns the number of bytes in the decoded response body of the provided
+     * connection, or {@code -1} if not known.
+     * 
+     * @param conn connection of request
+     * 
+     * @return the number of bytes in the decoded response body
+     */
+    private static long contentLength(URLConnection conn) {
+        final String coding = conn.getContentEncoding();
+        
+        return coding == null || coding.equalsIgnoreCase("identity") ?
+                conn.getContentLengthLong() : -1;
+    }
+    
     /**
      * Will transform provided arguments into a {@code HttpURLConnection}
      * against the test Servlet.
@@ -406,6 +817,7 @@ public final class HttpRequests
             URL url = new URL(contextRoot, (path == null ? "" : path) + query);
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
             conn.setRequestProperty("Connection", "close");
+            conn.setRequestProperty("Accept-Encoding", HttpCompression.ACCEPT_ENCODING);
             return conn;
         }
         catch (IOException e) {
@@ -0,0 +1,648 @@
+package com.martinandersson.javaee.utils;
+
+import com.martinandersson.javaee.utils.ThreadScheduler.Yielder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs stages of a {@linkplain ThreadScheduler} in many different orders,
+ * looking for an order (a schedule) that makes a stage throw an exception.<p>
+ * 
+ * A {@code ThreadScheduler} hand over the turn to the next stage in
+ * insertion-order. The explorer instead decide who run next each time a stage
+ * yield or complete. The sequence of decisions is a {@linkplain Schedule}.
+ * Schedules can be explored in two ways:
+ * 
+ * <ol>
+ *   <li>{@linkplain #explore(int) Exhaustively}, trying every schedule there
+ *       is, up to a limit.</li><br />
+ *   <li>{@linkplain #sample(long, int) Randomly}, from a seed. The same seed
+ *       always produce the same schedules.</li>
+ * </ol>
+ * 
+ * Any schedule that failed can be {@linkplain #replay(Schedule) replayed}, in
+ * which case the exception is thrown to the caller, for example a JUnit test
+ * method.<p>
+ * 
+ * The number of schedules grow exponentially with the number of yields.
+ * Stages that declare what they touched when they yield (see {@linkplain
+ * Yielder#yield(Object...)}) make exhaustive exploration skip schedules that
+ * only differ in the order of stages that touched different things (partial
+ * order reduction). Of all schedules that are equivalent in this sense, only
+ * the one that run stages with a lower index first is explored.<p>
+ * 
+ * Schedules are run in parallel. Each schedule get his own stages from the
+ * supplier provided to the constructor, and stages of different schedules
+ * must not share state unless the parallelism is {@code 1}. The stages must
+ * also be deterministic; given the same schedule, they must yield the same
+ * number of times.<p>
+ * 
+ * This class is executable and provide a code sample in
+ * {@linkplain #main(java.lang.String...) public void static main()}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class InterleavingExplorer
+{
+    private final Supplier<? extends Collection<Consumer<Yielder>>> stages;
+    
+    private final int parallelism;
+    
+    private final ThreadFactory threads = PhasedExecutorService.lightweightThreadFactory();
+    
+    
+    
+    /**
+     * Initializes a newly created {@code InterleavingExplorer} that run as
+     * many schedules in parallel as there are CPU:s.
+     * 
+     * @param stages supplier of new stages for each schedule, at least two
+     */
+    public InterleavingExplorer(Supplier<? extends Collection<Consumer<Yielder>>> stages) {
+        this(stages, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Initializes a newly created {@code InterleavingExplorer}.
+     * 
+     * @param stages supplier of new stages for each schedule, at least two
+     * @param parallelism number of schedules run in parallel
+     * 
+     * @throws IllegalArgumentException if {@code parallelism} is less than 1
+     */
+    public InterleavingExplorer(Supplier<? extends Collection<Consumer<Yielder>>> stages, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive, got: " + parallelism);
+        }
+        
+        this.stages = Objects.requireNonNull(stages);
+        this.parallelism = parallelism;
+    }
+    
+    
+    
+    /**
+     * Run every schedule there is, or until the specified number of schedules
+     * has been run.<p>
+     * 
+     * Schedules are explored depth-first; each schedule run differ from
+     * a schedule already run by one decision. Schedules that are equivalent to
+     * a schedule already explored are abandoned as soon as the equivalence is
+     * known and are not counted as run.
+     * 
+     * @param maxSchedules maximum number of schedules to run
+     * 
+     * @return a report of the exploration
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Report explore(int maxSchedules) throws InterruptedException {
+        final Deque<int[]> prefixes = new ArrayDeque<>();
+        prefixes.push(new int[0]);
+        
+        final Report report = new Report();
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        final CompletionService<Run> runs = new ExecutorCompletionService<>(executor);
+        
+        int started = 0, inFlight = 0;
+        
+        try {
+            for (;;) {
+                while (inFlight < parallelism && started < maxSchedules && !prefixes.isEmpty()) {
+                    Run r = new Run(prefixes.pop(), null, true);
+                    runs.submit(() -> execute(r), r);
+                    ++started;
+                    ++inFlight;
+                }
+                
+                if (inFlight == 0) {
+                    break;
+                }
+                
+                final Run r = take(runs);
+                --inFlight;
+                
+                if (r.redundant) {
+                    --started;
+                    report.pruned++;
+                }
+                else {
+                    report.record(r);
+                }
+                
+                // Alternatives to each decision made after the prefix
+                for (int d = r.decisions.size() - 1; d >= r.prefix.length; --d) {
+                    final Decision decision = r.decisions.get(d);
+                    
+                    for (int i = decision.alive.nextSetBit(0); i >= 0; i = decision.alive.nextSetBit(i + 1)) {
+                        if (i != decision.chosen) {
+                            int[] child = r.choices(d + 1);
+                            child[d] = i;
+                            prefixes.push(child);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        
+        report.exhaustive = prefixes.isEmpty();
+        return report;
+    }
+    
+    /**
+     * Run the specified number of randomly chosen schedules.<p>
+     * 
+     * Each schedule is given a seed of his own, derived from the specified
+     * seed. Exploring again using the same seed run the same schedules.
+     * 
+     * @param seed the seed
+     * @param schedules number of schedules to run
+     * 
+     * @return a report of the exploration
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Report sample(long seed, int schedules) throws InterruptedException {
+        final SplittableRandom seeds = new SplittableRandom(seed);
+        final Report report = new Report();
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        final CompletionService<Run> runs = new ExecutorCompletionService<>(executor);
+        
+        try {
+            for (int i = 0; i < schedules; ++i) {
+                Run r = new Run(new int[0], seeds.nextLong(), false);
+                runs.submit(() -> execute(r), r);
+            }
+            
+            for (int i = 0; i < schedules; ++i) {
+                report.record(take(runs));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        
+        report.exhaustive = false;
+        return report;
+    }
+    
+    /**
+     * Run the specified schedule in the calling thread.<p>
+     * 
+     * If a stage throw an exception, the exception is propagated to the caller
+     * the same way {@linkplain ThreadScheduler#run()} does.
+     * 
+     * @param schedule schedule to replay
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void replay(Schedule schedule) throws InterruptedException {
+        final Run r = schedule.seed == null ?
+                new Run(schedule.choices, null, false) :
+                new Run(new int[0], schedule.seed, false);
+        
+        r.scheduler().run();
+    }
+    
+    private static Run take(CompletionService<Run> runs) throws InterruptedException {
+        try {
+            return runs.take().get();
+        }
+        catch (ExecutionException e) {
+            // execute() does not throw
+            throw new AssertionError(e);
+        }
+    }
+    
+    private void execute(Run run) {
+        try {
+            run.scheduler().run();
+        }
+        catch (Redundant e) {
+            run.redundant = true;
+        }
+        catch (RuntimeException | Error e) {
+            run.failure = e;
+        }
+        catch (InterruptedException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                // Exploration shut down
+                return;
+            }
+            
+            run.failure = e;
+        }
+    }
+    
+    
+    
+    /**
+     * One decision made during a run.
+     */
+    private static final class Decision {
+        /** Indices of stages to choose from. */
+        final BitSet alive;
+        
+        final int chosen;
+        
+        /** The stage who run until this decision. */
+        final int stage;
+        
+        /** What he touched, {@code null} if unknown. */
+        final Object[] touched;
+        
+        Decision(BitSet alive, int chosen, int stage, Object[] touched) {
+            this.alive = alive;
+            this.chosen = chosen;
+            this.stage = stage;
+            this.touched = touched;
+        }
+    }
+    
+    /**
+     * One run of the stages, following a prefix of decisions and then either
+     * a random generator or the lowest stage alive.
+     */
+    private final class Run implements ThreadScheduler.Strategy {
+        final int[] prefix;
+        
+        final Long seed;
+        
+        final SplittableRandom random;
+        
+        final boolean reduce;
+        
+        final List<Decision> decisions = new ArrayList<>();
+        
+        boolean redundant;
+        
+        Throwable failure;
+        
+        Run(int[] prefix, Long seed, boolean reduce) {
+            this.prefix = prefix;
+            this.seed = seed;
+            this.random = seed == null ? null : new SplittableRandom(seed);
+            this.reduce = reduce;
+        }
+        
+        ThreadScheduler scheduler() {
+            return new ThreadScheduler(threads, this).enqueue(stages.get());
+        }
+        
+        @Override
+        public int next(int current, Object[] touched, BitSet alive) {
+            final int d = decisions.size();
+            
+            if (reduce && d > 0) {
+                /*
+                 * The last two turns were given to different stages that
+                 * touched different things, and in the reverse order of their
+                 * index. The same turns in index order lead to the same state
+                 * and that schedule is explored instead.
+                 */
+                final Decision last = decisions.get(d - 1);
+                
+                if (last.stage > current && independent(last.touched, touched)) {
+                    throw Redundant.INSTANCE;
+                }
+            }
+            
+            final int chosen;
+            
+            if (d < prefix.length) {
+                chosen = prefix[d];
+                
+                if (!alive.get(chosen)) {
+                    throw new IllegalStateException(
+                            "Schedule diverged at decision " + d + ", are the stages deterministic?");
+                }
+            }
+            else if (random != null) {
+                int skip = random.nextInt(alive.cardinality()),
+                    i = alive.nextSetBit(0);
+                
+                while (skip-- > 0) {
+                    i = alive.nextSetBit(i + 1);
+                }
+                
+                chosen = i;
+            }
+            else {
+                chosen = alive.nextSetBit(0);
+            }
+            
+            decisions.add(new Decision((BitSet) alive.clone(), chosen, current, touched));
+            
+            return chosen;
+        }
+        
+        /**
+         * Returns the first {@code n} decisions made.
+         */
+        int[] choices(int n) {
+            final int[] choices = new int[n];
+            
+            for (int i = 0; i < n; ++i) {
+                choices[i] = decisions.get(i).chosen;
+            }
+            
+            return choices;
+        }
+        
+        Schedule schedule() {
+            return new Schedule(choices(decisions.size()), seed);
+        }
+    }
+    
+    private static boolean independent(Object[] a, Object[] b) {
+        if (a == null || b == null) {
+            return false;
+        }
+        
+        for (Object x : a) {
+            for (Object y : b) {
+                if (Objects.equals(x, y)) {
+                    return false;
+                }
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Thrown through the stage that gave up his turn when a run is known to be
+     * equivalent to a run explored elsewhere.
+     */
+    private static final class Redundant extends Error {
+        static final Redundant INSTANCE = new Redundant();
+        
+        private Redundant() {
+            super(null, null, false, false);
+        }
+    }
+    
+    
+    
+    /*
+     *  ----------
+     * | SCHEDULE |
+     *  ----------
+     */
+    
+    /**
+     * The decisions of who run next, made during one run of the stages.<p>
+     * 
+     * Each decision is the index of the chosen stage, in the order stages was
+     * supplied. A schedule that was randomly sampled also has a seed.
+     */
+    public static final class Schedule {
+        private final int[] choices;
+        
+        private final Long seed;
+        
+        private Schedule(int[] choices, Long seed) {
+            this.choices = choices;
+            this.seed = seed;
+        }
+        
+        /**
+         * Returns a schedule of the specified decisions, for example copied from
+         * a test log.
+         * 
+         * @param choices index of the chosen stage, one for each decision
+         * 
+         * @return a schedule
+         */
+        public static Schedule of(int... choices) {
+            return new Schedule(choices.clone(), null);
+        }
+        
+        /**
+         * Returns a randomly sampled schedule.
+         * 
+         * @param seed the seed of the schedule
+         * 
+         * @return a schedule
+         */
+        public static Schedule ofSeed(long seed) {
+            return new Schedule(new int[0], seed);
+        }
+        
+        /**
+         * Returns index of the chosen stage, one for each decision.
+         * 
+         * @return index of the chosen stage, one for each decision
+         */
+        public int[] getChoices() {
+            return choices.clone();
+        }
+        
+        /**
+         * Returns the seed if schedule was randomly sampled, otherwise
+         * {@code null}.
+         * 
+         * @return the seed, or {@code null}
+         */
+        public Long getSeed() {
+            return seed;
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder(Schedule.class.getSimpleName())
+                    .append("[")
+                      .append("choices=").append(Arrays.toString(choices))
+                      .append(", seed=").append(seed)
+                    .append("]")
+                    .toString();
+        }
+    }
+    
+    /**
+     * A schedule that made a stage throw an exception.
+     */
+    public static final class Failure {
+        private final Schedule schedule;
+        
+        private final Throwable cause;
+        
+        private Failure(Schedule schedule, Throwable cause) {
+            this.schedule = schedule;
+            this.cause = cause;
+        }
+        
+        /**
+         * Returns the schedule that failed.
+         * 
+         * @return the schedule that failed
+         */
+        public Schedule getSchedule() {
+            return schedule;
+        }
+        
+        /**
+         * Returns the exception thrown.
+         * 
+         * @return the exception thrown
+         */
+        public Throwable getCause() {
+            return cause;
+        }
+        
+        @Override
+        public String toString() {
+            return schedule + " threw " + cause;
+        }
+    }
+    
+    /**
+     * Report of an exploration.
+     */
+    public static final class Report {
+        private int run, pruned;
+        
+        private boolean exhaustive;
+        
+        private final List<Failure> failures = new ArrayList<>();
+        
+        private Report() {
+            // Empty
+        }
+        
+        /**
+         * Returns the number of schedules run to completion, or until a stage
+         * failed.
+         * 
+         * @return the number of schedules run
+         */
+        public int getSchedulesRun() {
+            return run;
+        }
+        
+        /**
+         * Returns the number of schedules abandoned because they were
+         * equivalent to another schedule.
+         * 
+         * @return the number of schedules abandoned
+         */
+        public int getSchedulesPruned() {
+            return pruned;
+        }
+        
+        /**
+         * Returns {@code true} if every schedule there is has been explored,
+         * otherwise {@code false}.
+         * 
+         * @return {@code true} if every schedule there is has been explored
+         */
+        public boolean isExhaustive() {
+            return exhaustive;
+        }
+        
+        /**
+         * Returns all schedules that failed.
+         * 
+         * @return all schedules that failed, never {@code null}
+         */
+        public List<Failure> getFailures() {
+            return Collections.unmodifiableList(failures);
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder(Report.class.getSimpleName())
+                    .append("[")
+                      .append("schedulesRun=").append(getSchedulesRun())
+                      .append(", schedulesPruned=").append(pruned)
+                      .append(", exhaustive=").append(exhaustive)
+                      .append(", failures=").append(failures.size())
+                    .append("]")
+                    .toString();
+        }
+        
+        void record(Run r) {
+            ++run;
+            
+            if (r.failure != null) {
+                failures.add(new Failure(r.schedule(), r.failure));
+            }
+        }
+    }
+    
+    
+    
+    /**
+     * Demonstrates how to use the {@code InterleavingExplorer} class.
+     * 
+     * @param ignored ignored
+     * 
+     * @throws InterruptedException for simplicity only, should not happen
+     */
+    public static void main(String... ignored) throws InterruptedException {
+        /*
+         * Two stages increment a shared counter, but read and write in
+         * separate turns: a lost update. A third stage touch something else
+         * and is only explored in the orders that matter.
+         */
+        Supplier<List<Consumer<Yielder>>> stages = () -> {
+            int[] counter = {0}, finished = {0};
+            
+            Consumer<Yielder> incrementer = yielder -> {
+                int read = counter[0];
+                yielder.yield("counter");
+                counter[0] = read + 1;
+                
+                if (++finished[0] == 2 && counter[0] != 2) {
+                    throw new IllegalStateException("Lost update!");
+                }
+            };
+            
+            Consumer<Yielder> bystander = yielder -> {
+                yielder.yield("something else");
+                yielder.yield("something else");
+            };
+            
+            return Arrays.asList(incrementer, incrementer, bystander);
+        };
+        
+        InterleavingExplorer explorer = new InterleavingExplorer(stages);
+        
+        Report exhaustive = explorer.explore(100_000);
+        System.out.println("Exhaustive: " + exhaustive);
+        
+        Report sampled = explorer.sample(42, 1_000);
+        System.out.println("Sampled: " + sampled);
+        
+        Failure first = exhaustive.getFailures().get(0);
+        System.out.println("Replaying " + first);
+        
+        try {
+            explorer.replay(first.getSchedule());
+        }
+        catch (IllegalStateException e) {
+            System.out.println("Replay threw " + e.getMessage());
+        }
+    }
+}
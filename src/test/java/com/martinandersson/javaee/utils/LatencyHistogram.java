@@ -0,0 +1,283 @@
+package com.martinandersson.javaee.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of recorded values, typically latencies in
+ * nanoseconds.<p>
+ * 
+ * The histogram is laid out like a HDR histogram: values are counted in
+ * log-linear buckets. Small values up to {@code 2^7} are counted exactly and
+ * larger values keep 7 significant bits, so that the value reported for a
+ * percentile is never off by more than about 1.6 %. Values larger than {@code
+ * 2^40} (about 18 minutes if the unit is nanoseconds) are counted as {@code
+ * 2^40}.<p>
+ * 
+ * Recording a value is one atomic increment of a bucket plus a few atomic
+ * updates of the total count, min and max. No locks are used and the histogram
+ * may be updated by many threads concurrently. Reading percentiles while
+ * values are being recorded is also allowed, but the result is then only an
+ * approximation of a histogram in flux.<p>
+ * 
+ * Memory footprint is about 18 kB per histogram.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class LatencyHistogram
+{
+    /** Values below {@code 2^SIGNIFICANT_BITS} are counted exactly. */
+    private static final int SIGNIFICANT_BITS = 7;
+    
+    private static final int EXACT = 1 << SIGNIFICANT_BITS;
+    
+    private static final int HALF = EXACT >>> 1;
+    
+    /** Highest bit of the largest value counted. */
+    private static final int MAX_EXPONENT = 40;
+    
+    private static final long MAX_VALUE = 1L << MAX_EXPONENT;
+    
+    private static final int BUCKETS = EXACT + (MAX_EXPONENT - SIGNIFICANT_BITS + 1) * HALF;
+    
+    
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    
+    private final AtomicLong total = new AtomicLong();
+    
+    private final AtomicLong sum = new AtomicLong();
+    
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    
+    
+    
+    /**
+     * Record the specified value.
+     * 
+     * @param value value to record, must not be negative
+     * 
+     * @throws IllegalArgumentException if {@code value} is negative
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        
+        counts.incrementAndGet(indexOf(Math.min(value, MAX_VALUE)));
+        sum.addAndGet(value);
+        min.accumulateAndGet(value, Math::min);
+        max.accumulateAndGet(value, Math::max);
+        
+        // Count last; a reader that see the count should see the value counted
+        total.incrementAndGet();
+    }
+    
+    /**
+     * Returns the number of values recorded.
+     * 
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return total.get();
+    }
+    
+    /**
+     * Returns the smallest value recorded, {@code 0} if no value has been
+     * recorded.
+     * 
+     * @return the smallest value recorded
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : min.get();
+    }
+    
+    /**
+     * Returns the largest value recorded, {@code 0} if no value has been
+     * recorded.
+     * 
+     * @return the largest value recorded
+     */
+    public long getMax() {
+        return getCount() == 0 ? 0 : max.get();
+    }
+    
+    /**
+     * Returns the mean of all values recorded, {@code 0} if no value has been
+     * recorded.
+     * 
+     * @return the mean of all values recorded
+     */
+    public double getMean() {
+        final long count = getCount();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+    
+    /**
+     * Returns the value at the specified percentile.<p>
+     * 
+     * The returned value is the highest value that is equivalent to the value
+     * recorded, given the precision of this histogram, but never more than the
+     * largest value recorded.
+     * 
+     * @param percentile percentile, for example {@code 99.9}
+     * 
+     * @return the value at the specified percentile, {@code 0} if no value has
+     *         been recorded
+     * 
+     * @throws IllegalArgumentException if {@code percentile} is not within
+     *         {@code [0, 100]}
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile out of range: " + percentile);
+        }
+        
+        final long count = getCount();
+        
+        if (count == 0) {
+            return 0;
+        }
+        
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        
+        // Histogram updated while we were reading
+        return getMax();
+    }
+    
+    /**
+     * Returns the median.
+     * 
+     * @return the median
+     */
+    public long p50() {
+        return getValueAtPercentile(50);
+    }
+    
+    /**
+     * Returns the 99th percentile.
+     * 
+     * @return the 99th percentile
+     */
+    public long p99() {
+        return getValueAtPercentile(99);
+    }
+    
+    /**
+     * Returns the 99.9th percentile.
+     * 
+     * @return the 99.9th percentile
+     */
+    public long p999() {
+        return getValueAtPercentile(99.9);
+    }
+    
+    /**
+     * Add all values recorded by the specified histogram to this histogram.
+     * 
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        final long count = other.getCount();
+        
+        if (count == 0) {
+            return;
+        }
+        
+        for (int i = 0; i < BUCKETS; ++i) {
+            final long c = other.counts.get(i);
+            
+            if (c > 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        
+        sum.addAndGet(other.sum.get());
+        min.accumulateAndGet(other.min.get(), Math::min);
+        max.accumulateAndGet(other.max.get(), Math::max);
+        total.addAndGet(count);
+    }
+    
+    /**
+     * Forget all values recorded.<p>
+     * 
+     * Values recorded concurrently with a reset may or may not survive.
+     */
+    public void reset() {
+        total.set(0);
+        
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts.set(i, 0);
+        }
+        
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+    
+    
+    
+    /*
+     *  ------------------
+     * | OBJECT OVERRIDES |
+     *  ------------------
+     */
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(LatencyHistogram.class.getSimpleName())
+                .append("[")
+                  .append("count=").append(getCount())
+                  .append(", min=").append(getMin())
+                  .append(", p50=").append(p50())
+                  .append(", p99=").append(p99())
+                  .append(", p999=").append(p999())
+                  .append(", max=").append(getMax())
+                .append("]")
+                .toString();
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    private static int indexOf(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        
+        final int exponent = 63 - Long.numberOfLeadingZeros(value),
+                  shift = exponent - SIGNIFICANT_BITS + 1;
+        
+        final int mantissa = (int) (value >>> shift); // <-- within [HALF, EXACT)
+        
+        return EXACT + (shift - 1) * HALF + (mantissa - HALF);
+    }
+    
+    private static long highestValueOf(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        
+        final int shift = (index - EXACT) / HALF + 1,
+                  mantissa = (index - EXACT) % HALF + HALF;
+        
+        return (((long) mantissa + 1) << shift) - 1;
+    }
+}
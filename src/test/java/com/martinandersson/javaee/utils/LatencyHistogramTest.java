@@ -0,0 +1,166 @@
+package com.martinandersson.javaee.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of {@linkplain LatencyHistogram}: bucket boundaries, precision and
+ * merging.<p>
+ * 
+ * Plain unit tests, no server needed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class LatencyHistogramTest
+{
+    /** A value keep 7 significant bits, the bucket width is at most value / 2^6. */
+    private static final double PRECISION = 1.0 / 64;
+    
+    /** Recorded after the value under test, so that max does not clamp the median. */
+    private static final long LARGE = 1_000_000_000L;
+    
+    
+    
+    @Test
+    public void emptyHistogram() {
+        final LatencyHistogram h = new LatencyHistogram();
+        
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMin());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getMean(), 0);
+        assertEquals(0, h.p99());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValueIsRejected() {
+        new LatencyHistogram().record(-1);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileOutOfRangeIsRejected() {
+        new LatencyHistogram().getValueAtPercentile(100.1);
+    }
+    
+    @Test
+    public void bucketBoundaries() {
+        // Below 2^7, values are counted exactly
+        assertEquals(0, medianOf(0));
+        assertEquals(1, medianOf(1));
+        assertEquals(127, medianOf(127));
+        
+        // From 2^7, buckets are 2 wide..
+        assertEquals(129, medianOf(128));
+        assertEquals(129, medianOf(129));
+        assertEquals(131, medianOf(130));
+        assertEquals(255, medianOf(255));
+        
+        // ..from 2^8, 4 wide, and so on
+        assertEquals(259, medianOf(256));
+        assertEquals(259, medianOf(259));
+        assertEquals(263, medianOf(260));
+        
+        // Highest value of a bucket is never more than the largest value recorded
+        final LatencyHistogram h = new LatencyHistogram();
+        h.record(128);
+        assertEquals(128, h.p50());
+    }
+    
+    @Test
+    public void valuesAboveTwoToTheFortiethAreCountedAsTwoToTheFortieth() {
+        final LatencyHistogram h = new LatencyHistogram();
+        
+        h.record(1L << 41);
+        h.record(1L << 42);
+        
+        // Highest value of the bucket of 2^40, which is 2^34 wide
+        assertEquals((65L << 34) - 1, h.p50());
+        assertEquals(1L << 42, h.getMax());
+    }
+    
+    @Test
+    public void percentilesAreWithinPrecision() {
+        final Random random = new Random(4711);
+        final long[] values = new long[100_000];
+        
+        final LatencyHistogram h = new LatencyHistogram();
+        
+        for (int i = 0; i < values.length; ++i) {
+            // Log-uniform over [1, 2^36), so that every order of magnitude is tested
+            values[i] = (long) Math.pow(2, random.nextDouble() * 36);
+            h.record(values[i]);
+        }
+        
+        Arrays.sort(values);
+        
+        for (double percentile : new double[]{ 0, 1, 10, 25, 50, 75, 90, 99, 99.9, 99.99, 100 }) {
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * values.length)),
+                       exact = values[(int) rank - 1],
+                       reported = h.getValueAtPercentile(percentile);
+            
+            assertTrue("p" + percentile + ": " + reported + " < " + exact, reported >= exact);
+            
+            assertTrue("p" + percentile + ": " + reported + " is too far from " + exact,
+                    reported - exact <= exact * PRECISION);
+        }
+        
+        assertEquals(values[0], h.getMin());
+        assertEquals(values[values.length - 1], h.getMax());
+        assertEquals(Arrays.stream(values).average().getAsDouble(), h.getMean(), 1e-6);
+    }
+    
+    @Test
+    public void merge() {
+        final LatencyHistogram fast = new LatencyHistogram(),
+                               slow = new LatencyHistogram(),
+                               all = new LatencyHistogram();
+        
+        for (long v = 1; v <= 1_000; ++v) {
+            fast.record(v);
+            all.record(v);
+        }
+        
+        for (long v = 1_000_000; v <= 1_010_000; v += 10) {
+            slow.record(v);
+            all.record(v);
+        }
+        
+        fast.add(slow);
+        fast.add(new LatencyHistogram()); // <-- adding an empty histogram change nothing
+        
+        assertEquals(all.getCount(), fast.getCount());
+        assertEquals(1, fast.getMin());
+        assertEquals(1_010_000, fast.getMax());
+        assertEquals(all.getMean(), fast.getMean(), 0);
+        
+        for (double percentile : new double[]{ 0, 25, 49.9, 50, 75, 99, 100 }) {
+            assertEquals("p" + percentile, all.getValueAtPercentile(percentile), fast.getValueAtPercentile(percentile));
+        }
+        
+        // The slow ones are the upper half
+        assertTrue(fast.getValueAtPercentile(49) <= 1_000);
+        assertTrue(fast.getValueAtPercentile(51) >= 1_000_000);
+        
+        // Source is left as is
+        assertEquals(1_001, slow.getCount());
+        assertEquals(1_000_000, slow.getMin());
+    }
+    
+    
+    
+    /**
+     * Returns the median of the provided value and a larger value, which is
+     * the highest value of the bucket that the provided value was counted in.
+     */
+    private static long medianOf(long value) {
+        final LatencyHistogram h = new LatencyHistogram();
+        
+        h.record(value);
+        h.record(LARGE);
+        
+        return h.p50();
+    }
+}
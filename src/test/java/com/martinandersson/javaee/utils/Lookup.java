@@ -1,27 +1,196 @@
 package com.martinandersson.javaee.utils;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import javax.ejb.Singleton;
+import javax.ejb.Stateless;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
 import javax.transaction.TransactionSynchronizationRegistry;
 import javax.transaction.UserTransaction;
 
 /**
- * Utility class with an API to look things up using JNDI.
+ * Utility class with an API to look things up using JNDI.<p>
+ * 
+ * The module name and references of {@code @Stateless} and {@code
+ * @Singleton} beans are cached, so that only the first lookup of a name hit
+ * JNDI. Every lookup of a {@code @Stateful} bean, or a bean declared in a
+ * deployment descriptor only, must return a new reference and so is never
+ * cached. Names in {@code java:comp} are never cached either. What they
+ * resolve to, and if they may be looked up at all, depend on the component
+ * doing the lookup. For example, a bean with container-managed transactions
+ * may not look up the {@code UserTransaction}.<p>
+ * 
+ * The cache is cleared when the deployment of this class is undeployed, by
+ * a servlet context listener that ShrinkWrap add together with this class.<p>
+ * 
+ * Many beans can be looked up at once using {@linkplain
+ * #globalBeans(Collection)}, or be prefetched in parallel using {@linkplain
+ * #prefetch(Collection)}, for example when a driver start.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public final class Lookup
 {
+    private static final ConcurrentMap<String, Object> CACHE = new ConcurrentHashMap<>();
+    
+    private static final LongAdder HITS = new LongAdder(),
+                                   MISSES = new LongAdder();
+    
     private Lookup() {
         // Utility class
     }
     
     public static <T> T globalBean(Class<? extends T> beanType) throws NamingException {
-        return InitialContext.doLookup("java:global/" + moduleName() + "/" + beanType.getSimpleName());
+        final String name = "java:global/" + moduleName() + "/" + beanType.getSimpleName();
+        
+        return isShareable(beanType) ?
+                cached(name) :
+                InitialContext.doLookup(name);
+    }
+    
+    /**
+     * Look up the global references of many beans in one pass, using one
+     * naming context and one lookup of the module name.<p>
+     * 
+     * References are cached like {@linkplain #globalBean(Class)} does.
+     * 
+     * @param beanTypes bean types
+     * 
+     * @return references keyed by bean type, in iteration order of {@code
+     *         beanTypes}
+     * 
+     * @throws NamingException if a lookup fails
+     */
+    public static Map<Class<?>, Object> globalBeans(Collection<? extends Class<?>> beanTypes) throws NamingException {
+        final String prefix = "java:global/" + moduleName() + "/";
+        final Map<Class<?>, Object> beans = new LinkedHashMap<>();
+        
+        Context context = null;
+        
+        try {
+            for (Class<?> type : beanTypes) {
+                final String name = prefix + type.getSimpleName();
+                final boolean shareable = isShareable(type);
+                
+                Object bean = shareable ? CACHE.get(name) : null;
+                
+                if (bean != null) {
+                    HITS.increment();
+                }
+                else {
+                    if (context == null) {
+                        context = new InitialContext();
+                    }
+                    
+                    bean = context.lookup(name);
+                    
+                    if (shareable) {
+                        MISSES.increment();
+                        
+                        final Object other = CACHE.putIfAbsent(name, bean);
+                        
+                        if (other != null) {
+                            bean = other;
+                        }
+                    }
+                }
+                
+                beans.put(type, bean);
+            }
+        }
+        finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+        
+        return beans;
+    }
+    
+    /**
+     * Look up and cache the global references of the provided beans in
+     * parallel, using the default managed executor service of the container.
+     * <p>
+     * 
+     * Only {@code @Stateless} and {@code @Singleton} beans not already cached
+     * are looked up, other references are never cached. If the managed
+     * executor service is not available, then the lookups are made serially
+     * by the calling thread before this method returns.
+     * 
+     * @param beanTypes bean types
+     * 
+     * @return a future completed when all references are cached, or
+     *         completed exceptionally with the {@code NamingException} of a
+     *         failed lookup
+     * 
+     * @throws NamingException if looking up the module name fails
+     */
+    public static CompletableFuture<Void> prefetch(Collection<? extends Class<?>> beanTypes) throws NamingException {
+        final String prefix = "java:global/" + moduleName() + "/";
+        
+        final String[] names = beanTypes.stream()
+                .filter(Lookup::isShareable)
+                .map(type -> prefix + type.getSimpleName())
+                .filter(name -> !CACHE.containsKey(name))
+                .distinct()
+                .toArray(String[]::new);
+        
+        ManagedExecutorService executor;
+        
+        try {
+            executor = InitialContext.doLookup("java:comp/DefaultManagedExecutorService");
+        }
+        catch (NamingException e) {
+            executor = null;
+        }
+        
+        if (executor == null) {
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            
+            try {
+                for (String name : names) {
+                    cached(name);
+                }
+                
+                done.complete(null);
+            }
+            catch (NamingException e) {
+                done.completeExceptionally(e);
+            }
+            
+            return done;
+        }
+        
+        final ManagedExecutorService exec = executor;
+        
+        // InitialContext is not thread-safe, each task use his own
+        return CompletableFuture.allOf(Stream.of(names)
+                .map(name -> CompletableFuture.runAsync(() -> {
+                        try {
+                            cached(name);
+                        }
+                        catch (NamingException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, exec))
+                .toArray(CompletableFuture[]::new));
     }
     
     public static String moduleName() throws NamingException {
-        return InitialContext.doLookup("java:module/ModuleName");
+        return cached("java:module/ModuleName");
     }
     
     public static TransactionSynchronizationRegistry transactionSyncRegistry() throws NamingException {
@@ -31,4 +200,93 @@ public final class Lookup
     public static UserTransaction userTransaction() throws NamingException {
         return InitialContext.doLookup("java:comp/UserTransaction");
     }
-}
\ No newline at end of file
+    
+    /**
+     * Remove all cached objects.
+     */
+    public static void invalidate() {
+        CACHE.clear();
+    }
+    
+    /**
+     * Remove the cached reference of the provided bean type.
+     * 
+     * @param beanType bean type
+     * 
+     * @throws NamingException if looking up the module name fails
+     */
+    public static void invalidate(Class<?> beanType) throws NamingException {
+        CACHE.remove("java:global/" + moduleName() + "/" + beanType.getSimpleName());
+    }
+    
+    /**
+     * Returns the number of lookups served by the cache.
+     * 
+     * @return the number of lookups served by the cache
+     */
+    public static long hits() {
+        return HITS.sum();
+    }
+    
+    /**
+     * Returns the number of cacheable lookups that had to hit JNDI.
+     * 
+     * @return the number of cacheable lookups that had to hit JNDI
+     */
+    public static long misses() {
+        return MISSES.sum();
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    /**
+     * Clears the cache when the deployment is undeployed.
+     */
+    @WebListener
+    public static final class Invalidator implements ServletContextListener {
+        @Override
+        public void contextInitialized(ServletContextEvent sce) {
+            // Nothing cached yet
+        }
+        
+        @Override
+        public void contextDestroyed(ServletContextEvent sce) {
+            invalidate();
+        }
+    }
+    
+    private static <T> T cached(String name) throws NamingException {
+        Object value = CACHE.get(name);
+        
+        if (value != null) {
+            HITS.increment();
+        }
+        else {
+            MISSES.increment();
+            
+            // Two threads may both look up, only one result is kept
+            final Object fresh = InitialContext.doLookup(name);
+            value = CACHE.putIfAbsent(name, fresh);
+            
+            if (value == null) {
+                value = fresh;
+            }
+        }
+        
+        @SuppressWarnings("unchecked")
+        T t = (T) value;
+        
+        return t;
+    }
+    
+    private static boolean isShareable(Class<?> beanType) {
+        return beanType.isAnnotationPresent(Stateless.class) ||
+               beanType.isAnnotationPresent(Singleton.class);
+    }
+}
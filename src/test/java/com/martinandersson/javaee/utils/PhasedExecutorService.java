@@ -1,16 +1,24 @@
 package com.martinandersson.javaee.utils;
 
+import static java.lang.System.out;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
-import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -20,8 +28,15 @@ import java.util.concurrent.Phaser;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -52,41 +67,164 @@ import java.util.stream.IntStream;
  * 
  * <ol>
  *   <li>All methods declared by {@linkplain Executor} and {@linkplain
- *       ExecutorService} that accept one single task will throw a {@code
- *       UnsupportedOperationException}.</li><br />
+ *       ExecutorService} that accept one single task execute the task
+ *       "unphased", using a thread of his own.</li><br />
  * 
  *   <li>No batches of tasks are allowed to be executed in parallel. If one
  *       batch is already executing when another batch is supplied, an {@code
  *       IllegalStateException} will be thrown.</li><br />
  * </ol>
  * 
- * The constraints leave few task-accepting methods from the {@linkplain
- * ExecutorService} interface left to use. The primary choice being
- * {@linkplain #invokeAll(java.util.Collection) invokeAll(Collection)}. However,
+ * The primary choice of task-accepting methods from the {@linkplain
+ * ExecutorService} interface is {@linkplain #invokeAll(java.util.Collection)
+ * invokeAll(Collection)}. A batch may also be given a deadline, after which
+ * unfinished tasks are cancelled (see {@linkplain
+ * #invokeAll(Collection, long, TimeUnit)}), and {@linkplain
+ * #invokeAny(Collection)} race phased tasks against each other. Phases may
+ * also be released at a fixed rate for a duration of time, regardless of how
+ * long the tasks take (see {@linkplain
+ * #runOpenLoop(Callable, double, Duration, Consumer)}). However,
  * {@code PhasedExecutorService} provide an extended API for easy submission of
  * tasks. Some methods are particularly customized for test code, such as
  * {@linkplain #invokeManyTimes(Runnable, int) invokeManyTimes(Runnable, int)} and
  * {@linkplain #invokeManyTimes(Callable, int) invokeManyTimes(Callable, int)}.<p>
  * 
- * Also for the benefit of test code, the thread pool is constructed and
- * "destroyed" for each batch of tasks executed. This makes overall memory
+ * Also for the benefit of test code, the thread pool is by default constructed
+ * and "destroyed" for each batch of tasks executed. This makes overall memory
  * consumption low and does not require an explicit shutdown by the client as is
- * otherwise the case with executor services on the server-side.
+ * otherwise the case with executor services on the server-side.<p>
+ * 
+ * Clients that execute a great many batches, for example by calling {@code
+ * invokeManyTimes()} in a loop, may ask for the worker threads to be reused
+ * (see {@linkplain #PhasedExecutorService(int, ThreadFactory, boolean)}). The
+ * workers are then started on first use and kept parked between batches. Such
+ * an executor service must be {@linkplain #shutdown() shutdown} or {@linkplain
+ * #close() closed} by the client when no longer needed.<p>
+ * 
+ * A variant that release thousands of parties through the same phase, on a
+ * machine with any number of CPU:s, is provided by {@linkplain
+ * #forManyParties(int)}.<p>
+ * 
+ * Whether or not the workers are reused, the time it took to get the last batch
+ * going is reported separately from the time it took to execute the tasks. See
+ * {@linkplain #getLastSetupTime()} and {@linkplain #getLastExecutionTime()}.
+ * More detailed statistics of each phase, such as start skew and percentiles
+ * of task durations, is collected by an optional {@linkplain Recorder}.<p>
+ * 
+ * This class is executable and {@linkplain #main(java.lang.String...) public
+ * void static main()} compare the throughput of the different {@linkplain
+ * TaskDistribution}s.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public class PhasedExecutorService implements ExecutorService, AutoCloseable
 {
+    /**
+     * Maximum number of parties registered with one and the same phaser. If
+     * more worker threads than this is used, the phasers will be tiered.
+     */
+    private static final int PARTIES_PER_PHASER = 32;
+    
+    /**
+     * Stack size hint used by {@linkplain #lightweightThreadFactory()} when
+     * virtual threads are not available.
+     */
+    private static final long LIGHTWEIGHT_STACK_SIZE = 256 * 1024;
+    
+    /** Marker used internally for batches that has no deadline. */
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+    
+    /**
+     * Returns a new executor service meant to release very many parties, for
+     * example 10 000, through the same phase.<p>
+     * 
+     * The purpose of such an executor service is concurrency more so than
+     * parallelism; to have a lot of callers hit the same component at once.
+     * Therefore, this factory does not require the machine to have more than
+     * one CPU and the number of parties is not related to how many CPU:s the
+     * machine has. Worker threads are created using {@linkplain
+     * #lightweightThreadFactory()}.<p>
+     * 
+     * The phasers used by the executor service will be tiered if need be, so
+     * that the cost of arriving at a phase stays low even with many parties.
+     * 
+     * @param parties number of worker threads, at least 2
+     * 
+     * @return a new executor service
+     */
+    public static PhasedExecutorService forManyParties(int parties) {
+        return forManyParties(parties, lightweightThreadFactory());
+    }
+    
+    /**
+     * Same as {@linkplain #forManyParties(int)}, only the worker threads are
+     * created using the specified thread factory.
+     * 
+     * @param parties number of worker threads, at least 2
+     * @param threadFactory factory of worker threads
+     * 
+     * @return a new executor service
+     */
+    public static PhasedExecutorService forManyParties(int parties, ThreadFactory threadFactory) {
+        return new PhasedExecutorService(parties, threadFactory, false, false);
+    }
+    
+    /**
+     * Returns a thread factory that produce virtual threads if the Java runtime
+     * support them, otherwise daemon threads with a small stack size.<p>
+     * 
+     * The code base target Java 8, so the virtual thread factory (Java 21+) is
+     * looked up reflectively.
+     * 
+     * @return a thread factory of cheap threads
+     */
+    public static ThreadFactory lightweightThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory")
+                    .invoke(builder);
+        }
+        catch (ReflectiveOperationException e) {
+            return runnable -> {
+                Thread t = new Thread(null, runnable, "phased-worker", LIGHTWEIGHT_STACK_SIZE);
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+    
+    
+    
     private final AtomicBoolean isExecutingTasks = new AtomicBoolean();
     
     private final ThreadFactory threadFactory;
     
     private final int threadCount;
     
-    private volatile Phaser phaser;
+    /** {@code null} if worker threads are not reused. */
+    private final WorkerPool pool;
+    
+    /** Counted down when the executor service has terminated. */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    
+    /** Number of tasks executing, or about to, that was not part of a batch. */
+    private final AtomicInteger unphasedTasks = new AtomicInteger();
+    
+    /** The batch currently executing, or {@code null}. */
+    private volatile Batch<?> current;
+    
+    /** The open loop currently running, or {@code null}. */
+    private volatile OpenLoop<?> openLoop;
     
     private volatile boolean shutdown = false;
     
+    private volatile long lastSetupNanos, lastExecutionNanos;
+    
+    private volatile Recorder recorder;
+    
+    private volatile TaskDistribution distribution = TaskDistribution.WORK_STEALING;
+    
     
     
     public PhasedExecutorService() {
@@ -106,7 +244,30 @@ public class PhasedExecutorService implements ExecutorService, AutoCloseable
     }
     
     public PhasedExecutorService(int threadCount, ThreadFactory threadFactory) {
-        if (Runtime.getRuntime().availableProcessors() < 2)
+        this(threadCount, threadFactory, false);
+    }
+    
+    /**
+     * Initializes a new {@code PhasedExecutorService}.<p>
+     * 
+     * If {@code reuseWorkers} is {@code true}, then the worker threads are
+     * created once, on first batch, and kept parked between batches. The phaser
+     * used to synchronize the workers is also reused. This mode is intended for
+     * clients that execute many batches in a row and who do not want thread
+     * creation to be part of what they measure. The client must {@linkplain
+     * #shutdown() shutdown} the executor service when done using it.
+     * 
+     * @param threadCount number of worker threads, at least 2
+     * @param threadFactory factory of worker threads
+     * @param reuseWorkers {@code true} if worker threads should be kept alive
+     *        across batches, otherwise {@code false}
+     */
+    public PhasedExecutorService(int threadCount, ThreadFactory threadFactory, boolean reuseWorkers) {
+        this(threadCount, threadFactory, reuseWorkers, true);
+    }
+    
+    private PhasedExecutorService(int threadCount, ThreadFactory threadFactory, boolean reuseWorkers, boolean requireParallelism) {
+        if (requireParallelism && Runtime.getRuntime().availableProcessors() < 2)
             throw new IllegalStateException("Impossible to execute provided tasks in parallel. You have to few CPU:s lol.");
         
         if (threadCount < 2)
@@ -115,6 +276,8 @@ public class PhasedExecutorService implements ExecutorService, AutoCloseable
         this.threadCount = threadCount;
         
         this.threadFactory = Objects.requireNonNull(threadFactory, "threadFactory is null");
+        
+        this.pool = reuseWorkers ? new WorkerPool() : null;
     }
     
     
@@ -128,48 +291,141 @@ public class PhasedExecutorService implements ExecutorService, AutoCloseable
         return threadCount;
     }
     
+    /**
+     * Returns {@code true} if worker threads are kept alive across batches,
+     * otherwise {@code false}.
+     * 
+     * @return {@code true} if worker threads are kept alive across batches
+     */
+    public boolean isReusingWorkers() {
+        return pool != null;
+    }
+    
+    /**
+     * Returns the time it took for the last batch to get going. That is the
+     * time from the batch was supplied until all worker threads had arrived
+     * at the first phase, including thread creation (if workers are not
+     * reused).
+     * 
+     * @return setup time of the last batch, {@code Duration.ZERO} if no batch
+     *         has been executed
+     */
+    public Duration getLastSetupTime() {
+        return Duration.ofNanos(lastSetupNanos);
+    }
+    
+    /**
+     * Returns the time it took for the last batch to execute all tasks, from
+     * the release of the first phase until the last task completed.
+     * 
+     * @return execution time of the last batch, {@code Duration.ZERO} if no
+     *         batch has been executed
+     */
+    public Duration getLastExecutionTime() {
+        return Duration.ofNanos(lastExecutionNanos);
+    }
+    
+    /**
+     * Set a recorder of phase statistics, or {@code null} to stop recording.<p>
+     * 
+     * The recorder is picked up by the next batch and records the start skew
+     * of each phase and the duration of each task. One and the same recorder
+     * accumulate statistics from all batches executed until replaced. See
+     * {@linkplain Recorder}.
+     * 
+     * @param recorder the recorder (may be {@code null})
+     */
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
+    }
+    
+    /**
+     * Returns the recorder of phase statistics, if one has been set.
+     * 
+     * @return the recorder of phase statistics, may be {@code null}
+     */
+    public Recorder getRecorder() {
+        return recorder;
+    }
+    
+    /**
+     * Set how tasks are distributed among the worker threads. The setting is
+     * picked up by the next batch.<p>
+     * 
+     * Default is {@linkplain TaskDistribution#WORK_STEALING}.
+     * 
+     * @param distribution how to distribute tasks
+     */
+    public void setTaskDistribution(TaskDistribution distribution) {
+        this.distribution = Objects.requireNonNull(distribution, "distribution is null");
+    }
+    
+    /**
+     * Returns how tasks are distributed among the worker threads.
+     * 
+     * @return how tasks are distributed among the worker threads
+     */
+    public TaskDistribution getTaskDistribution() {
+        return distribution;
+    }
+    
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * A batch currently executing will run to completion. If worker threads
+     * are reused, then parked workers are released and will die.
+     */
     @Override
     public void shutdown() {
         shutdown = true;
+        tryTerminate();
     }
-
+    
     /**
-     * <strong><i>This method will always return an empty list as this
-     * feature has not been implemented yet.</i></strong><p>
+     * {@inheritDoc}<p>
      * 
-     * {@inheritDoc}
+     * Tasks of the current batch that has not yet been picked by a worker
+     * thread are cancelled and returned. Workers waiting for a phase to begin
+     * are released and will not pick any more tasks. Tasks already running are
+     * not interrupted.
      * 
-     * @return an empty {@code List<Runnable>}.
+     * @return tasks of the current batch that never commenced execution
      */
     @Override
     public List<Runnable> shutdownNow() {
         shutdown();
         
-        if (isExecutingTasks.get() && phaser != null) {
-            try {
-                phaser.forceTermination();
-            }
-            catch (NullPointerException e) {
-                ; // Too late :'(
-            }
+        OpenLoop<?> loop = openLoop;
+        
+        if (loop != null) {
+            loop.phasers.root.forceTermination();
+        }
+        
+        Batch<?> batch = current;
+        
+        if (batch == null) {
+            return Collections.emptyList();
         }
         
-        return Collections.EMPTY_LIST;
+        List<Runnable> neverRun = batch.drain();
+        batch.phasers.root.forceTermination();
+        
+        return neverRun;
     }
-
+    
     @Override
     public boolean isShutdown() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return shutdown;
     }
-
+    
     @Override
     public boolean isTerminated() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return terminated.getCount() == 0L;
     }
-
+    
     @Override
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return terminated.await(timeout, unit);
     }
     
     /**
@@ -225,7 +481,7 @@ public class PhasedExecutorService implements ExecutorService, AutoCloseable
         callables.add(0, task);
         return invokeAll(callables);
     }
-
+    
     /**
      * {@inheritDoc}<p>
      * 
@@ -233,6 +489,10 @@ public class PhasedExecutorService implements ExecutorService, AutoCloseable
      * least as many tasks as there are threads. The residual lot is executed
      * "unphased".<p>
      * 
+     * If the calling thread is interrupted while waiting, then all tasks not
+     * yet completed are cancelled, the interrupt status is restored and the
+     * futures are returned.
+     * 
      * @param <T> type of result
      * @param tasks tasks to execute
      * 
@@ -252,194 +512,299 @@ public class PhasedExecutorService implements ExecutorService, AutoCloseable
     /**
      * See {@linkplain #invokeAll(Collection)}.
      * 
-     * @param <T>
-     * @param tasks
-     * @param beforeEachPhase
+     * @param <T> type of result
+     * @param tasks tasks to execute
+     * @param beforeEachPhase callback invoked before each phase
      * 
-     * @return 
+     * @return all futures for management of the tasks and retrieval of their result
      */
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, BeforeEachPhase beforeEachPhase) {
-        if (shutdown) {
-            throw new RejectedExecutionException("Executor service has been shutdown.");
-        }
-        
-        if (isExecutingTasks.getAndSet(true)) {
-            throw new IllegalStateException("Already doing a batch.");
-        }
+        Batch<T> batch = execute(tasks, beforeEachPhase, false, NO_DEADLINE);
         
-        final int size = tasks.size();
-        
-        if (size < threadCount) {
-            throw new IllegalArgumentException("To few tasks for a proper synchronization across all threads. Consider using a normal executor service.");
+        if (batch.interrupted) {
+            Thread.currentThread().interrupt();
         }
         
-        // All worker threads poll tasks from this Queue:
-        Queue<FutureTask<T>> __tasks = new ConcurrentLinkedQueue<>(
-                tasks.stream().map(FutureTask::new).collect(Collectors.toList()));
-        
-        // Amount of tasks that has been picked from Queue (ConcurrentLinkedQueue has an expensive .size()):
-        AtomicInteger pickedTasks = new AtomicInteger();
-        
-        // Returned to caller:
-        List<Future<T>> asFutures = new ArrayList<>(__tasks);
-        
-        phaser = new Phaser(threadCount) {
-            @Override protected boolean onAdvance(int phase, int registeredParties) {
-                return beforeEachPhase.onAdvance(phase); }
-        };
-        
-        CyclicBarrier finished = new CyclicBarrier(threadCount + 1, () -> {
-            // Inverted order:
-            phaser = null;
-            isExecutingTasks.set(false);
-        });
-        
-        Runnable waitForCompletion = () -> {
-            try { finished.await(); }
-            catch (InterruptedException | BrokenBarrierException e) {}
-        };
-        
-        final int batchableSize = size - (size % threadCount); // <-- we don't phase residue tasks
-        
-        IntStream.range(0, threadCount).forEach(x -> threadFactory.newThread(() -> {
-            FutureTask<T> task;
-            
-            while (shutdown == false && (task = __tasks.poll()) != null) {
-                final int pickedByOthers = pickedTasks.getAndIncrement();
-                
-                if (task.isCancelled())
-                    continue;
-                
-                if (pickedByOthers < batchableSize) {
-                    phaser.arriveAndAwaitAdvance();
-                }
-                // else, run unphased!
-                
-                if (phaser.isTerminated()) {
-                    break;
-                }
-
-                // Go!
-                task.run(); // <-- FutureTask.run() deals properly with cancelled state and Throwable
-            }
-            
-            waitForCompletion.run();
-        }).start());
-        
-        // According to ExecutorService, we must wait for all to complete:
-        waitForCompletion.run();
-        
-        return asFutures;
+        return batch.futures;
     }
     
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The timeout is a deadline for the whole batch. Tasks that has not
+     * completed when the deadline is reached are cancelled, and workers waiting
+     * for a phase to begin are released. The futures are returned without
+     * waiting for tasks that ignore interruption. Until such tasks complete, the
+     * executor service is still doing the batch and will reject new ones with
+     * an {@code IllegalStateException}.
+     * 
+     * @param <T> type of result
+     * @param tasks tasks to execute
+     * @param timeout maximum time to wait
+     * @param unit time unit of the timeout argument
+     * 
+     * @throws InterruptedException if interrupted while waiting, in which
+     *         case unfinished tasks are cancelled
+     * @throws RejectedExecutionException if any task cannot be scheduled for
+     *         execution
+     * @throws IllegalStateException if service is already doing a batch
+     * @throws IllegalArgumentException if fewer tasks than worker threads is
+     *         supplied
+     * 
+     * @return all futures for management of the tasks and retrieval of their result
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
+        return invokeAll(tasks, ignored -> false, timeout, unit);
+    }
     
-    
-    /*
-     *  ---------------
-     * | NOT SUPPORTED |
-     *  ---------------
+    /**
+     * See {@linkplain #invokeAll(Collection, long, TimeUnit)}.
+     * 
+     * @param <T> type of result
+     * @param tasks tasks to execute
+     * @param beforeEachPhase callback invoked before each phase
+     * @param timeout maximum time to wait
+     * @param unit time unit of the timeout argument
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     * 
+     * @return all futures for management of the tasks and retrieval of their result
      */
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, BeforeEachPhase beforeEachPhase, long timeout, TimeUnit unit) throws InterruptedException {
+        return execute(tasks, beforeEachPhase, false, deadline(timeout, unit))
+                .throwIfInterrupted()
+                .futures;
+    }
     
-    /** 
-     * Not supported.
+    /**
+     * {@inheritDoc}<p>
+     * 
+     * The tasks are executed in phases just like {@linkplain
+     * #invokeAll(Collection)}. The first task to complete successfully is
+     * the winner. All other tasks are then cancelled, running ones interrupted,
+     * and no more phases are released. This method returns when all workers
+     * have stopped.<p>
+     * 
+     * Racing tasks against each other like this is a way to measure contention.
      * 
-     * @param tasks ignored
-     * @param timeout ignored
-     * @param unit ignored
+     * @param <T> type of result
+     * @param tasks tasks to execute
      * 
-     * @return nothing
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if no task completed successfully, also if
+     *         all tasks were cancelled (cause is a {@code
+     *         CancellationException})
+     * @throws RejectedExecutionException if tasks cannot be scheduled for
+     *         execution
+     * @throws IllegalStateException if service is already doing a batch
+     * @throws IllegalArgumentException if fewer tasks than worker threads is
+     *         supplied
      * 
-     * @throws UnsupportedOperationException always
+     * @return the result of the winning task
      */
     @Override
-    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("Use a real executor service.");
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        try {
+            return execute(tasks, ignored -> false, true, NO_DEADLINE)
+                    .throwIfInterrupted()
+                    .result();
+        }
+        catch (TimeoutException e) {
+            // No deadline was set, so all tasks were cancelled, for example by shutdownNow()
+            ExecutionException cancelled = new ExecutionException(
+                    "All tasks were cancelled before one completed successfully.", new CancellationException());
+            
+            cancelled.addSuppressed(e);
+            throw cancelled;
+        }
     }
     
-    /** 
-     * Not supported.
+    /**
+     * Same as {@linkplain #invokeAny(Collection)}, only with a deadline for the
+     * whole batch. When the deadline is reached, all tasks are cancelled.
      * 
-     * @param task ignored
+     * @param <T> type of result
+     * @param tasks tasks to execute
+     * @param timeout maximum time to wait
+     * @param unit time unit of the timeout argument
      * 
-     * @return nothing
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if no task completed successfully
+     * @throws TimeoutException if no task completed before the deadline
      * 
-     * @throws UnsupportedOperationException always
+     * @return the result of the winning task
      */
     @Override
-    public <T> Future<T> submit(Callable<T> task) throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("Use a real executor service.");
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return execute(tasks, ignored -> false, true, deadline(timeout, unit))
+                .throwIfInterrupted()
+                .result();
     }
-
-    /** 
-     * Not supported.
+    
+    
+    
+    /**
+     * Release phases of the specified task at a fixed rate, for a duration of
+     * time (open-loop load).<p>
+     * 
+     * Each phase execute one copy of the task per worker thread. Phases are
+     * scheduled to begin at fixed intervals from the first phase, regardless
+     * of how long the tasks take. If the tasks of one phase take longer than
+     * the interval, then the next phase falls behind schedule and is released
+     * as soon as all workers are ready. Later phases keep their original
+     * schedule; they are not pushed forward.<p>
+     * 
+     * To correct for coordinated omission, the response time of a task is
+     * measured from when the phase was <i>scheduled</i> to begin, not from
+     * when it actually began. A server that stall for a second during a
+     * 5 000 phases/s run will therefore show up with thousands of slow
+     * responses, not just one. The time the task itself took is also recorded
+     * separately, as service time.<p>
+     * 
+     * Futures of completed tasks are handed to the specified consumer as soon
+     * as the task complete; no list of futures is built. The consumer is
+     * invoked concurrently by the worker threads and must be thread-safe. If
+     * the consumer throws an exception, then the run stops and the exception
+     * is rethrown to the caller of this method.<p>
      * 
-     * @param task ignored
+     * The worker threads are created for the run and die when it is over.
+     * While running, the executor service is considered to be doing a batch.
      * 
-     * @return nothing
+     * @param <T> type of result
+     * @param task the task, must be thread-safe
+     * @param phasesPerSecond target rate of phases
+     * @param duration for how long phases are released
+     * @param consumer receives the future of each completed task
+     * 
+     * @return a report of the run
      * 
-     * @throws UnsupportedOperationException always
+     * @throws InterruptedException if interrupted while waiting, in which
+     *         case no more phases are released
+     * @throws RejectedExecutionException if service has been shutdown
+     * @throws IllegalStateException if service is already doing a batch
+     * @throws IllegalArgumentException if {@code phasesPerSecond} is not
+     *         positive
      */
-    @Override
-    public <T> Future<T> submit(Runnable task, T result) throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("Use a real executor service.");
+    public <T> OpenLoopReport runOpenLoop(
+            Callable<T> task,
+            double phasesPerSecond,
+            Duration duration,
+            Consumer<? super Future<T>> consumer)
+            throws InterruptedException
+    {
+        Objects.requireNonNull(task, "task is null");
+        Objects.requireNonNull(consumer, "consumer is null");
+        
+        if (!(phasesPerSecond > 0)) {
+            throw new IllegalArgumentException("Rate must be positive, got: " + phasesPerSecond);
+        }
+        
+        final long interval = Math.max(1L, Math.round(1_000_000_000D / phasesPerSecond));
+        
+        acquire();
+        
+        final OpenLoop<T> loop;
+        
+        try {
+            loop = new OpenLoop<>(task, interval, duration.toNanos(), consumer);
+            openLoop = loop;
+            
+            IntStream.range(0, threadCount).forEach(x ->
+                    threadFactory.newThread(() -> loop.work(x)).start());
+        }
+        catch (RuntimeException | Error e) {
+            openLoop = null;
+            isExecutingTasks.set(false);
+            tryTerminate();
+            throw e;
+        }
+        
+        try {
+            loop.done.await();
+        }
+        catch (InterruptedException e) {
+            loop.phasers.root.forceTermination();
+            throw e;
+        }
+        finally {
+            loop.leave();
+        }
+        
+        if (loop.failure != null) {
+            throw loop.failure;
+        }
+        
+        return loop.report;
     }
     
-    /** 
-     * Not supported.
+    
+    
+    /*
+     *  ---------------------
+     * | SINGLE TASK SUPPORT |
+     *  ---------------------
+     */
+    
+    /**
+     * Executes the task unphased, using a thread of his own.
      * 
-     * @param task ignored
+     * @param task the task
      * 
-     * @return nothing
+     * @return a future representing the task
      * 
-     * @throws UnsupportedOperationException always
+     * @throws RejectedExecutionException if service has been shutdown
      */
     @Override
-    public Future<?> submit(Runnable task) throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("Use a real executor service.");
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        runUnphased(future);
+        return future;
     }
     
-    /** 
-     * Not supported.
+    /**
+     * Executes the task unphased, using a thread of his own.
      * 
-     * @param tasks ignored
+     * @param task the task
+     * @param result the result to return
      * 
-     * @return nothing
+     * @return a future representing the task
      * 
-     * @throws UnsupportedOperationException always
+     * @throws RejectedExecutionException if service has been shutdown
      */
     @Override
-    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("Use a real executor service.");
+    public <T> Future<T> submit(Runnable task, T result) {
+        FutureTask<T> future = new FutureTask<>(task, result);
+        runUnphased(future);
+        return future;
     }
     
-    /** 
-     * Not supported.
+    /**
+     * Executes the task unphased, using a thread of his own.
      * 
-     * @param tasks ignored
-     * @param timeout ignored
-     * @param unit ignored
+     * @param task the task
      * 
-     * @return nothing
+     * @return a future representing the task
      * 
-     * @throws UnsupportedOperationException always
+     * @throws RejectedExecutionException if service has been shutdown
      */
     @Override
-    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("Use a real executor service.");
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
     }
     
-    /** 
-     * Not supported.
+    /**
+     * Executes the command unphased, using a thread of his own.
      * 
-     * @param command ignored
+     * @param command the command
      * 
-     * @throws UnsupportedOperationException always
+     * @throws RejectedExecutionException if service has been shutdown
      */
     @Override
-    public void execute(Runnable command) throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("Use a real executor service.");
+    public void execute(Runnable command) {
+        runUnphased(Objects.requireNonNull(command, "command is null"));
     }
-
+    
     /**
      * Full implementation:
      * <pre>{@code
@@ -458,24 +823,1297 @@ public class PhasedExecutorService implements ExecutorService, AutoCloseable
     
     
     /*
-     *  ----------------------------
-     * | BEFORE-EACH-PHASE CALLBACK |
-     *  ----------------------------
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
      */
     
+    private static long deadline(long timeout, TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(timeout);
+    }
+    
     /**
-     * Callback invoked before each new phase is executed.
+     * Executes a batch of tasks and wait for the batch to complete or the
+     * deadline to pass, whichever happens first.<p>
+     * 
+     * If the calling thread is interrupted while waiting, then the batch is
+     * aborted and marked as interrupted. The interrupt status is cleared.
+     * 
+     * @param <T> type of result
+     * @param tasks tasks to execute
+     * @param beforeEachPhase callback invoked before each phase
+     * @param firstWins {@code true} if the first task to complete successfully
+     *        should cancel all others
+     * @param deadline as given by {@code System.nanoTime()}, or {@linkplain
+     *        #NO_DEADLINE}
+     * 
+     * @return the batch
      */
-    @FunctionalInterface
-    public interface BeforeEachPhase {
-        /**
-         * Callback invoked before each new phase is executed.
-         * 
-         * @param phase the next phase, starts at {@code 0}
-         * 
-         * @return {@code true} if the executor service should abort the phase
-         *         and terminate, otherwise {@code false}
-         */
-        boolean onAdvance(int phase);
+    private <T> Batch<T> execute(
+            Collection<? extends Callable<T>> tasks,
+            BeforeEachPhase beforeEachPhase,
+            boolean firstWins,
+            long deadline)
+    {
+        acquire();
+        
+        final long then = System.nanoTime();
+        
+        final Batch<T> batch;
+        
+        try {
+            if (tasks.size() < threadCount) {
+                throw new IllegalArgumentException("To few tasks for a proper synchronization across all threads. Consider using a normal executor service.");
+            }
+            
+            batch = new Batch<>(tasks, beforeEachPhase, firstWins, then);
+            
+            if (pool == null) {
+                batch.phasers = new PhaserTree(threadCount, batch::onAdvance);
+                current = batch;
+                startNewThreads(batch);
+            }
+            else {
+                batch.phasers = pool.phasers();
+                batch.firstPhase = batch.phasers.root.getPhase();
+                current = batch;
+                pool.start(batch);
+            }
+        }
+        catch (RuntimeException | Error e) {
+            current = null;
+            isExecutingTasks.set(false);
+            tryTerminate();
+            throw e;
+        }
+        
+        boolean completed = false;
+        
+        try {
+            if (deadline == NO_DEADLINE) {
+                batch.done.await();
+                completed = true;
+            }
+            else {
+                completed = batch.done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (InterruptedException e) {
+            batch.interrupted = true;
+        }
+        finally {
+            if (!completed) {
+                batch.abort();
+            }
+            
+            // According to ExecutorService, we must wait for all to complete (or timeout):
+            batch.leave();
+        }
+        
+        return batch;
+    }
+    
+    /**
+     * Mark this executor service as doing a batch.
+     * 
+     * @throws RejectedExecutionException if service has been shutdown
+     * @throws IllegalStateException if service is already doing a batch
+     */
+    private void acquire() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor service has been shutdown.");
+        }
+        
+        if (isExecutingTasks.getAndSet(true)) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor service has been shutdown.");
+            }
+            
+            throw new IllegalStateException("Already doing a batch.");
+        }
+    }
+    
+    /**
+     * Executes the specified batch using new worker threads that die when the
+     * batch has completed.
+     * 
+     * @param batch the batch to execute
+     */
+    private void startNewThreads(Batch<?> batch) {
+        IntStream.range(0, threadCount).forEach(x -> threadFactory.newThread(() -> {
+            try {
+                batch.work(x);
+            }
+            finally {
+                // Also a worker that crash must release the batch
+                batch.workerDone();
+            }
+        }).start());
+    }
+    
+    /**
+     * Executes the specified task using a new thread.
+     * 
+     * @param task the task
+     * 
+     * @throws RejectedExecutionException if service has been shutdown
+     */
+    private void runUnphased(Runnable task) {
+        unphasedTasks.incrementAndGet();
+        
+        if (shutdown) {
+            unphasedTasks.decrementAndGet();
+            tryTerminate();
+            throw new RejectedExecutionException("Executor service has been shutdown.");
+        }
+        
+        Thread t = threadFactory.newThread(() -> {
+            try {
+                task.run();
+            }
+            finally {
+                unphasedTasks.decrementAndGet();
+                tryTerminate();
+            }
+        });
+        
+        if (t == null) {
+            unphasedTasks.decrementAndGet();
+            throw new RejectedExecutionException("Thread factory refused to create a thread.");
+        }
+        
+        t.start();
+    }
+    
+    /**
+     * Called by the last thread leaving a batch.
+     * 
+     * @param batch the batch that has completed
+     */
+    private void finish(Batch<?> batch) {
+        final long now = System.nanoTime(),
+                   released = batch.released;
+        
+        if (released == 0L) {
+            // No phase was ever released
+            lastSetupNanos = now - batch.then;
+            lastExecutionNanos = 0L;
+        }
+        else {
+            lastSetupNanos = released - batch.then;
+            lastExecutionNanos = now - released;
+        }
+        
+        /*
+         * A callback or shutdownNow() terminated the phasers and the workers
+         * left tasks behind. Every future returned by invokeAll() must be done.
+         */
+        if (batch.phasers.root.isTerminated()) {
+            batch.drain();
+            batch.futures.forEach(f -> f.cancel(false));
+        }
+        
+        current = null;
+        isExecutingTasks.set(false);
+        tryTerminate();
+    }
+    
+    /**
+     * Will terminate this executor service if it has been shutdown and no
+     * tasks are executing.<p>
+     * 
+     * Claiming the executing-flag make sure that no more batches can start.
+     */
+    private void tryTerminate() {
+        if (shutdown && unphasedTasks.get() == 0 && isExecutingTasks.compareAndSet(false, true)) {
+            if (pool != null) {
+                pool.terminate();
+            }
+            
+            terminated.countDown();
+        }
+    }
+    
+    /**
+     * A batch of tasks as provided to {@code invokeAll()}, shared by all worker
+     * threads.
+     * 
+     * @param <T> type of result
+     */
+    private final class Batch<T> {
+        /** All worker threads poll tasks from this Queue, {@code null} if work stealing. */
+        final Queue<Task> shared;
+        
+        /**
+         * Indexed by worker, {@code null} if tasks are shared.<p>
+         * 
+         * The owner poll from the head and thieves poll from the tail. Tasks
+         * are dealt round-robin, so each worker has an equal share of phased
+         * tasks, followed by at most one residue task. Workers move through
+         * the phases in lockstep and a deque run dry only when the phased
+         * tasks of all deques has been picked. Hence, only residue tasks are
+         * ever stolen.
+         */
+        final List<Deque<Task>> deques;
+        
+        /** Residue tasks not yet picked, only used if work stealing. */
+        final AtomicInteger unpickedResidue;
+        
+        /** Returned to caller. */
+        final List<Future<T>> futures;
+        
+        final BeforeEachPhase beforeEachPhase;
+        
+        final int batchableSize;
+        
+        final boolean firstWins;
+        
+        /** Task that completed successfully first, only used if {@code firstWins}. */
+        final AtomicReference<Task> winner;
+        
+        /** Timestamp (nanos) of when the batch was supplied. */
+        final long then;
+        
+        /** Counted down by each worker when he has left the batch. */
+        final CountDownLatch done;
+        
+        /** Workers and the client; the last one to leave finish the batch. */
+        final AtomicInteger parties;
+        
+        /** Set by the client thread before the batch is handed over to the workers. */
+        PhaserTree phasers;
+        
+        /** Phase number of the phaser when the batch started (reused phasers do not start at 0). */
+        int firstPhase;
+        
+        /** Timestamp (nanos) of first phase released, {@code 0} if not yet released. */
+        volatile long released;
+        
+        /** {@code true} if the client was interrupted while waiting for the batch. */
+        boolean interrupted;
+        
+        /** {@code null} if this batch is not recorded. */
+        final Recorder recorder;
+        
+        /**
+         * Departures from the last phase released, only used if recording.<p>
+         * 
+         * Replaced by the last party to arrive, before the phase is released.
+         * All parties depart a phase before any one of them can depart the
+         * next phase, so one instance at a time is enough.
+         */
+        volatile Departures departures;
+        
+        Batch(Collection<? extends Callable<T>> tasks, BeforeEachPhase beforeEachPhase, boolean firstWins, long then) {
+            this.batchableSize = tasks.size() - (tasks.size() % threadCount); // <-- we don't phase residue tasks
+            
+            List<Task> all = new ArrayList<>(tasks.size());
+            tasks.forEach(callable -> all.add(new Task(callable, all.size() < batchableSize)));
+            
+            if (distribution == TaskDistribution.SHARED_QUEUE) {
+                this.shared = new ConcurrentLinkedQueue<>(all);
+                this.deques = null;
+                this.unpickedResidue = null;
+            }
+            else {
+                this.shared = null;
+                this.deques = IntStream.range(0, threadCount)
+                        .mapToObj(x -> new ConcurrentLinkedDeque<Task>())
+                        .collect(Collectors.toList());
+                
+                for (int i = 0; i < all.size(); ++i) {
+                    deques.get(i % threadCount).addLast(all.get(i));
+                }
+                
+                this.unpickedResidue = new AtomicInteger(all.size() - batchableSize);
+            }
+            
+            this.futures = new ArrayList<>(all);
+            this.beforeEachPhase = Objects.requireNonNull(beforeEachPhase, "beforeEachPhase is null");
+            this.firstWins = firstWins;
+            this.winner = new AtomicReference<>();
+            this.then = then;
+            this.done = new CountDownLatch(threadCount);
+            this.parties = new AtomicInteger(threadCount + 1);
+            this.recorder = PhasedExecutorService.this.recorder;
+        }
+        
+        boolean onAdvance(int phase) {
+            final int relative = phase - firstPhase;
+            
+            if (relative == 0) {
+                released = System.nanoTime();
+            }
+            
+            if (recorder != null) {
+                departures = new Departures(relative, recorder);
+            }
+            
+            return beforeEachPhase.onAdvance(relative);
+        }
+        
+        /**
+         * Executed by each worker thread; poll and run tasks until there are no
+         * more tasks left.
+         * 
+         * @param worker index of the worker thread
+         */
+        void work(int worker) {
+            final Phaser phaser = phasers.leaves[worker];
+            
+            try {
+                Task task;
+                
+                while ((task = next(worker)) != null) {
+                    Departures departed = null;
+                    
+                    /*
+                     * Also a cancelled task must arrive at the phase or the
+                     * other workers will wait forever.
+                     */
+                    if (task.phased) {
+                        phaser.arriveAndAwaitAdvance();
+                    }
+                    // else, run unphased!
+                    
+                    // Terminated before the phase was released, there are no departures to record
+                    if (phaser.isTerminated()) {
+                        task.cancel(false); // <-- picked, so drain() will not find him
+                        break;
+                    }
+                    
+                    if (task.phased && recorder != null) {
+                        departed = departures.depart(System.nanoTime());
+                    }
+                    
+                    // Go!
+                    if (recorder == null || task.isCancelled()) {
+                        task.run(); // <-- FutureTask.run() deals properly with cancelled state and Throwable
+                    }
+                    else {
+                        final long start = System.nanoTime();
+                        task.run();
+                        recorder.recordTask(departed, System.nanoTime() - start);
+                    }
+                }
+            }
+            finally {
+                // Cancellation may have interrupted us, don't let that leak into the next batch
+                Thread.interrupted();
+            }
+        }
+        
+        /**
+         * Returns the next task for the specified worker to run.
+         * 
+         * @param worker index of the worker thread
+         * 
+         * @return the next task, {@code null} if there are no tasks left
+         */
+        private Task next(int worker) {
+            if (shared != null) {
+                return shared.poll();
+            }
+            
+            Task task = deques.get(worker).pollFirst();
+            
+            if (task == null) {
+                task = steal(worker);
+            }
+            
+            if (task != null && !task.phased) {
+                unpickedResidue.decrementAndGet();
+            }
+            
+            return task;
+        }
+        
+        private Task steal(int thief) {
+            // Don't bother scanning all deques if there's nothing left to steal
+            for (int i = 1; i < threadCount && unpickedResidue.get() > 0; ++i) {
+                Task task = deques.get((thief + i) % threadCount).pollLast();
+                
+                if (task != null) {
+                    return task;
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Called by each worker when he has no more tasks to run.<p>
+         * 
+         * The worker leave before counting down the latch. A client that saw
+         * the batch complete in time is therefore always the last one to leave.
+         */
+        void workerDone() {
+            leave();
+            done.countDown();
+        }
+        
+        /**
+         * Called by each worker and the client thread when they leave the
+         * batch.
+         */
+        void leave() {
+            if (parties.decrementAndGet() == 0) {
+                finish(this);
+            }
+        }
+        
+        /**
+         * Throws an {@code InterruptedException} if the client was interrupted
+         * while waiting for the batch.
+         * 
+         * @return this batch
+         * 
+         * @throws InterruptedException if the client was interrupted
+         */
+        Batch<T> throwIfInterrupted() throws InterruptedException {
+            if (interrupted) {
+                throw new InterruptedException("Interrupted while waiting for batch.");
+            }
+            
+            return this;
+        }
+        
+        /**
+         * Cancel all tasks and release workers waiting for a phase.
+         */
+        void abort() {
+            futures.forEach(f -> f.cancel(true));
+            phasers.root.forceTermination();
+        }
+        
+        /**
+         * Cancel and return all tasks not yet picked by a worker.
+         * 
+         * @return all tasks not yet picked by a worker
+         */
+        List<Runnable> drain() {
+            List<Runnable> drained = new ArrayList<>();
+            
+            List<Queue<Task>> queues = shared != null ?
+                    Collections.singletonList(shared) :
+                    new ArrayList<>(deques);
+            
+            queues.forEach(queue -> {
+                Task task;
+                
+                while ((task = queue.poll()) != null) {
+                    task.cancel(false);
+                    drained.add(task);
+                }
+            });
+            
+            return drained;
+        }
+        
+        /**
+         * Returns the result of the winning task.
+         * 
+         * @return the result of the winning task
+         * 
+         * @throws ExecutionException if no task completed successfully
+         * @throws TimeoutException if all tasks was cancelled before one won
+         */
+        T result() throws ExecutionException, TimeoutException {
+            Task task = winner.get();
+            
+            if (task != null) {
+                try {
+                    return task.get();
+                }
+                catch (InterruptedException e) {
+                    throw new AssertionError("Task already completed.", e);
+                }
+            }
+            
+            ExecutionException failure = null;
+            
+            for (Future<T> f : futures) {
+                if (f.isDone() && !f.isCancelled()) {
+                    try {
+                        f.get();
+                    }
+                    catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                        else {
+                            failure.addSuppressed(e.getCause());
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        throw new AssertionError("Task already completed.", e);
+                    }
+                }
+            }
+            
+            if (failure != null) {
+                throw failure;
+            }
+            
+            throw new TimeoutException("No task completed successfully before the deadline.");
+        }
+        
+        /**
+         * A future task that report successful completion to the batch.
+         */
+        private final class Task extends FutureTask<T> {
+            /** {@code false} if the task is part of the residue. */
+            final boolean phased;
+            
+            Task(Callable<T> callable, boolean phased) {
+                super(callable);
+                this.phased = phased;
+            }
+            
+            @Override
+            protected void set(T v) {
+                super.set(v);
+                
+                if (firstWins && winner.compareAndSet(null, this)) {
+                    futures.stream()
+                           .filter(f -> f != this)
+                           .forEach(f -> f.cancel(true));
+                    
+                    phasers.root.forceTermination();
+                }
+            }
+        }
+    }
+    
+    /**
+     * An open-loop run, see {@linkplain #runOpenLoop(Callable, double, Duration, Consumer)}.
+     * 
+     * @param <T> type of result
+     */
+    private final class OpenLoop<T> {
+        final Callable<T> task;
+        
+        final long interval, duration;
+        
+        final Consumer<? super Future<T>> consumer;
+        
+        final PhaserTree phasers;
+        
+        final OpenLoopReport report;
+        
+        /** Counted down by each worker when he has left the run. */
+        final CountDownLatch done;
+        
+        /** Workers and the client; the last one to leave release the executor service. */
+        final AtomicInteger parties;
+        
+        /** Timestamp (nanos) of when the first phase was released. */
+        long start;
+        
+        /**
+         * Timestamp (nanos) of when the last phase released was scheduled to
+         * begin.<p>
+         * 
+         * Written by the last party to arrive, before the phase is released,
+         * and read by all parties after. No party can arrive at the next phase
+         * before he has read the value.
+         */
+        volatile long scheduled;
+        
+        volatile RuntimeException failure;
+        
+        OpenLoop(Callable<T> task, long interval, long duration, Consumer<? super Future<T>> consumer) {
+            this.task = task;
+            this.interval = interval;
+            this.duration = duration;
+            this.consumer = consumer;
+            this.phasers = new PhaserTree(threadCount, this::onAdvance);
+            this.report = new OpenLoopReport(interval);
+            this.done = new CountDownLatch(threadCount);
+            this.parties = new AtomicInteger(threadCount + 1);
+        }
+        
+        /**
+         * Wait for the next phase to be due, then release it.
+         * 
+         * @param phase the phase, starts at {@code 0}
+         * 
+         * @return {@code true} if the run is over, otherwise {@code false}
+         */
+        boolean onAdvance(int phase) {
+            long now = System.nanoTime();
+            
+            if (phase == 0) {
+                start = now;
+            }
+            
+            final long due = start + phase * interval;
+            
+            if (due - start >= duration) {
+                return true;
+            }
+            
+            while (now - due < 0) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+            
+            report.recordRelease(now - due);
+            scheduled = due;
+            
+            return false;
+        }
+        
+        void work(int worker) {
+            final Phaser phaser = phasers.leaves[worker];
+            
+            try {
+                while (phaser.arriveAndAwaitAdvance() >= 0 && !phaser.isTerminated()) {
+                    final long due = scheduled;
+                    
+                    FutureTask<T> future = new FutureTask<>(task);
+                    
+                    final long begin = System.nanoTime();
+                    future.run();
+                    final long end = System.nanoTime();
+                    
+                    report.recordTask(end - begin, end - due);
+                    consumer.accept(future);
+                }
+            }
+            catch (RuntimeException e) {
+                failure = e;
+            }
+            finally {
+                // Whatever the reason we left, no more phases will be completed
+                phasers.root.forceTermination();
+                Thread.interrupted();
+                leave();
+                done.countDown();
+            }
+        }
+        
+        void leave() {
+            if (parties.decrementAndGet() == 0) {
+                openLoop = null;
+                isExecutingTasks.set(false);
+                tryTerminate();
+            }
+        }
+    }
+    
+    /**
+     * Departures of all parties from one phase.
+     */
+    private final class Departures {
+        final int phase;
+        
+        final Recorder recorder;
+        
+        final AtomicLong first = new AtomicLong(Long.MAX_VALUE),
+                         last  = new AtomicLong(Long.MIN_VALUE);
+        
+        final AtomicInteger departed = new AtomicInteger();
+        
+        Departures(int phase, Recorder recorder) {
+            this.phase = phase;
+            this.recorder = recorder;
+        }
+        
+        /**
+         * Register the departure of one party. The last party to depart record
+         * the start skew of the phase.
+         * 
+         * @param now timestamp (nanos) of departure
+         * 
+         * @return this
+         */
+        Departures depart(long now) {
+            first.accumulateAndGet(now, Math::min);
+            last.accumulateAndGet(now, Math::max);
+            
+            if (departed.incrementAndGet() == threadCount) {
+                recorder.recordSkew(phase, last.get() - first.get());
+            }
+            
+            return this;
+        }
+    }
+    
+    /**
+     * Worker threads that are kept alive across batches.<p>
+     * 
+     * All workers and the client thread are registered with a gate. The gate
+     * advance once for each batch, when the batch begin. In between batches,
+     * the workers are parked at the gate.
+     */
+    private final class WorkerPool {
+        final Phaser gate = new Phaser(threadCount + 1);
+        
+        /** Reused for all batches until terminated. */
+        PhaserTree phasers;
+        
+        /**
+         * Only written by the client thread before arriving at the gate and
+         * only read by workers after the gate has advanced. Not cleared after a
+         * batch, so that late workers of an aborted batch still see him.
+         */
+        volatile Batch<?> batch;
+        
+        boolean started;
+        
+        /**
+         * Returns the phasers to use for the next batch.<p>
+         * 
+         * Only the client thread doing a batch may call this method.
+         * 
+         * @return the phasers to use for the next batch
+         */
+        PhaserTree phasers() {
+            if (phasers == null || phasers.root.isTerminated()) {
+                // A callback, deadline or shutdownNow() terminated the last one
+                phasers = new PhaserTree(threadCount, phase -> batch.onAdvance(phase));
+            }
+            
+            return phasers;
+        }
+        
+        /**
+         * Hand over the specified batch to the workers, without waiting for it
+         * to complete.<p>
+         * 
+         * Only the client thread doing a batch may call this method.
+         * 
+         * @param batch the batch to execute
+         * 
+         * @throws RejectedExecutionException if pool has been terminated
+         */
+        void start(Batch<?> batch) {
+            if (!started) {
+                IntStream.range(0, threadCount).forEach(x ->
+                        threadFactory.newThread(() -> work(x)).start());
+                
+                started = true;
+            }
+            
+            this.batch = batch;
+            
+            if (gate.arrive() < 0) {
+                throw new RejectedExecutionException("Executor service has been shutdown.");
+            }
+        }
+        
+        void terminate() {
+            gate.forceTermination();
+        }
+        
+        private void work(int worker) {
+            while (gate.arriveAndAwaitAdvance() >= 0) {
+                Batch<?> b = batch;
+                
+                try {
+                    b.work(worker);
+                }
+                finally {
+                    b.workerDone();
+                }
+            }
+        }
+    }
+    
+    /**
+     * One root phaser and one leaf phaser for each worker thread.<p>
+     * 
+     * If there are no more workers than {@value #PARTIES_PER_PHASER}, then all
+     * workers share the root as leaf. Otherwise, the phasers are tiered so that
+     * no phaser has more than {@value #PARTIES_PER_PHASER} parties registered.
+     * Arriving at a leaf is then cheap and only the last party to arrive at a
+     * leaf propagate the arrival to the parent. Only the root invoke the
+     * callback.
+     */
+    private static final class PhaserTree {
+        final Phaser root;
+        
+        /** Indexed by worker. */
+        final Phaser[] leaves;
+        
+        PhaserTree(int parties, BeforeEachPhase beforeEachPhase) {
+            leaves = new Phaser[parties];
+            
+            if (parties <= PARTIES_PER_PHASER) {
+                root = newRoot(parties, beforeEachPhase);
+                Arrays.fill(leaves, root);
+            }
+            else {
+                root = newRoot(0, beforeEachPhase);
+                tier(root, 0, parties);
+            }
+        }
+        
+        private static Phaser newRoot(int parties, BeforeEachPhase beforeEachPhase) {
+            return new Phaser(parties) {
+                @Override protected boolean onAdvance(int phase, int registeredParties) {
+                    return beforeEachPhase.onAdvance(phase); }
+            };
+        }
+        
+        private void tier(Phaser parent, int from, int to) {
+            final int parties = to - from;
+            
+            if (parties <= PARTIES_PER_PHASER) {
+                // Child register himself with the parent
+                Arrays.fill(leaves, from, to, new Phaser(parent, parties));
+                return;
+            }
+            
+            final int chunk = (parties + PARTIES_PER_PHASER - 1) / PARTIES_PER_PHASER;
+            
+            for (int i = from; i < to; i += chunk) {
+                tier(new Phaser(parent), i, Math.min(i + chunk, to));
+            }
+        }
+    }
+    
+    
+    
+    /*
+     *  ------------------
+     * | OPEN-LOOP REPORT |
+     *  ------------------
+     */
+    
+    /**
+     * Report of an open-loop run, see {@linkplain
+     * #runOpenLoop(Callable, double, Duration, Consumer)}.<p>
+     * 
+     * All times are in nanoseconds.
+     */
+    public static final class OpenLoopReport {
+        private final long interval;
+        
+        private final LongAdder behindSchedule = new LongAdder();
+        
+        private final LatencyHistogram releaseDelays = new LatencyHistogram(),
+                                       serviceTimes  = new LatencyHistogram(),
+                                       responseTimes = new LatencyHistogram();
+        
+        private OpenLoopReport(long interval) {
+            this.interval = interval;
+        }
+        
+        /**
+         * Returns the number of phases released.
+         * 
+         * @return the number of phases released
+         */
+        public long getPhasesReleased() {
+            return releaseDelays.getCount();
+        }
+        
+        /**
+         * Returns the number of phases released later than when the phase
+         * after was scheduled to begin.
+         * 
+         * @return the number of phases that fell behind schedule
+         */
+        public long getPhasesBehindSchedule() {
+            return behindSchedule.sum();
+        }
+        
+        /**
+         * Returns for each phase, the time from when it was scheduled to begin
+         * until it was released.
+         * 
+         * @return delay of each phase released
+         */
+        public LatencyHistogram getReleaseDelays() {
+            return releaseDelays;
+        }
+        
+        /**
+         * Returns the time each task took to execute.
+         * 
+         * @return the time each task took to execute
+         */
+        public LatencyHistogram getServiceTimes() {
+            return serviceTimes;
+        }
+        
+        /**
+         * Returns the time from when the phase of each task was scheduled to
+         * begin, until the task completed. This is the latency corrected for
+         * coordinated omission.
+         * 
+         * @return the response time of each task
+         */
+        public LatencyHistogram getResponseTimes() {
+            return responseTimes;
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder(OpenLoopReport.class.getSimpleName())
+                    .append("[")
+                      .append("phasesReleased=").append(getPhasesReleased())
+                      .append(", phasesBehindSchedule=").append(getPhasesBehindSchedule())
+                      .append(", serviceTimes=").append(serviceTimes)
+                      .append(", responseTimes=").append(responseTimes)
+                    .append("]")
+                    .toString();
+        }
+        
+        void recordRelease(long delay) {
+            releaseDelays.record(delay);
+            
+            if (delay >= interval) {
+                behindSchedule.increment();
+            }
+        }
+        
+        void recordTask(long serviceTime, long responseTime) {
+            serviceTimes.record(serviceTime);
+            responseTimes.record(responseTime);
+        }
+    }
+    
+    
+    
+    /*
+     *  -------------------
+     * | TASK DISTRIBUTION |
+     *  -------------------
+     */
+    
+    /**
+     * How tasks of a batch are distributed among the worker threads.<p>
+     * 
+     * Which tasks are executed in phases, and which tasks belong to the residue
+     * executed unphased, is decided when the batch is supplied. It does not
+     * depend on the distribution used.
+     */
+    public enum TaskDistribution {
+        /**
+         * All workers poll tasks from one and the same queue.<p>
+         * 
+         * With many short tasks, the head of the queue become a point of
+         * contention.
+         */
+        SHARED_QUEUE,
+        
+        /**
+         * Tasks are dealt round-robin to one deque per worker. A worker that
+         * has no tasks left steal tasks of the residue from the tail of the
+         * other workers' deques.
+         */
+        WORK_STEALING;
+    }
+    
+    
+    
+    /*
+     *  ------------------
+     * | PHASE STATISTICS |
+     *  ------------------
+     */
+    
+    /**
+     * Records statistics of each phase released by a {@code
+     * PhasedExecutorService}:
+     * 
+     * <ul>
+     *   <li>Start skew; the time from the first worker thread leaving the
+     *       phase barrier until the last worker thread did.</li>
+     *   <li>Task duration; the time it took for each task to execute.</li>
+     * </ul>
+     * 
+     * Phases are numbered the same way as they are by {@linkplain
+     * BeforeEachPhase}, starting at {@code 0} for each batch. A recorder used
+     * for many batches therefore accumulate statistics of the first phase of
+     * all batches under phase {@code 0}, the second phase under phase {@code 1}
+     * and so on. Tasks of the residue, executed unphased, are only recorded in
+     * {@linkplain #getUnphasedTaskDurations()}.<p>
+     * 
+     * All values are in nanoseconds and recorded using {@linkplain
+     * LatencyHistogram}s. Recording is lock-free.<p>
+     * 
+     * Example:
+     * <pre>{@code
+     * 
+     *     PhasedExecutorService.Recorder recorder = new PhasedExecutorService.Recorder();
+     *     executor.setRecorder(recorder);
+     *     executor.invokeManyTimes(bean::sleepAndGetId, 100);
+     *     
+     *     recorder.getPhases().forEach(System.out::println);
+     * 
+     * }</pre>
+     */
+    public static final class Recorder {
+        private final ConcurrentMap<Integer, PhaseStatistics> phases = new ConcurrentHashMap<>();
+        
+        private final LatencyHistogram unphased = new LatencyHistogram();
+        
+        /**
+         * Returns the statistics of the specified phase.
+         * 
+         * @param phase the phase, starts at {@code 0}
+         * 
+         * @return the statistics of the specified phase, {@code null} if the
+         *         phase has not been recorded
+         */
+        public PhaseStatistics getPhase(int phase) {
+            return phases.get(phase);
+        }
+        
+        /**
+         * Returns the statistics of all phases recorded, ordered by phase.
+         * 
+         * @return the statistics of all phases recorded
+         */
+        public List<PhaseStatistics> getPhases() {
+            return phases.values().stream()
+                    .sorted(Comparator.comparingInt(PhaseStatistics::getPhase))
+                    .collect(Collectors.toList());
+        }
+        
+        /**
+         * Returns the start skew of all phases recorded, merged into one
+         * histogram.
+         * 
+         * @return the start skew of all phases recorded
+         */
+        public LatencyHistogram getStartSkews() {
+            LatencyHistogram all = new LatencyHistogram();
+            phases.values().forEach(p -> all.add(p.startSkews));
+            return all;
+        }
+        
+        /**
+         * Returns the duration of all phased tasks recorded, merged into one
+         * histogram.
+         * 
+         * @return the duration of all phased tasks recorded
+         */
+        public LatencyHistogram getTaskDurations() {
+            LatencyHistogram all = new LatencyHistogram();
+            phases.values().forEach(p -> all.add(p.taskDurations));
+            return all;
+        }
+        
+        /**
+         * Returns the duration of all tasks executed unphased (the residue).
+         * 
+         * @return the duration of all tasks executed unphased
+         */
+        public LatencyHistogram getUnphasedTaskDurations() {
+            return unphased;
+        }
+        
+        /**
+         * Forget all statistics recorded.
+         */
+        public void reset() {
+            phases.clear();
+            unphased.reset();
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder(Recorder.class.getSimpleName())
+                    .append("[")
+                      .append("phases=").append(phases.size())
+                      .append(", startSkews=").append(getStartSkews())
+                      .append(", taskDurations=").append(getTaskDurations())
+                      .append(", unphasedTaskDurations=").append(unphased)
+                    .append("]")
+                    .toString();
+        }
+        
+        private PhaseStatistics phase(int phase) {
+            return phases.computeIfAbsent(phase, PhaseStatistics::new);
+        }
+        
+        void recordSkew(int phase, long nanos) {
+            phase(phase).startSkews.record(nanos);
+        }
+        
+        /**
+         * Record the duration of a task.
+         * 
+         * @param departed departures of the phase that released the task,
+         *        {@code null} if the task was executed unphased
+         * @param nanos duration of the task
+         */
+        void recordTask(Departures departed, long nanos) {
+            if (departed == null) {
+                unphased.record(nanos);
+            }
+            else {
+                phase(departed.phase).taskDurations.record(nanos);
+            }
+        }
+    }
+    
+    /**
+     * Statistics of one phase, as recorded by a {@linkplain Recorder}.<p>
+     * 
+     * Percentiles provided directly by this class, such as {@linkplain #p99()},
+     * are percentiles of the task durations.
+     */
+    public static final class PhaseStatistics {
+        private final int phase;
+        
+        private final LatencyHistogram startSkews = new LatencyHistogram(),
+                                       taskDurations = new LatencyHistogram();
+        
+        private PhaseStatistics(int phase) {
+            this.phase = phase;
+        }
+        
+        /**
+         * Returns the phase, starts at {@code 0}.
+         * 
+         * @return the phase
+         */
+        public int getPhase() {
+            return phase;
+        }
+        
+        /**
+         * Returns the start skew of this phase, one value for each batch that
+         * released this phase.
+         * 
+         * @return the start skew of this phase
+         */
+        public LatencyHistogram getStartSkews() {
+            return startSkews;
+        }
+        
+        /**
+         * Returns the duration of all tasks released by this phase.
+         * 
+         * @return the duration of all tasks released by this phase
+         */
+        public LatencyHistogram getTaskDurations() {
+            return taskDurations;
+        }
+        
+        /**
+         * Returns the median task duration.
+         * 
+         * @return the median task duration
+         */
+        public Duration p50() {
+            return Duration.ofNanos(taskDurations.p50());
+        }
+        
+        /**
+         * Returns the 99th percentile of task durations.
+         * 
+         * @return the 99th percentile of task durations
+         */
+        public Duration p99() {
+            return Duration.ofNanos(taskDurations.p99());
+        }
+        
+        /**
+         * Returns the 99.9th percentile of task durations.
+         * 
+         * @return the 99.9th percentile of task durations
+         */
+        public Duration p999() {
+            return Duration.ofNanos(taskDurations.p999());
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder(PhaseStatistics.class.getSimpleName())
+                    .append("[")
+                      .append("phase=").append(phase)
+                      .append(", startSkews=").append(startSkews)
+                      .append(", taskDurations=").append(taskDurations)
+                    .append("]")
+                    .toString();
+        }
+    }
+    
+    
+    
+    /*
+     *  ----------------------------
+     * | BEFORE-EACH-PHASE CALLBACK |
+     *  ----------------------------
+     */
+    
+    /**
+     * Callback invoked before each new phase is executed.
+     */
+    @FunctionalInterface
+    public interface BeforeEachPhase {
+        /**
+         * Callback invoked before each new phase is executed.
+         * 
+         * @param phase the next phase, starts at {@code 0}
+         * 
+         * @return {@code true} if the executor service should abort the phase
+         *         and terminate, otherwise {@code false}
+         */
+        boolean onAdvance(int phase);
+    }
+    
+    
+    
+    /**
+     * Compares the throughput of {@linkplain TaskDistribution}s, using many
+     * short tasks.<p>
+     * 
+     * Each distribution is warmed up before measured. Worker threads are
+     * reused so that thread creation is not part of what is measured.
+     * 
+     * @param ignored ignored
+     * 
+     * @throws InterruptedException for simplicity only, should not happen
+     */
+    public static void main(String... ignored) throws InterruptedException {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors()),
+                  tasksPerBatch = threads * 1_000 + threads - 1, // <-- include a residue
+                  warmup = 50,
+                  batches = 200;
+        
+        final Callable<Integer> shortTask = () -> ThreadLocalRandom.current().nextInt();
+        final List<Callable<Integer>> tasks = Collections.nCopies(tasksPerBatch, shortTask);
+        
+        out.println("Threads: " + threads + ", tasks per batch: " + tasksPerBatch);
+        
+        for (TaskDistribution distribution : TaskDistribution.values()) {
+            // Reuse workers, do not require many CPU:s
+            PhasedExecutorService executor = new PhasedExecutorService(threads, runnable -> {
+                Thread t = new Thread(runnable);
+                t.setDaemon(true);
+                return t;
+            }, true, false);
+            
+            executor.setTaskDistribution(distribution);
+            
+            for (int i = 0; i < warmup; ++i) {
+                executor.invokeAll(tasks);
+            }
+            
+            long execution = 0;
+            
+            for (int i = 0; i < batches; ++i) {
+                executor.invokeAll(tasks);
+                execution += executor.getLastExecutionTime().toNanos();
+            }
+            
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            
+            final long total = (long) tasksPerBatch * batches;
+            
+            out.printf("%-13s %,12d tasks/s %8.1f ns/task%n",
+                    distribution,
+                    total * 1_000_000_000L / Math.max(1, execution),
+                    (double) execution / total);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,425 @@
+package com.martinandersson.javaee.utils;
+
+import com.martinandersson.javaee.resources.ArquillianDS;
+import com.martinandersson.javaee.resources.SchemaGenerationStrategy;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.HTTPContext;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.Servlet;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.container.test.api.RunAsClient;
+import org.jboss.arquillian.container.test.api.ShouldThrowException;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.EnterpriseArchive;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Test;
+
+/**
+ * Suite-level deployment of all compatible test archives as one enterprise
+ * archive (.ear), deployed once and kept deployed until the container stop.
+ * <p>
+ * 
+ * Deploying and undeploying is what takes most time of a test suite; the
+ * tests themselves are quick. With this mode enabled, using system property
+ * {@code com.martinandersson.javaee.utils.SharedDeployment.enabled}, all
+ * {@code @Deployment} methods in the project are invoked before the first
+ * deployment. Each archive built by {@linkplain DeploymentBuilder} for a
+ * compatible test class become a web module of the shared archive, with the
+ * name of the test archive as context root. When Arquillian then deploy the
+ * archive of a test class, {@linkplain SharedDeploymentExtension} deploy the
+ * shared archive instead, the first time only, and route the test class to
+ * his own module: an {@code @ArquillianResource URL} point to the context
+ * root of the module.<p>
+ * 
+ * A test class is compatible if:
+ * 
+ * <ul>
+ *   <li>it has one managed deployment built by {@code DeploymentBuilder}, not
+ *       expected to fail</li>
+ *   <li>all tests run as client; the shared archive does not contain the
+ *       Arquillian test runner</li>
+ *   <li>the deployment does not drop and create the database schema; such
+ *       tests expect a fresh database</li>
+ *   <li>the test class is not abstract; each subclass expect a deployment of
+ *       his own</li>
+ *   <li>the simple name of the test class is unique</li>
+ * </ul>
+ * 
+ * Incompatible test classes are deployed on their own, as usual. All modules
+ * share the data source of {@linkplain ArquillianDS}, defined in the first
+ * module that use persistence.<p>
+ * 
+ * {@code SharedDeploymentExtension} log the time saved when the container
+ * stop.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class SharedDeployment
+{
+    private static final Logger LOGGER = Logger.getLogger(SharedDeployment.class.getName());
+    
+    /**
+     * {@code true} if system property {@code
+     * com.martinandersson.javaee.utils.SharedDeployment.enabled} is set.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean(SharedDeployment.class.getName() + ".enabled");
+    
+    /** File name of the shared archive. */
+    public static final String NAME = "SharedDeployment.ear";
+    
+    private static final String DATA_SOURCE = "/WEB-INF/classes/" +
+            ArquillianDS.class.getName().replace('.', '/') + ".class";
+    
+    /** Set while the deployment methods are invoked. */
+    private static final ThreadLocal<List<Spec>> COLLECTING = new ThreadLocal<>();
+    
+    /** Lazily initialized. */
+    private static EnterpriseArchive archive;
+    
+    /** Test archive name to context root, lazily initialized. */
+    private static Map<String, String> modules;
+    
+    private SharedDeployment() {
+        // Empty
+    }
+    
+    
+    
+    /**
+     * Returns {@code true} if the provided test archive is a module of the
+     * shared archive.<p>
+     * 
+     * The first call build the shared archive.
+     * 
+     * @param archiveName name of test archive, for example {@code
+     *        "QualifierTest.war"}
+     * 
+     * @return {@code true} if the provided test archive is a module of the
+     *         shared archive
+     */
+    public static synchronized boolean isModule(String archiveName) {
+        init();
+        return modules.containsKey(archiveName);
+    }
+    
+    /**
+     * Returns the shared archive.<p>
+     * 
+     * The first call build the archive.
+     * 
+     * @return the shared archive
+     */
+    public static synchronized EnterpriseArchive getArchive() {
+        init();
+        return archive;
+    }
+    
+    /**
+     * Returns the names of all test archives that are modules of the shared
+     * archive.
+     * 
+     * @return the names of all test archives that are modules of the shared
+     *         archive
+     */
+    public static synchronized List<String> getModules() {
+        init();
+        return new ArrayList<>(modules.keySet());
+    }
+    
+    /**
+     * Returns protocol metadata that route a test to the module of the
+     * provided test archive.<p>
+     * 
+     * The servlets of other modules are removed. If the container reported no
+     * servlet of the module, then a servlet named {@code "default"} is added
+     * for the context root of the module.
+     * 
+     * @param shared metadata returned when deploying the shared archive
+     * @param archiveName name of test archive
+     * 
+     * @return metadata of the module
+     * 
+     * @throws IllegalArgumentException if the test archive is not a module
+     */
+    public static ProtocolMetaData route(ProtocolMetaData shared, String archiveName) {
+        final String contextRoot;
+        
+        synchronized (SharedDeployment.class) {
+            init();
+            contextRoot = modules.get(archiveName);
+        }
+        
+        if (contextRoot == null) {
+            throw new IllegalArgumentException("Not a module: " + archiveName);
+        }
+        
+        final String path = "/" + contextRoot;
+        final ProtocolMetaData routed = new ProtocolMetaData();
+        
+        for (Object context : shared.getContexts()) {
+            if (!(context instanceof HTTPContext)) {
+                routed.addContext(context);
+                continue;
+            }
+            
+            final HTTPContext http = (HTTPContext) context,
+                              copy = new HTTPContext(http.getName(), http.getHost(), http.getPort());
+            
+            // A servlet belong to one context, the copies must be new
+            http.getServlets().stream()
+                    .filter(s -> path.equals(s.getContextRoot()))
+                    .forEach(s -> copy.add(new Servlet(s.getName(), s.getContextRoot())));
+            
+            if (copy.getServlets().isEmpty()) {
+                copy.add(new Servlet("default", path));
+            }
+            
+            routed.addContext(copy);
+        }
+        
+        return routed;
+    }
+    
+    /**
+     * Called by {@linkplain DeploymentBuilder} for each archive built.
+     */
+    static void built(Class<?> testClass, SchemaGenerationStrategy persistence, WebArchive war) {
+        final List<Spec> specs = COLLECTING.get();
+        
+        if (specs != null) {
+            specs.add(new Spec(testClass, persistence, war));
+        }
+    }
+    
+    /**
+     * Returns all static, parameterless methods annotated {@code @Deployment},
+     * found in the class path root of this class.
+     */
+    static List<Method> findDeployments() throws Exception {
+        final Path root = Paths.get(SharedDeployment.class
+                .getProtectionDomain().getCodeSource().getLocation().toURI());
+        
+        final List<String> classes;
+        
+        try (Stream<Path> files = Files.walk(root)) {
+            classes = files.map(root::relativize)
+                    .map(Path::toString)
+                    .filter(f -> f.endsWith(".class"))
+                    .map(f -> f.substring(0, f.length() - ".class".length()).replace('/', '.').replace('\\', '.'))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        
+        final List<Method> deployments = new ArrayList<>();
+        
+        for (String name : classes) {
+            final Class<?> type;
+            
+            try {
+                type = Class.forName(name, false, SharedDeployment.class.getClassLoader());
+            }
+            catch (ClassNotFoundException | LinkageError e) {
+                continue;
+            }
+            
+            Stream.of(type.getDeclaredMethods())
+                    .filter(m -> m.isAnnotationPresent(Deployment.class))
+                    .filter(m -> Modifier.isStatic(m.getModifiers()) && m.getParameterCount() == 0)
+                    .sorted(Comparator.comparing(Method::getName))
+                    .peek(m -> m.setAccessible(true))
+                    .forEach(deployments::add);
+        }
+        
+        return deployments;
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    private static final class Spec {
+        final Class<?> testClass;
+        final SchemaGenerationStrategy persistence;
+        final WebArchive war;
+        
+        Spec(Class<?> testClass, SchemaGenerationStrategy persistence, WebArchive war) {
+            this.testClass = testClass;
+            this.persistence = persistence;
+            this.war = war;
+        }
+    }
+    
+    private static void init() {
+        if (archive != null) {
+            return;
+        }
+        
+        final List<Spec> specs = collect();
+        
+        // Simple names must be unique, the context root is derived from it
+        final Map<String, Long> names = specs.stream().collect(Collectors.groupingBy(
+                s -> s.war.getName(), Collectors.counting()));
+        
+        final Map<Class<?>, Long> builds = specs.stream().collect(Collectors.groupingBy(
+                s -> s.testClass, Collectors.counting()));
+        
+        final EnterpriseArchive ear = ShrinkWrap.create(EnterpriseArchive.class, NAME);
+        final Map<String, String> roots = new LinkedHashMap<>();
+        final StringBuilder xml = new StringBuilder();
+        
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+           .append("<application xmlns=\"http://xmlns.jcp.org/xml/ns/javaee\" version=\"7\">\n")
+           .append("    <application-name>").append(NAME.substring(0, NAME.length() - ".ear".length()))
+           .append("</application-name>\n");
+        
+        boolean dataSource = false;
+        
+        for (Spec spec : specs) {
+            String reason = names.get(spec.war.getName()) > 1 ? "archive name is not unique" :
+                            builds.get(spec.testClass) > 1 ? "test class has many deployments" :
+                            incompatibility(spec);
+            
+            if (reason != null) {
+                LOGGER.info(() -> spec.testClass.getSimpleName() + " deployed on its own, " + reason + ".");
+                continue;
+            }
+            
+            WebArchive war = spec.war;
+            
+            if (spec.persistence != null) {
+                if (dataSource) {
+                    // Defined in java:app, one definition only
+                    war = ShrinkWrap.create(WebArchive.class, war.getName()).merge(war);
+                    war.delete(DATA_SOURCE);
+                }
+                
+                dataSource = true;
+            }
+            
+            final String root = war.getName().substring(0, war.getName().length() - ".war".length());
+            
+            roots.put(war.getName(), root);
+            ear.addAsModule(war);
+            
+            xml.append("    <module>\n")
+               .append("        <web>\n")
+               .append("            <web-uri>").append(war.getName()).append("</web-uri>\n")
+               .append("            <context-root>").append(root).append("</context-root>\n")
+               .append("        </web>\n")
+               .append("    </module>\n");
+        }
+        
+        xml.append("</application>\n");
+        ear.setApplicationXML(new StringAsset(xml.toString()));
+        
+        LOGGER.info(() -> NAME + " built with " + roots.size() + " modules: " + roots.values());
+        
+        archive = ear;
+        modules = Collections.unmodifiableMap(roots);
+    }
+    
+    /**
+     * Invoke all deployment methods and return what {@code DeploymentBuilder}
+     * built.
+     */
+    private static List<Spec> collect() {
+        final List<Method> deployments;
+        
+        try {
+            deployments = findDeployments();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed to find deployment methods.", e);
+        }
+        
+        final Map<Method, List<Spec>> specs = new HashMap<>();
+        
+        for (Method m : deployments) {
+            final List<Spec> built = new ArrayList<>();
+            COLLECTING.set(built);
+            
+            try {
+                m.invoke(null);
+                specs.put(m, built);
+            }
+            catch (InvocationTargetException | IllegalAccessException | RuntimeException | LinkageError e) {
+                Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+                LOGGER.info(() -> m.getDeclaringClass().getSimpleName() + " deployed on its own, deployment failed to build: " + cause);
+            }
+            finally {
+                COLLECTING.remove();
+            }
+        }
+        
+        // A spec is only usable if built by the deployment method of its test class
+        return deployments.stream()
+                .filter(specs::containsKey)
+                .flatMap(m -> specs.get(m).stream().filter(s -> s.testClass == m.getDeclaringClass()))
+                .collect(Collectors.toList());
+    }
+    
+    /**
+     * Returns why the provided spec can not be a module, or {@code null} if
+     * it can.
+     */
+    private static String incompatibility(Spec spec) {
+        if (spec.persistence == SchemaGenerationStrategy.DROP_CREATE) {
+            return "schema generation strategy is " + spec.persistence;
+        }
+        
+        if (Modifier.isAbstract(spec.testClass.getModifiers())) {
+            return "deployment is inherited by many test classes";
+        }
+        
+        final List<Method> deployments = Stream.of(spec.testClass.getDeclaredMethods())
+                .filter(m -> m.isAnnotationPresent(Deployment.class))
+                .collect(Collectors.toList());
+        
+        if (deployments.size() != 1) {
+            return "test class has many deployments";
+        }
+        
+        final Method method = deployments.get(0);
+        final Deployment deployment = method.getAnnotation(Deployment.class);
+        
+        if (!deployment.managed()) {
+            return "deployment is not managed";
+        }
+        
+        if (method.isAnnotationPresent(ShouldThrowException.class)) {
+            return "deployment is expected to fail";
+        }
+        
+        if (deployment.testable() && !spec.testClass.isAnnotationPresent(RunAsClient.class)) {
+            final boolean inContainer = Stream.of(spec.testClass.getMethods())
+                    .filter(m -> m.isAnnotationPresent(Test.class))
+                    .anyMatch(m -> !m.isAnnotationPresent(RunAsClient.class));
+            
+            if (inContainer) {
+                return "test class has tests that run in the container";
+            }
+        }
+        
+        return null;
+    }
+}
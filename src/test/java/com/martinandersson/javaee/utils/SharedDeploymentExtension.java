@@ -0,0 +1,218 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
+import org.jboss.arquillian.container.spi.client.deployment.Deployment;
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentDescription;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.arquillian.container.spi.context.annotation.DeploymentScoped;
+import org.jboss.arquillian.container.spi.event.DeployDeployment;
+import org.jboss.arquillian.container.spi.event.UnDeployDeployment;
+import org.jboss.arquillian.container.spi.event.container.BeforeStop;
+import org.jboss.arquillian.core.api.InstanceProducer;
+import org.jboss.arquillian.core.api.annotation.Inject;
+import org.jboss.arquillian.core.api.annotation.Observes;
+import org.jboss.arquillian.core.spi.EventContext;
+import org.jboss.arquillian.core.spi.LoadableExtension;
+
+/**
+ * Arquillian extension that deploy {@linkplain SharedDeployment} and time all
+ * deployments.<p>
+ * 
+ * The time it takes to deploy and undeploy each test archive is saved in
+ * file {@code target/deployment-times.properties}, in all modes. When {@code
+ * SharedDeployment} is enabled, the time saved is estimated as the sum of the
+ * saved times of all test archives served by the shared archive, minus the
+ * time it took to deploy and undeploy the shared archive. Run the suite once
+ * without the shared deployment to get an estimate.<p>
+ * 
+ * The extension is registered in {@code
+ * META-INF/services/org.jboss.arquillian.core.spi.LoadableExtension}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class SharedDeploymentExtension implements LoadableExtension
+{
+    private static final Logger LOGGER = Logger.getLogger(SharedDeploymentExtension.class.getName());
+    
+    private static final Path TIMES = Paths.get("target", "deployment-times.properties");
+    
+    @Override
+    public void register(ExtensionBuilder builder) {
+        builder.observer(Observer.class);
+    }
+    
+    
+    
+    /**
+     * Intercept deployment events. Runs inside the deployment context set up
+     * by Arquillian, hence the low precedence.
+     */
+    public static class Observer
+    {
+        @Inject @DeploymentScoped
+        private InstanceProducer<ProtocolMetaData> protocolMetaData;
+        
+        /** Measured times in milliseconds, "deploy,undeploy". */
+        private final Properties times = load();
+        
+        private DeployableContainer<?> container;
+        
+        private ProtocolMetaData shared;
+        
+        private long deployed, undeployed;
+        
+        private int served;
+        
+        public void deploy(@Observes(precedence = -100) EventContext<DeployDeployment> context) throws Exception {
+            final Deployment deployment = context.getEvent().getDeployment();
+            final String name = archiveName(deployment.getDescription());
+            
+            if (name == null || !SharedDeployment.ENABLED || !SharedDeployment.isModule(name)) {
+                final long then = System.nanoTime();
+                context.proceed();
+                
+                if (deployment.isDeployed()) {
+                    record(name, 0, millisSince(then));
+                }
+                
+                return;
+            }
+            
+            if (shared == null) {
+                final long then = System.nanoTime();
+                container = context.getEvent().getDeployableContainer();
+                shared = container.deploy(SharedDeployment.getArchive());
+                deployed = millisSince(then);
+                
+                LOGGER.info(() -> SharedDeployment.NAME + " deployed in (ms): " + deployed);
+            }
+            
+            protocolMetaData.set(SharedDeployment.route(shared, name));
+            deployment.deployed();
+            ++served;
+        }
+        
+        public void undeploy(@Observes(precedence = -100) EventContext<UnDeployDeployment> context) {
+            final Deployment deployment = context.getEvent().getDeployment();
+            final String name = archiveName(deployment.getDescription());
+            
+            if (shared != null && name != null && SharedDeployment.isModule(name)) {
+                // Kept deployed until the container stop
+                deployment.undeployed();
+                return;
+            }
+            
+            final long then = System.nanoTime();
+            context.proceed();
+            
+            record(name, 1, millisSince(then));
+        }
+        
+        public void stop(@Observes BeforeStop event) {
+            if (shared != null && event.getDeployableContainer() == container) {
+                final long then = System.nanoTime();
+                
+                try {
+                    container.undeploy(SharedDeployment.getArchive());
+                }
+                catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to undeploy " + SharedDeployment.NAME + ".", e);
+                }
+                
+                undeployed = millisSince(then);
+                shared = null;
+                
+                report();
+            }
+            
+            save();
+        }
+        
+        private void report() {
+            long individual = 0;
+            int measured = 0;
+            
+            for (String module : SharedDeployment.getModules()) {
+                final String value = times.getProperty(module);
+                
+                if (value != null) {
+                    final String[] parts = value.split(",");
+                    individual += Long.parseLong(parts[0]) + Long.parseLong(parts[1]);
+                    ++measured;
+                }
+            }
+            
+            final StringBuilder msg = new StringBuilder(SharedDeployment.NAME)
+                    .append(" served ").append(served).append(" test classes using one deployment (")
+                    .append(deployed).append(" ms) and one undeployment (").append(undeployed)
+                    .append(" ms), avoiding ").append(Math.max(0, served - 1)).append(" deploy/undeploy cycles. ");
+            
+            if (measured == 0) {
+                msg.append("Time saved unknown, run once without shared deployment to measure the modules.");
+            }
+            else {
+                msg.append("Estimated time saved (ms): ").append(individual - deployed - undeployed)
+                   .append(", based on ").append(measured).append(" of ")
+                   .append(SharedDeployment.getModules().size()).append(" modules deployed on their own earlier.");
+            }
+            
+            LOGGER.info(msg::toString);
+        }
+        
+        private void record(String name, int index, long millis) {
+            if (name == null) {
+                return;
+            }
+            
+            final String[] parts = times.getProperty(name, "0,0").split(",");
+            parts[index] = Long.toString(millis);
+            times.setProperty(name, parts[0] + "," + parts[1]);
+        }
+        
+        private void save() {
+            try {
+                Files.createDirectories(TIMES.getParent());
+                
+                try (OutputStream out = Files.newOutputStream(TIMES)) {
+                    times.store(out, "Milliseconds to deploy and undeploy each test archive on its own.");
+                }
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save deployment times: " + TIMES, e);
+            }
+        }
+        
+        private static Properties load() {
+            final Properties times = new Properties();
+            
+            if (Files.isRegularFile(TIMES)) {
+                try (InputStream in = Files.newInputStream(TIMES)) {
+                    times.load(in);
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load deployment times: " + TIMES, e);
+                }
+            }
+            
+            return times;
+        }
+        
+        private static String archiveName(DeploymentDescription description) {
+            return description.isArchiveDeployment() ? description.getArchive().getName() : null;
+        }
+        
+        private static long millisSince(long nanoTime) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+        }
+    }
+}
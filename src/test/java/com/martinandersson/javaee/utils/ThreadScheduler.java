@@ -2,14 +2,17 @@ package com.martinandersson.javaee.utils;
 
 import static java.lang.System.out;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -36,6 +39,21 @@ import java.util.stream.Stream;
  * again when all other stages (not yet completed) has been scheduled exactly
  * once according to their enqueued order.<p>
  * 
+ * The turn is handed over directly from one stage to the next using
+ * {@linkplain LockSupport#unpark(Thread)}; stages still alive are kept in a
+ * ring so that finding the next stage, and removing a stage that has
+ * completed, are both constant-time operations no matter how many stages are
+ * enqueued.<p>
+ * 
+ * Schedules with very many stages, say 10 000, should use a scheduler
+ * returned by {@linkplain #forManyStages()} which run each stage on a virtual
+ * thread, if the Java runtime support them. Since only one stage is ever
+ * running, the order of execution is just as deterministic as it is with
+ * platform threads.<p>
+ * 
+ * To run stages in all sorts of orders other than insertion-order, see
+ * {@linkplain InterleavingExplorer}.<p>
+ * 
  * For my part, I needed a tool that made it easy to schedule jobs run in
  * different threads to ease testing/demonstration of overlapping transactions
  * and their inter-transactional behavior. For example, I wanted T1 to lookup a
@@ -59,11 +77,44 @@ public final class ThreadScheduler
     private final List<Consumer<Yielder>> stages;
     private final List<StageRunner> runners;
     
+    /** Chooses the next stage to run, {@code null} for insertion-order. */
+    private final Strategy strategy;
+    
+    /** Indices of stages alive, only maintained if there is a strategy. */
+    private final BitSet alive;
+    
+    /** Number of stages not yet completed. */
+    private final AtomicInteger running;
+    
+    /** First exception thrown by a stage. */
+    private final AtomicReference<Throwable> failure;
+    
     
     
     {
         stages = new ArrayList<>();
         runners = new ArrayList<>();
+        alive = new BitSet();
+        running = new AtomicInteger();
+        failure = new AtomicReference<>();
+    }
+    
+    /**
+     * Returns a new {@code ThreadScheduler} meant to run very many stages.<p>
+     * 
+     * Each stage is executed by a thread from {@linkplain
+     * PhasedExecutorService#lightweightThreadFactory()}; a virtual thread if
+     * the Java runtime support them, otherwise a daemon thread with a small
+     * stack size. A stage parked waiting for his turn does then not occupy a
+     * platform thread.<p>
+     * 
+     * Note that a virtual thread that yield while holding a monitor (inside a
+     * {@code synchronized} block) will pin his carrier thread.
+     * 
+     * @return a new scheduler
+     */
+    public static ThreadScheduler forManyStages() {
+        return new ThreadScheduler(PhasedExecutorService.lightweightThreadFactory());
     }
     
     /**
@@ -71,7 +122,7 @@ public final class ThreadScheduler
      * provided by {@linkplain Executors#defaultThreadFactory()}.
      */
     public ThreadScheduler() {
-        threads = Executors.defaultThreadFactory();
+        this(Executors.defaultThreadFactory());
     }
     
     /**
@@ -93,7 +144,19 @@ public final class ThreadScheduler
      * @param factory must not be {@code null}
      */
     public ThreadScheduler(ThreadFactory factory) {
-        threads = Objects.requireNonNull(factory);
+        this(factory, (Strategy) null);
+    }
+    
+    /**
+     * Initializes a newly created {@code ThreadScheduler} with a specified
+     * thread factory and a strategy that choose which stage run next.
+     * 
+     * @param factory must not be {@code null}
+     * @param strategy may be {@code null} for insertion-order
+     */
+    ThreadScheduler(ThreadFactory factory, Strategy strategy) {
+        this.threads = Objects.requireNonNull(factory);
+        this.strategy = strategy;
     }
     
     /**
@@ -176,37 +239,60 @@ public final class ThreadScheduler
         List<Thread> workers = new ArrayList<>();
         
         try {
-            // Create and start all runners
-            stages.stream().forEach(stage -> {
-                StageRunner r = new StageRunner(stage);
-                runners.add(r);
+            // Create all runners and link them into a ring of alive stages
+            StageRunner previous = null;
+            
+            for (Consumer<Yielder> stage : stages) {
+                StageRunner r = new StageRunner(stage, runners.size());
                 
-                Thread t = threads.newThread(r);
-                workers.add(t);
+                if (previous != null) {
+                    r.link(previous);
+                }
                 
-                t.start();
-            });
+                runners.add(r);
+                previous = r;
+            }
             
-            // Busy-wait for sluggish runners to arrive at their semaphore before opening the party
             for (StageRunner r : runners) {
-                while (!r.permit.hasQueuedThreads()) {
-                    translateThrowable(r.throwable);
-                    Thread.yield();
-                }
+                r.thread = threads.newThread(r);
+                workers.add(r.thread);
             }
             
-            // Release first permit
-            runners.get(0).permit.release();
+            running.set(runners.size());
+            failure.set(null);
             
-            for (int i = 0; i < workers.size(); ++i) {
-                workers.get(i).join(); // <-- happens-before: JLS 8 section 17.4.5 (so throwable field need not be marked volatile)
-                translateThrowable(runners.get(i).throwable);
+            if (strategy != null) {
+                alive.set(0, runners.size());
+            }
+            
+            /*
+             * First stage has the turn from the start. Runners check their turn
+             * before parking, so there's no need to wait for sluggish runners
+             * to arrive before opening the party.
+             */
+            choose(-1, null).turn = true;
+            
+            workers.forEach(Thread::start);
+            
+            // Stages that has yielded wait for a turn that never come if another stage fail
+            while (running.get() > 0 && failure.get() == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                
+                LockSupport.park(this);
             }
         }
         finally {
             workers.stream().forEach(Thread::interrupt);
         }
         
+        for (Thread w : workers) {
+            w.join();
+        }
+        
+        translateThrowable(failure.get());
+        
         return this;
     }
     
@@ -225,6 +311,37 @@ public final class ThreadScheduler
         return this;
     }
     
+    /**
+     * Choose which stage run next.
+     * 
+     * @param current index of the stage giving up the turn, {@code -1} if no
+     *        stage has run yet
+     * @param touched what the current stage touched, {@code null} if unknown
+     * 
+     * @return the next stage, or {@code null} if there is no other stage alive
+     *         to choose from
+     */
+    private StageRunner choose(int current, Object[] touched) {
+        if (strategy == null) {
+            StageRunner next = current == -1 ? runners.get(0) : runners.get(current).next;
+            return next.index == current ? null : next;
+        }
+        
+        if (alive.cardinality() < 2) {
+            // No choice to make
+            int only = alive.nextSetBit(0);
+            return only == -1 || only == current ? null : runners.get(only);
+        }
+        
+        final int index = strategy.next(current, touched, alive);
+        
+        if (!alive.get(index)) {
+            throw new IllegalStateException("Strategy chose a stage not alive: " + index);
+        }
+        
+        return index == current ? null : runners.get(index);
+    }
+    
     private void translateThrowable(Throwable t) throws InterruptedException {
         if (t == null) {
             return;
@@ -249,117 +366,162 @@ public final class ThreadScheduler
     
     private class StageRunner implements Runnable {
         final Consumer<Yielder> stage;
+        final int index;
         final Thread client;
         
+        /** Set by the client before the thread is started. */
+        Thread thread;
+        
         /**
-         * Does not Thread.isAlive() suffice, why this flag?
+         * Neighbours in the ring of stages still alive.<p>
          * 
-         * Think about what could happen had we used Thread.isAlive().
+         * Why is it safe to not use Thread.isAlive() or a flag to find the next
+         * stage?
          * 
-         * When a stage ends (runner thread about to die), a permit for the next
-         * runner will be released. But things may move so fast that the next
-         * runner released finish a set of work instantly and call back to the
-         * callee's semaphore who is just about to die. The newly awoken runner
-         * think all is well and will go back to eternal sleep again; waiting
-         * for his next permit that will never be released.
+         * Think about what could happen had we used Thread.isAlive(). When a
+         * stage ends (runner thread about to die), the turn is given to the
+         * next runner. But things may move so fast that the next runner finish
+         * a set of work instantly and hand the turn back to the runner who is
+         * just about to die. The newly awoken runner think all is well and
+         * will go back to eternal sleep again; waiting for his next turn that
+         * will never come.
          * 
          * The current design solve that problem by making the runner that has
-         * finished all his work mark himself as dead before releasing the next
-         * permit.
+         * finished all his work unlink himself from the ring before handing
+         * over the turn. The ring is only ever modified by the runner who has
+         * the turn, and the volatile write/read of the turn flag make the
+         * modification visible to the next runner.
          */
-        final AtomicBoolean isAlive;
-        final Semaphore permit;
+        StageRunner next = this, previous = this;
         
-        int myIndex;
+        /** {@code true} if it is this stage's turn to run. */
+        volatile boolean turn;
         
         Throwable throwable;
         
         
         
-        StageRunner(Consumer<Yielder> stage) {
+        StageRunner(Consumer<Yielder> stage, int index) {
             this.stage = stage;
+            this.index = index;
             this.client = Thread.currentThread();
-            
-            this.isAlive = new AtomicBoolean(false);
-            this.permit = new Semaphore(0);
         }
         
         
         
         @Override
         public void run() {
-            // Deferred initialization logic:
-            myIndex = runners.indexOf(this);
-            assert myIndex > -1 : "StageRunner started before being added to List.";
-            
-            isAlive.set(true);
-            
             try {
                 /*
-                 * The permit for the first scheduled thread is provided by the
+                 * The turn for the first scheduled thread is provided by the
                  * admin (client) thread after he has created all runners:
                  */
-                permit.acquire();
-
-                stage.accept(() -> {
-                    if (client.isInterrupted()) {
-                        throw new UncheckedInterruptedException(new InterruptedException("Client interrupted."));
-                    }
+                awaitTurn();
+                
+                stage.accept(new Yielder() {
+                    @Override public void yield() {
+                        yieldTurn(null); }
                     
-                    if (releaseNextPermit()) {
-                        try {
-                            this.permit.acquire();
-                        }
-                        catch (InterruptedException e) {
-                            throw new UncheckedInterruptedException(e);
-                        }
-                    }
-                    // else don't block, let client code continue
+                    @Override public void yield(Object... touched) {
+                        yieldTurn(touched); }
                 });
             }
             catch (Throwable e) {
                 throwable = e;
             }
             finally {
-                isAlive.set(false);
-                
                 if (!client.isInterrupted() && throwable == null) {
-                    // Stage completed successfully, so release next permit:
-                    releaseNextPermit();
+                    // Stage completed successfully, so hand over to next stage:
+                    unlink();
+                    
+                    try {
+                        handOver(null);
+                    }
+                    catch (Throwable e) {
+                        throwable = e;
+                    }
+                }
+                
+                if (throwable != null) {
+                    failure.compareAndSet(null, throwable);
+                    LockSupport.unpark(client);
+                }
+                
+                if (running.decrementAndGet() == 0) {
+                    LockSupport.unpark(client);
                 }
             }
         }
         
-        private boolean releaseNextPermit() {
-            StageRunner next = nextRunnerAlive();
-            if (next != null) {
-                assert next.permit.availablePermits() == 0 : "Two stages must not run simultaneously.";
-                next.permit.release();
-                return true;
+        private void yieldTurn(Object[] touched) {
+            if (client.isInterrupted()) {
+                throw new UncheckedInterruptedException(new InterruptedException("Client interrupted."));
             }
-            return false;
+            
+            if (handOver(touched)) {
+                try {
+                    awaitTurn();
+                }
+                catch (InterruptedException e) {
+                    throw new UncheckedInterruptedException(e);
+                }
+            }
+            // else don't block, let client code continue
         }
         
-        private StageRunner nextRunnerAlive() { // ..which is waiting for a permit we assume..
-            // Look at all indices after our position
-            for (int i = myIndex + 1; i < runners.size(); ++i) {
-                StageRunner r = runners.get(i);
-                
-                if (r.isAlive.get()) {
-                    return r;
-                }
+        /**
+         * Insert this runner into the ring, after the specified runner.
+         */
+        void link(StageRunner after) {
+            previous = after;
+            next = after.next;
+            after.next.previous = this;
+            after.next = this;
+        }
+        
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            
+            if (strategy != null) {
+                alive.clear(index);
             }
+        }
+        
+        /**
+         * Give the turn to the next stage.
+         * 
+         * @param touched what this stage touched since his last turn,
+         *        {@code null} if unknown
+         * 
+         * @return {@code false} if this stage keep the turn, otherwise
+         *         {@code true}
+         */
+        private boolean handOver(Object[] touched) {
+            final StageRunner n = choose(index, touched);
             
-            // Look at all indices before our position
-            for (int i = 0; i < myIndex; ++i) {
-                StageRunner r = runners.get(i);
-                
-                if (r.isAlive.get()) {
-                    return r;
-                }
+            if (n == null) {
+                return false;
             }
             
-            return null;
+            assert !n.turn : "Two stages must not run simultaneously.";
+            
+            // Must give up our turn first; next stage may hand it straight back
+            turn = false;
+            n.turn = true;
+            LockSupport.unpark(n.thread);
+            
+            return true;
+        }
+        
+        private void awaitTurn() throws InterruptedException {
+            while (!turn) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                
+                LockSupport.park(this);
+            }
         }
     }
     
@@ -393,6 +555,45 @@ public final class ThreadScheduler
          * @see Yielder
          */
         void yield();
+        
+        /**
+         * Same as {@linkplain #yield()}, only the calling stage also declare
+         * what he has touched since his last turn, for example the names of
+         * fields read or written.<p>
+         * 
+         * {@code ThreadScheduler} ignore the declaration. {@linkplain
+         * InterleavingExplorer} use it to skip schedules that only differ in
+         * the order of stages that did not touch the same things. If a stage
+         * touched something not declared, then an interleaving that matters
+         * may be skipped.
+         * 
+         * @param touched what the calling stage touched since his last turn
+         */
+        default void yield(Object... touched) {
+            this.yield();
+        }
+    }
+    
+    /**
+     * Chooses which stage run next.<p>
+     * 
+     * A strategy is only asked when there are at least two stages alive. It
+     * is called by one thread at a time, but not always by the same thread.
+     */
+    @FunctionalInterface
+    interface Strategy {
+        /**
+         * Returns the index of the next stage to run.
+         * 
+         * @param current index of the stage giving up the turn (he may have
+         *        completed), {@code -1} if no stage has run yet
+         * @param touched what the current stage touched since his last turn,
+         *        {@code null} if unknown
+         * @param alive indices of stages alive, must not be modified
+         * 
+         * @return index of next stage, must be alive
+         */
+        int next(int current, Object[] touched, BitSet alive);
     }
     
     
@@ -505,6 +706,30 @@ public final class ThreadScheduler
         
         
         
+        // MANY STAGES ON VIRTUAL THREADS
+        // -----------------------------
+        out.println();
+        
+        final int stageCount = 10_000;
+        AtomicInteger turns = new AtomicInteger();
+        
+        Consumer<Yielder> counter = yielder -> {
+            turns.incrementAndGet();
+            yielder.yield();
+            turns.incrementAndGet();
+        };
+        
+        ThreadScheduler many = forManyStages()
+                .enqueue(Collections.nCopies(stageCount, counter));
+        
+        long then = System.nanoTime();
+        many.run();
+        
+        out.println(stageCount + " stages took " + turns + " turns in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - then) + " ms.");
+        
+        
+        
         // INTERRUPTING CLIENT MAKE REMAINING STAGES NOT EXECUTE (BEST-EFFORTS BASIS)
         // --------------------------------------------------------------------------
         out.println();
@@ -0,0 +1,76 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Writes and reads values of one particular type to and from the compact
+ * binary format of {@linkplain WireFormat}.<p>
+ * 
+ * A codec is the schema of the type. The codec writes the fields of a value in
+ * a fixed order and reads them back in the same order. Nothing else is written,
+ * no field names and no class descriptors. Therefore, the writer and the reader
+ * must use the same version of the codec.<p>
+ * 
+ * Codecs are registered using {@linkplain WireFormat#register(Class,
+ * WireCodec)}, preferably in a static initializer of the type encoded. If the
+ * type is also annotated {@linkplain Registered @Registered}, then {@code
+ * WireFormat} initialize the type when it is first read and so the codec will
+ * be registered on both sides of the wire. A value of a type that is neither
+ * registered nor annotated can not be read.<p>
+ * 
+ * Codecs must be thread-safe. Codecs will most likely not hold any state.
+ * 
+ * @param <T> type of value
+ * 
+ * @see WireFormat
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public interface WireCodec<T>
+{
+    /**
+     * Write the fields of the provided value.
+     * 
+     * @param value value to write, never {@code null}
+     * @param out where to write
+     * 
+     * @throws IOException if writing fails
+     */
+    void write(T value, DataOutput out) throws IOException;
+    
+    /**
+     * Read the fields of a value, in the same order as they were written by
+     * {@linkplain #write(Object, DataOutput)}, and return a new value.
+     * 
+     * @param in where to read
+     * 
+     * @return the value read
+     * 
+     * @throws IOException if reading fails
+     * @throws ClassNotFoundException if a field fallback to Java serialization
+     *         and the class of the field value can not be found
+     */
+    T read(DataInput in) throws IOException, ClassNotFoundException;
+    
+    /**
+     * Marks a type that register his codec in a static initializer.<p>
+     * 
+     * The class name of a value is read from the wire, and initializing any
+     * class named by a client would run code the client choose. {@code
+     * WireFormat} therefore only initialize classes that carry this
+     * annotation.
+     */
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE)
+    @interface Registered {
+        // Marker
+    }
+}
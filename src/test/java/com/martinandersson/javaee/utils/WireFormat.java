@@ -0,0 +1,582 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compact binary format for the small objects that test drivers send to and
+ * receive from the test client.<p>
+ * 
+ * Java serialization writes class descriptors, field names and field types
+ * with every message and use reflection to write and read the fields. For a
+ * report of two integers, the class descriptor is most of the message. This
+ * format write a type tag followed by the fields of the value as written by a
+ * {@linkplain WireCodec codec}, the schema of the type.<p>
+ * 
+ * Types {@code long[]}, {@code int[]}, {@code String}, {@code Integer} and
+ * {@code Long} have built-in codecs and are identified by a one-byte tag.
+ * Other types register a codec using {@linkplain #register(Class, WireCodec)}
+ * and are identified by their class name. A value of a type that has no codec
+ * fallback to Java serialization.<p>
+ * 
+ * Reading detects the format used. Java serialized objects start with {@code
+ * 0xACED} and objects of this format start with {@code 0xB7}. Thus a client
+ * that read with this class may talk to any test driver, also those that still
+ * use {@code ObjectOutputStream} directly.<p>
+ * 
+ * Integers written with {@linkplain #writeVarLong(DataOutput, long)} take one
+ * byte for values within {@code [-64, 63]}, which is the case for most ids
+ * reported by the test drivers. Run {@code WireFormatBenchmark} in package
+ * {@code com.martinandersson.javaee.ejb.sessionbeans.testdriver} to compare
+ * size and speed of the two formats.
+ * 
+ * @see WireCodec
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class WireFormat
+{
+    /** First byte of a message in this format. */
+    private static final int MAGIC = 0xB7;
+    
+    /** First byte of a Java serialization stream. */
+    private static final int JAVA_SERIALIZATION = 0xAC;
+    
+    private static final int
+            TAG_NULL    = 0,
+            TAG_NAMED   = 1,
+            TAG_LONGS   = 2,
+            TAG_INTS    = 3,
+            TAG_STRING  = 4,
+            TAG_INTEGER = 5,
+            TAG_LONG    = 6;
+    
+    /** Built-in codecs, indexed by tag. */
+    private static final WireCodec<?>[] BUILT_IN = new WireCodec<?>[TAG_LONG + 1];
+    
+    private static final Map<Class<?>, Integer> BUILT_IN_TAGS = new HashMap<>();
+    
+    private static final ConcurrentMap<Class<?>, WireCodec<?>> BY_TYPE = new ConcurrentHashMap<>();
+    
+    private static final ConcurrentMap<String, Class<?>> BY_NAME = new ConcurrentHashMap<>();
+    
+    static {
+        builtIn(TAG_LONGS, long[].class, new WireCodec<long[]>() {
+            @Override public void write(long[] value, DataOutput out) throws IOException {
+                writeVarInt(out, value.length);
+                for (long l : value) {
+                    writeVarLong(out, l);
+                }
+            }
+            @Override public long[] read(DataInput in) throws IOException {
+                final long[] value = new long[readLength(in)];
+                for (int i = 0; i < value.length; ++i) {
+                    value[i] = readVarLong(in);
+                }
+                return value;
+            }
+        });
+        
+        builtIn(TAG_INTS, int[].class, new WireCodec<int[]>() {
+            @Override public void write(int[] value, DataOutput out) throws IOException {
+                writeVarInt(out, value.length);
+                for (int i : value) {
+                    writeVarInt(out, i);
+                }
+            }
+            @Override public int[] read(DataInput in) throws IOException {
+                final int[] value = new int[readLength(in)];
+                for (int i = 0; i < value.length; ++i) {
+                    value[i] = readVarInt(in);
+                }
+                return value;
+            }
+        });
+        
+        builtIn(TAG_STRING, String.class, new WireCodec<String>() {
+            @Override public void write(String value, DataOutput out) throws IOException {
+                writeString(out, value); }
+            @Override public String read(DataInput in) throws IOException {
+                return readString(in); }
+        });
+        
+        builtIn(TAG_INTEGER, Integer.class, new WireCodec<Integer>() {
+            @Override public void write(Integer value, DataOutput out) throws IOException {
+                writeVarInt(out, value); }
+            @Override public Integer read(DataInput in) throws IOException {
+                return readVarInt(in); }
+        });
+        
+        builtIn(TAG_LONG, Long.class, new WireCodec<Long>() {
+            @Override public void write(Long value, DataOutput out) throws IOException {
+                writeVarLong(out, value); }
+            @Override public Long read(DataInput in) throws IOException {
+                return readVarLong(in); }
+        });
+    }
+    
+    private static <T> void builtIn(int tag, Class<T> type, WireCodec<T> codec) {
+        BUILT_IN[tag] = codec;
+        BUILT_IN_TAGS.put(type, tag);
+    }
+    
+    private WireFormat() {
+        // Empty
+    }
+    
+    
+    
+    /*
+     *  ------------
+     * | PUBLIC API |
+     *  ------------
+     */
+    
+    /**
+     * Register a codec for the specified type.<p>
+     * 
+     * The codec is used for values of exactly the specified type, not
+     * subtypes. A codec already registered for the type is replaced.
+     * 
+     * @param <T> type of value
+     * @param type type of value
+     * @param codec codec of the type
+     * 
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code type} has a built-in codec
+     */
+    public static <T> void register(Class<T> type, WireCodec<? super T> codec) {
+        if (BUILT_IN_TAGS.containsKey(type)) {
+            throw new IllegalArgumentException("Has a built-in codec: " + type.getName());
+        }
+        
+        BY_TYPE.put(type, codec);
+        BY_NAME.put(type.getName(), type);
+    }
+    
+    /**
+     * Returns {@code true} if values of the specified type are written in the
+     * binary format of this class, {@code false} if they fallback to Java
+     * serialization.
+     * 
+     * @param type type of value
+     * 
+     * @return {@code true} if values of the specified type has a codec
+     */
+    public static boolean hasCodec(Class<?> type) {
+        return BUILT_IN_TAGS.containsKey(type) || BY_TYPE.containsKey(type);
+    }
+    
+    /**
+     * Encode the provided value into bytes.
+     * 
+     * @param value value to encode (may be {@code null})
+     * 
+     * @return the bytes
+     * 
+     * @throws NotSerializableException if the value has no codec and is not
+     *         {@code Serializable}
+     * @throws IOException if a codec fails
+     */
+    public static byte[] toBytes(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        
+        if (value != null && !hasCodec(value.getClass())) {
+            writeJava(bytes, value);
+            return bytes.toByteArray();
+        }
+        
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MAGIC);
+        
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+            return bytes.toByteArray();
+        }
+        
+        final Integer tag = BUILT_IN_TAGS.get(value.getClass());
+        
+        final WireCodec<?> codec;
+        
+        if (tag != null) {
+            out.writeByte(tag);
+            codec = BUILT_IN[tag];
+        }
+        else {
+            out.writeByte(TAG_NAMED);
+            writeString(out, value.getClass().getName());
+            codec = BY_TYPE.get(value.getClass());
+        }
+        
+        // The codec was registered for exactly the class of the value
+        @SuppressWarnings("unchecked")
+        WireCodec<Object> any = (WireCodec<Object>) codec;
+        
+        any.write(value, out);
+        
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Encode the provided value and write the bytes to the provided stream.<p>
+     * 
+     * The stream is not flushed nor closed.
+     * 
+     * @param value value to write (may be {@code null})
+     * @param out where to write
+     * 
+     * @throws NotSerializableException if the value has no codec and is not
+     *         {@code Serializable}
+     * @throws IOException if writing fails
+     */
+    public static void write(Object value, OutputStream out) throws IOException {
+        out.write(toBytes(value));
+    }
+    
+    /**
+     * Decode a value from the provided bytes.
+     * 
+     * @param <T> type of value
+     * @param bytes bytes to decode
+     * 
+     * @return the value, or {@code null} if {@code bytes} is empty
+     * 
+     * @throws IOException if decoding fails
+     * @throws ClassNotFoundException if the class of the value can not be found
+     */
+    public static <T> T fromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
+        return read(new ByteArrayInputStream(bytes));
+    }
+    
+    /**
+     * Read one value from the provided stream, written in this format or using
+     * Java serialization.<p>
+     * 
+     * The stream is not closed.
+     * 
+     * @param <T> type of value
+     * @param in where to read
+     * 
+     * @return the value, or {@code null} if the stream is empty
+     * 
+     * @throws IOException if reading fails
+     * @throws ClassNotFoundException if the class of the value can not be found
+     */
+    public static <T> T read(InputStream in) throws IOException, ClassNotFoundException {
+        final int first = in.read();
+        
+        switch (first) {
+            case -1:
+                return null;
+            
+            case MAGIC:
+                break;
+            
+            case JAVA_SERIALIZATION:
+                PushbackInputStream java = new PushbackInputStream(in, 1);
+                java.unread(first);
+                return cast(new ObjectInputStream(java).readObject());
+            
+            default:
+                throw new StreamCorruptedException(String.format("Unknown format: 0x%02X", first));
+        }
+        
+        DataInputStream data = new DataInputStream(in);
+        
+        final int tag = data.readUnsignedByte();
+        
+        if (tag == TAG_NULL) {
+            return null;
+        }
+        
+        final WireCodec<?> codec;
+        
+        if (tag == TAG_NAMED) {
+            codec = codecOf(readString(data));
+        }
+        else if (tag < BUILT_IN.length) {
+            codec = BUILT_IN[tag];
+        }
+        else {
+            throw new StreamCorruptedException("Unknown tag: " + tag);
+        }
+        
+        return cast(codec.read(data));
+    }
+    
+    
+    
+    /*
+     *  ----------------
+     * | API FOR CODECS |
+     *  ----------------
+     */
+    
+    /**
+     * Write a {@code long} using 1 to 10 bytes, fewer the closer the value is
+     * to zero.
+     * 
+     * @param out where to write
+     * @param value value to write
+     * 
+     * @throws IOException if writing fails
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        // ZigZag; small negative values become small positive values
+        long v = (value << 1) ^ (value >> 63);
+        
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        
+        out.writeByte((int) v);
+    }
+    
+    /**
+     * Read a {@code long} written by {@linkplain #writeVarLong(DataOutput,
+     * long)}.
+     * 
+     * @param in where to read
+     * 
+     * @return the value
+     * 
+     * @throws IOException if reading fails
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        
+        throw new StreamCorruptedException("Malformed variable-length integer.");
+    }
+    
+    /**
+     * Write an {@code int} using 1 to 5 bytes, fewer the closer the value is
+     * to zero.
+     * 
+     * @param out where to write
+     * @param value value to write
+     * 
+     * @throws IOException if writing fails
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        writeVarLong(out, value);
+    }
+    
+    /**
+     * Read an {@code int} written by {@linkplain #writeVarInt(DataOutput,
+     * int)}.
+     * 
+     * @param in where to read
+     * 
+     * @return the value
+     * 
+     * @throws IOException if reading fails
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        final long v = readVarLong(in);
+        
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Not an int: " + v);
+        }
+        
+        return (int) v;
+    }
+    
+    /**
+     * Write a string, which may be {@code null}, as UTF-8 bytes prefixed with
+     * the number of bytes.
+     * 
+     * @param out where to write
+     * @param value value to write (may be {@code null})
+     * 
+     * @throws IOException if writing fails
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, -1);
+            return;
+        }
+        
+        final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, utf8.length);
+        out.write(utf8);
+    }
+    
+    /**
+     * Read a string written by {@linkplain #writeString(DataOutput, String)}.
+     * 
+     * @param in where to read
+     * 
+     * @return the value (may be {@code null})
+     * 
+     * @throws IOException if reading fails
+     */
+    public static String readString(DataInput in) throws IOException {
+        final int length = readVarInt(in);
+        
+        if (length == -1) {
+            return null;
+        }
+        
+        final byte[] utf8 = new byte[checkLength(length)];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Write a value, which may be {@code null}, using Java serialization.<p>
+     * 
+     * Meant for fields of a type that has no schema worth writing, for example
+     * an exception.
+     * 
+     * @param out where to write
+     * @param value value to write (may be {@code null})
+     * 
+     * @throws NotSerializableException if the value is not {@code
+     *         Serializable}
+     * @throws IOException if writing fails
+     */
+    public static void writeSerializable(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, -1);
+            return;
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeJava(bytes, value);
+        
+        writeVarInt(out, bytes.size());
+        out.write(bytes.toByteArray());
+    }
+    
+    /**
+     * Read a value written by {@linkplain #writeSerializable(DataOutput,
+     * Object)}.
+     * 
+     * @param <T> type of value
+     * @param in where to read
+     * 
+     * @return the value (may be {@code null})
+     * 
+     * @throws IOException if reading fails
+     * @throws ClassNotFoundException if the class of the value can not be found
+     */
+    public static <T> T readSerializable(DataInput in) throws IOException, ClassNotFoundException {
+        final int length = readVarInt(in);
+        
+        if (length == -1) {
+            return null;
+        }
+        
+        final byte[] bytes = new byte[checkLength(length)];
+        in.readFully(bytes);
+        
+        try (ObjectInputStream java = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return cast(java.readObject());
+        }
+    }
+    
+    
+    
+    /*
+     *  --------------
+     * | INTERNAL API |
+     *  --------------
+     */
+    
+    private static void writeJava(OutputStream out, Object value) throws IOException {
+        if (!(value instanceof Serializable)) {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+        
+        ObjectOutputStream java = new ObjectOutputStream(out);
+        java.writeObject(value);
+        java.flush();
+    }
+    
+    /**
+     * Returns the codec of the named type.<p>
+     * 
+     * The name is read from the stream and can not be trusted. A type not yet
+     * registered is loaded without being initialized, and only initialized if
+     * it is annotated {@linkplain WireCodec.Registered @Registered}. Static
+     * initializers of other classes are never run.
+     */
+    private static WireCodec<?> codecOf(String className) throws IOException, ClassNotFoundException {
+        Class<?> type = BY_NAME.get(className);
+        
+        if (type == null) {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            
+            if (loader == null) {
+                loader = WireFormat.class.getClassLoader();
+            }
+            
+            type = Class.forName(className, false, loader);
+            
+            if (!type.isAnnotationPresent(WireCodec.Registered.class)) {
+                throw new InvalidClassException(className, "No codec registered.");
+            }
+            
+            // Initializing the type register the codec
+            Class.forName(className, true, loader);
+        }
+        
+        WireCodec<?> codec = BY_TYPE.get(type);
+        
+        if (codec == null) {
+            throw new InvalidClassException(className, "No codec registered.");
+        }
+        
+        return codec;
+    }
+    
+    /**
+     * The caller of a read method decide what type he expect. A wrong guess
+     * fail with a {@code ClassCastException} in the caller.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value) {
+        return (T) value;
+    }
+    
+    private static int readLength(DataInput in) throws IOException {
+        return checkLength(readVarInt(in));
+    }
+    
+    private static int checkLength(int length) throws StreamCorruptedException {
+        if (length < 0) {
+            throw new StreamCorruptedException("Negative length: " + length);
+        }
+        
+        return length;
+    }
+}
@@ -0,0 +1,260 @@
+package com.martinandersson.javaee.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Round-trip tests of {@linkplain WireFormat}.<p>
+ * 
+ * Plain unit tests, no server needed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public class WireFormatTest
+{
+    /** Set by the static initializer of {@linkplain NotRegistered}. */
+    static volatile boolean notRegisteredInitialized;
+    
+    
+    
+    @Test
+    public void builtInTypesRoundTrip() throws Exception {
+        assertEquals("hello wörld", roundTrip("hello wörld"));
+        assertEquals("", roundTrip(""));
+        assertEquals(Integer.valueOf(Integer.MIN_VALUE), roundTrip(Integer.MIN_VALUE));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), roundTrip(Long.MAX_VALUE));
+        
+        assertArrayEquals(new long[]{ 0, -1, 63, -64, 64, Long.MIN_VALUE, Long.MAX_VALUE },
+                roundTrip(new long[]{ 0, -1, 63, -64, 64, Long.MIN_VALUE, Long.MAX_VALUE }));
+        
+        assertArrayEquals(new int[0], roundTrip(new int[0]));
+        assertArrayEquals(new int[]{ Integer.MIN_VALUE, 0, Integer.MAX_VALUE },
+                roundTrip(new int[]{ Integer.MIN_VALUE, 0, Integer.MAX_VALUE }));
+    }
+    
+    @Test
+    public void nullRoundTrip() throws Exception {
+        assertNull(roundTrip(null));
+    }
+    
+    @Test
+    public void emptyInputIsNull() throws Exception {
+        assertNull(WireFormat.fromBytes(new byte[0]));
+    }
+    
+    @Test
+    public void registeredTypeRoundTrip() throws Exception {
+        // Initialize Point, which register his codec
+        final Point point = new Point(-3, 42);
+        
+        assertTrue(WireFormat.hasCodec(Point.class));
+        
+        final byte[] bytes = WireFormat.toBytes(point);
+        
+        assertEquals(0xB7, bytes[0] & 0xFF);
+        assertEquals(point, WireFormat.fromBytes(bytes));
+    }
+    
+    @Test
+    public void typeWithoutCodecFallbackToJavaSerialization() throws Exception {
+        final Unnamed value = new Unnamed("x");
+        
+        assertFalse(WireFormat.hasCodec(Unnamed.class));
+        
+        final byte[] bytes = WireFormat.toBytes(value);
+        
+        assertEquals(0xAC, bytes[0] & 0xFF);
+        assertEquals(value, WireFormat.fromBytes(bytes));
+    }
+    
+    @Test
+    public void readsObjectOutputStream() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(Arrays.asList(1, 2, 3));
+        }
+        
+        assertEquals(Arrays.asList(1, 2, 3), WireFormat.fromBytes(bytes.toByteArray()));
+    }
+    
+    @Test
+    public void readConsumeOneValueOnly() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        WireFormat.write("first", bytes);
+        WireFormat.write(new Point(1, 2), bytes);
+        
+        final ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        
+        assertEquals("first", WireFormat.read(in));
+        assertEquals(new Point(1, 2), WireFormat.read(in));
+        assertNull(WireFormat.read(in));
+    }
+    
+    @Test
+    public void varLongSize() throws Exception {
+        assertEquals(1, varLongBytes(0));
+        assertEquals(1, varLongBytes(63));
+        assertEquals(1, varLongBytes(-64));
+        assertEquals(2, varLongBytes(64));
+        assertEquals(10, varLongBytes(Long.MIN_VALUE));
+    }
+    
+    @Test
+    public void stringsAndSerializablesRoundTrip() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        
+        WireFormat.writeString(out, null);
+        WireFormat.writeString(out, "åäö 😀");
+        WireFormat.writeSerializable(out, null);
+        WireFormat.writeSerializable(out, new IllegalStateException("Bean is gone."));
+        
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        
+        assertNull(WireFormat.readString(in));
+        assertEquals("åäö 😀", WireFormat.readString(in));
+        assertNull(WireFormat.readSerializable(in));
+        
+        final IllegalStateException e = WireFormat.readSerializable(in);
+        assertEquals("Bean is gone.", e.getMessage());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void canNotReplaceBuiltInCodec() {
+        WireFormat.register(String.class, new WireCodec<String>() {
+            @Override public void write(String value, DataOutput out) { }
+            @Override public String read(DataInput in) { return null; }
+        });
+    }
+    
+    @Test(expected = StreamCorruptedException.class)
+    public void unknownFormatIsRejected() throws Exception {
+        WireFormat.fromBytes(new byte[]{ 0x01, 0x02 });
+    }
+    
+    @Test(expected = StreamCorruptedException.class)
+    public void unknownTagIsRejected() throws Exception {
+        WireFormat.fromBytes(new byte[]{ (byte) 0xB7, 99 });
+    }
+    
+    @Test
+    public void unregisteredTypeIsRejectedWithoutBeingInitialized() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeByte(0xB7);
+        out.writeByte(1); // <-- TAG_NAMED
+        WireFormat.writeString(out, NotRegistered.class.getName());
+        
+        try {
+            WireFormat.fromBytes(bytes.toByteArray());
+            fail("Read a type that has no codec.");
+        }
+        catch (InvalidClassException e) {
+            assertEquals(NotRegistered.class.getName(), e.classname);
+        }
+        
+        assertFalse("Static initializer was run.", notRegisteredInitialized);
+    }
+    
+    
+    
+    private static <T> T roundTrip(T value) throws Exception {
+        return WireFormat.fromBytes(WireFormat.toBytes(value));
+    }
+    
+    private static int varLongBytes(long value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        
+        WireFormat.writeVarLong(out, value);
+        
+        final long read = WireFormat.readVarLong(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(value, read);
+        
+        return bytes.size();
+    }
+    
+    
+    
+    @WireCodec.Registered
+    static final class Point
+    {
+        static {
+            WireFormat.register(Point.class, new WireCodec<Point>() {
+                @Override public void write(Point value, DataOutput out) throws IOException {
+                    WireFormat.writeVarInt(out, value.x);
+                    WireFormat.writeVarInt(out, value.y); }
+                @Override public Point read(DataInput in) throws IOException {
+                    return new Point(WireFormat.readVarInt(in), WireFormat.readVarInt(in)); }
+            });
+        }
+        
+        final int x, y;
+        
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Point)) {
+                return false;
+            }
+            
+            final Point other = (Point) obj;
+            return x == other.x && y == other.y;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+    
+    static final class Unnamed implements Serializable
+    {
+        final String value;
+        
+        Unnamed(String value) {
+            this.value = value;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Unnamed && value.equals(((Unnamed) obj).value);
+        }
+        
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+    }
+    
+    static final class NotRegistered
+    {
+        static {
+            notRegisteredInitialized = true;
+        }
+    }
+}